@@ -0,0 +1,39 @@
+package obcs.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The entry point of the benchmark jar. It runs the selected benchmarks with the GC
+ * profiler, which reports allocation per operation and GC counts and times, and keeps
+ * the results in jmh-result-[version].json so regressions can be tracked per release.
+ *
+ * Arguments: [benchmark regex] [-p name=v1,v2]... ; -Dobcs.version names the result file.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String version = System.getProperty("obcs.version", "dev");
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result-" + version + ".json");
+
+        boolean included = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p") && i + 1 < args.length) {
+                String[] param = args[++i].split("=", 2);
+                if (param.length == 2) options.param(param[0], param[1].split(","));
+            } else {
+                options.include(args[i]);
+                included = true;
+            }
+        }
+        if (!included) options.include("obcs\\.bench\\..*Benchmark");
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,52 @@
+package obcs.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the Buyer's expected value, contract level and market demand over every flow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class BuyerBenchmark {
+    static final MethodHandle GET_EXPECTED_VALUE = Obcs.method(Obcs.BUYER, "getExpectedValue",
+            Obcs.G_FUNCTION, Double.class);
+    static final MethodHandle SET_OPTIMAL_CONTRACT_LEVEL = Obcs.method(Obcs.BUYER, "setOptimalContractLevel",
+            Obcs.G_FUNCTION_ARRAY, Obcs.FLOW_TABLE, double.class);
+    static final MethodHandle SET_DEMAND_FROM_MKT = Obcs.method(Obcs.BUYER, "setDemandFromMkt",
+            Obcs.FLOW_TABLE, Obcs.FLOW_TABLE);
+    static final MethodHandle SET_DEMAND = Obcs.method(Obcs.BUYER, "setDemand",
+            Obcs.FLOW_TABLE, Obcs.FLOW_TABLE);
+
+    /** Buyer.getExpectedValue: G(a) of every flow at a price inside the sample range */
+    @Benchmark
+    public void getExpectedValue(FlowState state, Blackhole bh) throws Throwable {
+        for (Object prices : (Object[]) state.prices) {
+            bh.consume(GET_EXPECTED_VALUE.invoke(state.buyer, prices, 25.0));
+        }
+    }
+
+    /** Buyer.setOptimalContractLevel over every flow */
+    @Benchmark
+    public void setOptimalContractLevel(FlowState state) throws Throwable {
+        SET_OPTIMAL_CONTRACT_LEVEL.invoke(state.buyer, state.prices, state.sellerTable, 4.0);
+    }
+
+    /** Buyer.setDemandFromMkt with the most recent price of every flow */
+    @Benchmark
+    public void setDemandFromMkt(FlowState state) throws Throwable {
+        SET_DEMAND_FROM_MKT.invoke(state.buyer, state.sellerTable, state.marketTable);
+    }
+
+    /** Buyer.setDemand: q and x of every flow in one batch pass */
+    @Benchmark
+    public void setDemand(FlowState state) throws Throwable {
+        SET_DEMAND.invoke(state.buyer, state.sellerTable, state.marketTable);
+    }
+}
@@ -0,0 +1,122 @@
+package obcs.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The state shared by the benchmarks: a flow file, a Market with generated price
+ * samples and a Buyer and a Seller initialized the way Market.main does.
+ */
+@State(Scope.Benchmark)
+public class FlowState {
+    /** Larger flows x samples combinations do not fit a benchmark heap and are refused */
+    static final long MAX_SAMPLES = 200_000_000L;
+    static final long SEED = 20190115L;
+
+    /** Flows x samples, paired so that every default combination fits under MAX_SAMPLES */
+    @Param({"1000x30", "1000x1000", "1000x10000", "100000x30", "100000x1000", "1000000x30"})
+    public String size;
+
+    int flows;
+    int samples;
+
+    Path csv;
+    Object market;
+    Object buyer;
+    Object seller;
+    Object prices;
+    Object marketTable;
+    Object buyerTable;
+    Object sellerTable;
+
+    static final MethodHandle SET_OD_PRICE = Obcs.method(Obcs.MARKET, "setOdPrice",
+            int.class, String.class, double.class, double.class, double.class, double.class,
+            Integer.class, Integer.class);
+    static final MethodHandle SET_SEED_MARKET = Obcs.method(Obcs.MARKET, "setSeed", long.class);
+    static final MethodHandle GET_ODS = Obcs.method(Obcs.MARKET, "getOds");
+    static final MethodHandle GET_FLOW_INDEX = Obcs.method(Obcs.MARKET, "getFlowIndex");
+    static final MethodHandle GET_G_TABLES = Obcs.method(Obcs.MARKET, "getGTables");
+    static final MethodHandle GET_MARKET_TABLE = Obcs.method(Obcs.MARKET, "getFlowTable");
+    static final MethodHandle SET_SEED_BUYER = Obcs.method(Obcs.BUYER, "setSeed", long.class);
+    static final MethodHandle INIT_CONTRACT_LEVEL = Obcs.method(Obcs.BUYER, "initializeContractLevel", List.class);
+    static final MethodHandle GET_BUYER_TABLE = Obcs.method(Obcs.BUYER, "getFlowTable");
+    static final MethodHandle SET_SEED_SELLER = Obcs.method(Obcs.SELLER, "setSeed", long.class);
+    static final MethodHandle SET_EXECU_FEE = Obcs.method(Obcs.SELLER, "setExecuFee", List.class,
+            double.class, double.class, double.class, double.class, double.class, double.class);
+    static final MethodHandle SET_RESERV_FEE = Obcs.method(Obcs.SELLER, "setReservFee", List.class,
+            double.class, double.class, double.class, double.class, double.class, double.class);
+    static final MethodHandle SET_CAPACITY = Obcs.method(Obcs.SELLER, "setCapacity", List.class,
+            double.class, double.class, double.class, double.class, double.class, double.class);
+    static final MethodHandle GET_SELLER_TABLE = Obcs.method(Obcs.SELLER, "getFlowTable");
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        String[] dims = size.split("x", 2);
+        if (dims.length != 2) {
+            throw new IllegalArgumentException("size must be [flows]x[samples], got " + size);
+        }
+        flows = Integer.parseInt(dims[0].trim());
+        samples = Integer.parseInt(dims[1].trim());
+        if ((long) flows * samples > MAX_SAMPLES) {
+            throw new IllegalStateException(flows + " flows x " + samples
+                    + " samples exceed the benchmark heap, narrow the run with -p size=[flows]x[samples]");
+        }
+        csv = writeFlows(flows);
+        market = newMarket();
+        generate(market, this);
+
+        Object index = GET_FLOW_INDEX.invoke(market);
+        @SuppressWarnings("unchecked")
+        List<String> ods = (List<String>) GET_ODS.invoke(market);
+        prices = GET_G_TABLES.invoke(market);
+        marketTable = GET_MARKET_TABLE.invoke(market);
+
+        buyer = Obcs.create(Obcs.BUYER, new Class<?>[]{Obcs.FLOW_INDEX}, index);
+        SET_SEED_BUYER.invoke(buyer, SEED);
+        INIT_CONTRACT_LEVEL.invoke(buyer, ods);
+        buyerTable = GET_BUYER_TABLE.invoke(buyer);
+
+        seller = Obcs.create(Obcs.SELLER, new Class<?>[]{Obcs.FLOW_INDEX}, index);
+        SET_SEED_SELLER.invoke(seller, SEED);
+        SET_EXECU_FEE.invoke(seller, ods, 25.0, 10.0, 3.0, 1.0, 5.0, 30.0);
+        SET_RESERV_FEE.invoke(seller, ods, 3.0, 2.0, 2.0, 1.0, 1.0, 5.0);
+        SET_CAPACITY.invoke(seller, ods, 300.0, 150.0, 10.0, 5.0, 100.0, 500.0);
+        sellerTable = GET_SELLER_TABLE.invoke(seller);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (csv != null) Files.deleteIfExists(csv);
+    }
+
+    static Object newMarket() throws Throwable {
+        Object market = Obcs.create(Obcs.MARKET, new Class<?>[0]);
+        SET_SEED_MARKET.invoke(market, SEED);
+        return market;
+    }
+
+    /** Generate the price samples the way Market.main does */
+    static void generate(Object market, FlowState state) throws Throwable {
+        SET_OD_PRICE.invoke(market, state.samples, state.csv.toString(), 40.0, 30.0, 20.0, 10.0, 10, 40);
+    }
+
+    /** Write a flow file of n distinct "origin-destination" records */
+    private static Path writeFlows(int n) throws IOException {
+        Path file = Files.createTempFile("obcs-flows-", ".csv");
+        int endpoints = (int) Math.ceil(Math.sqrt(n));
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("od\n");
+            for (int i = 0; i < n; i++) {
+                out.write(i / endpoints + "-" + i % endpoints + "\n");
+            }
+        }
+        return file;
+    }
+}
@@ -0,0 +1,24 @@
+package obcs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmark of the Market price sample generation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class MarketBenchmark {
+
+    /** Market.setOdPrice: load the flows and generate every flow's price samples */
+    @Benchmark
+    public Object setOdPrice(FlowState state) throws Throwable {
+        Object market = FlowState.newMarket();
+        FlowState.generate(market, state);
+        return market;
+    }
+}
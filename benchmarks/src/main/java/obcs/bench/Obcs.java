@@ -0,0 +1,50 @@
+package obcs.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+
+/**
+ * The class reaches the model classes of the default package. Named packages cannot
+ * import them, so constructors and methods are bound as method handles once per trial.
+ */
+final class Obcs {
+    static final Class<?> MARKET = load("Market");
+    static final Class<?> BUYER = load("Buyer");
+    static final Class<?> SELLER = load("Seller");
+    static final Class<?> FLOW_INDEX = load("FlowIndex");
+    static final Class<?> FLOW_TABLE = load("FlowTable");
+    static final Class<?> G_FUNCTION = load("GFunction");
+    static final Class<?> G_FUNCTION_ARRAY = Array.newInstance(G_FUNCTION, 0).getClass();
+
+    private Obcs() {
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("model class " + name + " is missing from the benchmark jar", e);
+        }
+    }
+
+    /** Bind a method of a model class, private methods included */
+    static MethodHandle method(Class<?> owner, String name, Class<?>... params) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+            java.lang.reflect.Method method = owner.getDeclaredMethod(name, params);
+            return lookup.unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot bind " + owner.getName() + "." + name, e);
+        }
+    }
+
+    /** Create an instance of a model class */
+    static Object create(Class<?> owner, Class<?>[] params, Object... args) {
+        try {
+            return owner.getConstructor(params).newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot create " + owner.getName(), e);
+        }
+    }
+}
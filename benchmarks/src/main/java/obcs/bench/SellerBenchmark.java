@@ -0,0 +1,33 @@
+package obcs.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the Seller's reservation fee and capacity optimizations over every flow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SellerBenchmark {
+    static final MethodHandle SET_OPTIMAL_RESER_FEE = Obcs.method(Obcs.SELLER, "setOptimalReserFee",
+            Obcs.G_FUNCTION_ARRAY, Obcs.FLOW_TABLE, double.class, double.class);
+    static final MethodHandle SET_OPTIMAL_CAPACITY = Obcs.method(Obcs.SELLER, "setOptimalCapacity",
+            Obcs.G_FUNCTION_ARRAY);
+
+    /** Seller.setOptimalReserFee over every flow */
+    @Benchmark
+    public void setOptimalReserFee(FlowState state) throws Throwable {
+        SET_OPTIMAL_RESER_FEE.invoke(state.seller, state.prices, state.buyerTable, 0.25, 0.65);
+    }
+
+    /** Seller.setOptimalCapacity over every flow */
+    @Benchmark
+    public void setOptimalCapacity(FlowState state) throws Throwable {
+        SET_OPTIMAL_CAPACITY.invoke(state.seller, state.prices);
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * The class hands batches of results to another sink on a background thread through
+ * a bounded queue, so writing does not stall the optimization. A producer waits only
+ * when the writer falls behind by more than the queue holds, which bounds the memory
+ * taken by pending results.
+ *
+ * A failure of the writer is rethrown by the next accept or by close, and producers
+ * never wait on a writer thread that is no longer running.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+public class AsyncResultSink implements ResultSink {
+    private static final ResultBatch END = new ResultBatch(0);
+    private static final long POLL_MILLIS = 100;
+
+    private final ResultSink sink;
+    private final BlockingQueue<ResultBatch> queue;
+    private final Thread writer;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * Create a sink writing through a background thread
+     * @param sink the sink the batches are written to, closed along with this sink
+     * @param capacity the number of batches that may wait to be written
+     */
+    public AsyncResultSink(ResultSink sink, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<ResultBatch>(capacity);
+        this.writer = new Thread(this::drain, "result-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** Write batches until the end, after a failure keep taking them so producers are not blocked */
+    private void drain() {
+        try {
+            ResultBatch batch;
+            while ((batch = queue.take()) != END) {
+                if (failure != null) continue;
+                try {
+                    sink.accept(batch);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException | Error e) {
+                    failure = new IOException("result writer failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("result writer interrupted");
+        }
+    }
+
+    @Override
+    public void accept(ResultBatch batch) throws IOException {
+        if (closed) {
+            throw new IOException("result sink is closed");
+        }
+        IOException e = failure;
+        if (e != null) throw e;
+        enqueue(batch);
+    }
+
+    /** Queue a batch, waiting while the queue is full and the writer is still running */
+    private void enqueue(ResultBatch batch) throws IOException {
+        try {
+            while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!writer.isAlive()) {
+                    IOException e = failure;
+                    throw e != null ? e : new IOException("result writer stopped");
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing results");
+        }
+    }
+
+    /**
+     * The method waits until every queued batch is written, then closes the sink
+     * @throws IOException if a batch or the sink could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (writer.isAlive()) enqueue(END);
+            writer.join();
+        } catch (InterruptedException ie) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing results");
+        } finally {
+            if (!writer.isAlive()) sink.close();
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -9,19 +9,38 @@
 
 import java.util.*;
 import java.lang.Math;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
 
 
 public class Buyer {
-    private HashMap<String, Double> contractLevel;
-    private HashMap<String, Double> demandFromSeller;
-    private HashMap<String, Double> demandFromMkt;
+    private static final FlowTable.Column CONTRACT_LEVEL = FlowTable.Column.CONTRACT_LEVEL;
+    private static final FlowTable.Column DEMAND_FROM_SELLER = FlowTable.Column.DEMAND_FROM_SELLER;
+    private static final FlowTable.Column DEMAND_FROM_MKT = FlowTable.Column.DEMAND_FROM_MKT;
+
+    private final FlowIndex flows;
+    private final FlowTable table;
+    private ForkJoinPool pool;
+    private Metrics metrics;
+    private SolverState solverState;
+    private DecisionCache cache;
+    private PriceStats[] priceStats;
+    private long seed;
 
 
     public Buyer() {
-        this.contractLevel = new HashMap<String, Double>();
-        this.demandFromSeller = new HashMap<String, Double>();
-        this.demandFromMkt = new HashMap<String, Double>();
+        this(new FlowIndex());
+    }
+
+    /**
+     * Create a Buyer whose decisions are indexed by a shared flow dictionary
+     * @param flows the flow dictionary shared with the Market and the Seller
+     */
+    public Buyer(FlowIndex flows) {
+        this.flows = flows;
+        this.table = new FlowTable(flows);
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.solverState = new SolverState();
     }
 
 
@@ -31,11 +50,17 @@ public class Buyer {
      */
     public void initializeContractLevel(List<String> ods) {
         for (int i = 0; i < ods.size(); i++) {
-            Double temp_Q = ThreadLocalRandom.current().nextDouble(50, 500);
-            this.contractLevel.put(ods.get(i), temp_Q);
+            int id = flows.add(ods.get(i));
+            double temp_Q = FlowRandom.forFlow(seed, FlowRandom.BUYER_CONTRACT_LEVEL, id).nextDouble(50, 500);
+            this.table.set(CONTRACT_LEVEL, id, temp_Q);
         }
     }
 
+    /** Calculate the quantity purchased from the seller of one flow - q */
+    private double getDemandFromSeller(double price, double execCost, double contrAmt) {
+        return price > execCost ? contrAmt : 0.0;
+    }
+
     /**
      * The method calculates the quantity purchased from the seller - q
      * @param contractLevel Q - the contract level
@@ -48,31 +73,75 @@ public class Buyer {
             HashMap<String, Double> mktPrice
     ){
         for (Map.Entry<String, Double> entry: mktPrice.entrySet()) {
-            Double demandContr = 0.0;
+            double demandContr = 0.0;
             String od = entry.getKey();
-            Double price = entry.getValue();
+            double price = entry.getValue();
             if (execuFee.containsKey(od)) {
-                Double execCost = execuFee.get(od);
-                Double contrAmt = contractLevel.get(od);
-                if (price > execCost) {
-                    demandContr = contrAmt;
-                }
+                demandContr = getDemandFromSeller(price, execuFee.get(od), contractLevel.get(od));
             }
-            demandFromSeller.put(od, demandContr);
+            table.set(DEMAND_FROM_SELLER, flows.add(od), demandContr);
         }
     }
 
+    /**
+     * The method calculates the quantity purchased from the seller - q, by flow id
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     */
+    public void setDemandFromSeller(FlowTable seller, FlowTable market) {
+        setDemandFromSeller(seller, market, null);
+    }
+
+    /**
+     * The method recalculates the quantity purchased from the seller - q of some flows only
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     * @param ids the flow ids to recalculate, null recalculates every flow
+     */
+    public void setDemandFromSeller(FlowTable seller, FlowTable market, int[] ids) {
+        checkIndex(seller);
+        checkIndex(market);
+        table.ensureCapacity(DEMAND_FROM_SELLER);
+        FlowTasks.forEach(pool, flows.size(), ids, i -> {
+            if (!market.has(FlowTable.Column.RECENT_PRICE, i)) return;
+
+            double demandContr = 0.0;
+            if (seller.has(FlowTable.Column.EXECU_FEE, i)) {
+                demandContr = getDemandFromSeller(
+                        market.get(FlowTable.Column.RECENT_PRICE, i),
+                        seller.get(FlowTable.Column.EXECU_FEE, i),
+                        table.get(CONTRACT_LEVEL, i));
+            }
+            table.set(DEMAND_FROM_SELLER, i, demandContr);
+        });
+    }
+
 
     /** Calculate derivative of willingness-to-pay value given demand */
-    private Double getWTPPrime(Double demand) {
+    private double getWTPPrime(double demand) {
 //        return 2000.0/3 *Math.pow( demand, -2.0/3);
-        return 100.0*Math.exp(-0.01*demand);
+        return DemandKernel.wtpPrime(demand);
     }
 
     /** Calculate demand value given price */
-    private Double getDemand(Double price) {
+    private double getDemand(double price) {
 //        return Math.pow(3.0*price/2000, -3.0/2);
-        return (-100)*Math.log(price/100.0);
+        return DemandKernel.demand(price);
+    }
+
+    /** Calculate the quantity purchased from the Market of one flow - x */
+    private double getDemandFromMkt(double price, double execCost, double contrAmt) {
+        double demandMkt = 0.0;
+        double wtfPrime = getWTPPrime(contrAmt);
+
+        if (price < execCost) {
+            demandMkt = getDemand(price);
+        } else if (execCost <= price && price < wtfPrime) {
+            demandMkt = getDemand(price) - contrAmt;
+        } else if (price >= wtfPrime) {
+            demandMkt = 0.0;
+        }
+        return demandMkt;
     }
 
     /**
@@ -91,89 +160,178 @@ public class Buyer {
             var od = entry.getKey();
             double price = entry.getValue();
             if (execuFee.containsKey(od)) {
-                double execCost = execuFee.get(od);
-                double contrAmt = contractLevel.get(od);
-                double wtfPrime = getWTPPrime(contrAmt);
-
-                if (price < execCost) {
-                    demandMkt = getDemand(price);
-                } else if (execCost <= price && price < wtfPrime) {
-                    demandMkt = getDemand(price) - contrAmt;
-                } else if (price >= wtfPrime) {
-                    demandMkt = 0.0;
-                }
+                demandMkt = getDemandFromMkt(price, execuFee.get(od), contractLevel.get(od));
             }
-            demandFromMkt.put(od, demandMkt);
+            table.set(DEMAND_FROM_MKT, flows.add(od), demandMkt);
         }
     }
 
-    /** Calculate the expected value given price distribution - G(a) */
-    private Double getExpectedValue(List<Double> prices, Double a) {
-        double res = 0.0;
-        double prob = 1.0/prices.size();
-        for (double price : prices) {
-            res += Math.min(price, a) * prob;
-        }
-        return res;
+    /**
+     * The method calculates the quantity purchased from the Market - x, by flow id
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     */
+    public void setDemandFromMkt(FlowTable seller, FlowTable market) {
+        setDemandFromMkt(seller, market, null);
     }
 
-    /** Return result of the right part */
-    private Double getRightResult(List<Double> prices, Double s, Double g) {
-        return s + getExpectedValue(prices, g);
+    /**
+     * The method recalculates the quantity purchased from the Market - x of some flows only
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     * @param ids the flow ids to recalculate, null recalculates every flow
+     */
+    public void setDemandFromMkt(FlowTable seller, FlowTable market, int[] ids) {
+        checkIndex(seller);
+        checkIndex(market);
+        table.ensureCapacity(DEMAND_FROM_MKT);
+        FlowTasks.forEach(pool, flows.size(), ids, i -> {
+            if (!market.has(FlowTable.Column.RECENT_PRICE, i)) return;
+
+            double demandMkt = 0.0;
+            if (seller.has(FlowTable.Column.EXECU_FEE, i)) {
+                demandMkt = getDemandFromMkt(
+                        market.get(FlowTable.Column.RECENT_PRICE, i),
+                        seller.get(FlowTable.Column.EXECU_FEE, i),
+                        table.get(CONTRACT_LEVEL, i));
+            }
+            table.set(DEMAND_FROM_MKT, i, demandMkt);
+        });
     }
 
+    /**
+     * The method calculates both the quantity purchased from the seller q and from the Market x
+     * of every flow with a spot market price, in one batch pass
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     */
+    public void setDemand(FlowTable seller, FlowTable market) {
+        setDemand(seller, market, null);
+    }
 
     /**
-     * The helper method helps calculate the optimal derivative of WTP - U'
-     * @param prices sample prices of one od flow
-     * @param right the right result of the equation to get optimal Q
-     * @param lb lower bound of U_prime
-     * @param ub upper bound of U_prime
-     * @param threshold the stop condition
-     * @return the optimal U_prime which is the output of optimal Q
-     */
-    private Double calculateUPrimeHelper(
-            List<Double> prices, Double right, Double lb, Double ub, Double threshold){
-//        double right = getRightResult(prices, s, g);
-        double left_lb = getExpectedValue(prices, lb);
-        double left_ub = getExpectedValue(prices, ub);
-
-        if (right < left_lb || right > left_ub) return -1.0;
-        double temp = getExpectedValue(prices, (lb + ub) / 2.0);
-
-        if (Math.abs(left_ub - left_lb) < threshold) {
-          return left_ub;
-        } else {
-            if (right >= left_lb && right < temp) {
-                left_ub = temp;
-//                calculateUPrimeHelper(prices, s, g, lb, (lb + ub) / 2.0, threshold);
-                calculateUPrimeHelper(prices, right, lb, (lb + ub) / 2.0, threshold);
-            } else if (right >= temp && right <= left_ub) {
-                left_lb = temp;
-//                calculateUPrimeHelper(prices, s, g, (lb + ub) / 2.0, ub, threshold);
-                calculateUPrimeHelper(prices, right, (lb + ub) / 2.0, ub, threshold);
+     * The method recalculates q and x of some flows only, in one batch pass
+     * @param seller the Seller's flow table holding the execution fee g
+     * @param market the Market's flow table holding the spot market price Ps
+     * @param ids the flow ids to recalculate, null recalculates every flow
+     */
+    public void setDemand(FlowTable seller, FlowTable market, int[] ids) {
+        checkIndex(seller);
+        checkIndex(market);
+        table.ensureCapacity(DEMAND_FROM_SELLER);
+        table.ensureCapacity(DEMAND_FROM_MKT);
+        int n = ids == null ? flows.size() : ids.length;
+        Metrics m = metrics;
+        long start = m == null ? 0L : m.start();
+        FlowTasks.forEachRange(pool, n, (from, to) -> {
+            // gather the flows of the range into primitive arrays, run the kernel, scatter back
+            int len = to - from;
+            int[] slot = new int[len];
+            double[] price = new double[len];
+            double[] execuFee = new double[len];
+            double[] contractLevel = new double[len];
+            int k = 0;
+            for (int j = from; j < to; j++) {
+                int i = ids == null ? j : ids[j];
+                if (!market.has(FlowTable.Column.RECENT_PRICE, i)) continue;
+                slot[k] = i;
+                price[k] = market.get(FlowTable.Column.RECENT_PRICE, i);
+                execuFee[k] = seller.has(FlowTable.Column.EXECU_FEE, i)
+                        ? seller.get(FlowTable.Column.EXECU_FEE, i) : Double.NaN;
+                contractLevel[k] = table.get(CONTRACT_LEVEL, i);
+                k++;
             }
-        }
-        return -1.0;
+            double[] fromSeller = new double[k];
+            double[] fromMkt = new double[k];
+            DemandKernel.demand(price, execuFee, contractLevel, fromSeller, fromMkt, 0, k);
+            for (int j = 0; j < k; j++) {
+                table.set(DEMAND_FROM_SELLER, slot[j], fromSeller[j]);
+                table.set(DEMAND_FROM_MKT, slot[j], fromMkt[j]);
+            }
+        });
+        if (m != null) m.stop(Metrics.Phase.DEMAND, start, n);
+    }
+
+    /** Calculate the expected value given price distribution - G(a) */
+    private Double getExpectedValue(GFunction prices, Double a) {
+        return prices.value(a);
+    }
+
+    /** Return result of the right part */
+    private Double getRightResult(GFunction prices, Double s, Double g) {
+        return s + getExpectedValue(prices, g);
     }
 
 
     /**
      * The method calculates the optimal WTP_prime U' which results to the optimal contract level Q
-     * @param prices sample prices of one od flow
+     * @param prices price distribution of one od flow
      * @param s the reservation fee per unit
      * @param g the execution fee per unit
      * @param lb the lower bound of U'
      * @param ub the upper bound of U'
      * @param threshold the stop condition
-     * @return the optimal WTP_prime U'
+     * @param guess the U' to warm-start from, NaN searches the full bracket
+     * @return the optimal WTP_prime U', or -1.0 when no contract is worth buying
      */
     private Double calculateUPrime(
-            List<Double> prices, Double s, Double g, Double lb, Double ub, Double threshold) {
+            GFunction prices, Double s, Double g, Double lb, Double ub, Double threshold, double guess) {
         double right = getRightResult(prices, s, g);
-        return calculateUPrimeHelper(prices, right, lb, ub, threshold);
+        SolverState state = solverState;
+        double width = state == null ? 0.0 : state.getWidth();
+        return UPrimeSolver.solve(prices, right, lb, ub, threshold, metrics, guess, width);
+    }
+
+
+    /**
+     * The method calculates the optimal contract level Q of one flow
+     * @param prices price distribution of the flow
+     * @param s the reservation fee per unit
+     * @param g the execution fee per unit
+     * @param K the capacity of the Seller
+     * @param threshold the stop condition
+     * @param id the flow id whose last U' is warm-started from, -1 for none
+     * @return the optimal contract level Q
+     */
+    double getOptimalContractLevel(
+            PriceStats prices, double s, double g, double K, double threshold, int id) {
+        double P_u = prices.max();
+        double P_d = prices.min();
+        if ((g >= Math.min(100, P_u-Math.sqrt(2*s*(P_u-P_d)))) || (s >= 100)) {
+            if (metrics != null) metrics.increment(Metrics.Counter.EARLY_EXIT_Q);
+            return 0.0;
+        }
+        double lb = getWTPPrime(K);
+//        double ub = getWTPPrime(0.1);
+        double ub = getWTPPrime(0.0);
+
+        SolverState state = id < 0 ? null : solverState;
+        DecisionCache cache = this.cache;
+        double[] decision = cache == null ? null : cache.get(DecisionCache.Kind.CONTRACT, prices, s, g, K, threshold);
+        double last = decision != null || state == null ? Double.NaN : state.last(id, prices, s, g, K, threshold);
+        if (!Double.isNaN(last)) {
+            if (metrics != null) metrics.increment(Metrics.Counter.SOLVER_WARM_STARTS);
+            decision = new double[]{last, getDemand(last)};
+        } else if (decision == null) {
+            double guess = state == null ? Double.NaN : state.guess(id, s, g, K);
+            decision = solveContractLevel(prices, s, g, lb, ub, threshold, guess);
+            if (cache != null) cache.put(DecisionCache.Kind.CONTRACT, prices, new double[]{s, g, K, threshold}, decision);
+        }
+        if (state != null && decision[0] > lb && decision[0] < ub) {
+            state.record(id, prices, s, g, K, threshold, decision[0]);
+        }
+        return decision[1];
     }
 
+    /** Solve U' of one flow and its contract level Q, U' is -1.0 when no contract is worth buying */
+    private double[] solveContractLevel(
+            PriceStats prices, double s, double g, double lb, double ub, double threshold, double guess) {
+        if (s + getExpectedValue(prices, g) > getExpectedValue(prices, ub)) {
+            return new double[]{-1.0, 0.0};
+        }
+        double optimalUPrime = calculateUPrime(prices, s, g, lb, ub, threshold, guess);
+        return new double[]{optimalUPrime, optimalUPrime == -1.0 ? 0.0 : getDemand(optimalUPrime)};
+    }
 
     /**
      * The method calculate the optimal contract level Q for the Buyer
@@ -190,56 +348,160 @@ public class Buyer {
             HashMap<String, Double> capacity,
             Double threshold
     ) {
-        contractLevel = new HashMap<String, Double>();
+        table.clear(CONTRACT_LEVEL);
         for (Map.Entry<String, List<Double>> entry : mktPrices.entrySet()) {
             String od = entry.getKey();
-            List<Double> prices = entry.getValue();
+            int id = flows.add(od);
+            PriceStats prices = PriceStats.of(priceStats, id, entry.getValue());
 
-            double optimalQ;
             double s = reservPrices.get(od);
             double g = execuPrices.get(od);
             double K = capacity.get(od);
+            table.set(CONTRACT_LEVEL, id, getOptimalContractLevel(prices, s, g, K, threshold, -1));
+        }
+    }
+
+    /**
+     * The method calculate the optimal contract level Q for the Buyer, by flow id
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     * @param seller the Seller's flow table holding s, g and K
+     * @param threshold the stop condition
+     */
+    public void setOptimalContractLevel(GFunction[] prices, FlowTable seller, double threshold) {
+        checkIndex(seller);
+        table.clear(CONTRACT_LEVEL);
+        updateContractLevel(prices, seller, threshold, null);
+    }
+
+    /**
+     * The method recalculates the optimal contract level Q of some flows only, the others are kept
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     * @param seller the Seller's flow table holding s, g and K
+     * @param threshold the stop condition
+     * @param ids the flow ids to recalculate
+     */
+    public void setOptimalContractLevel(GFunction[] prices, FlowTable seller, double threshold, int[] ids) {
+        checkIndex(seller);
+        updateContractLevel(prices, seller, threshold, ids);
+    }
 
-            double P_u = Collections.max(prices);
-            double P_d = Collections.min(prices);
-            double mu = 1.0*prices.stream().mapToDouble(Double::doubleValue).sum()/prices.size();
-            if ((g >= Math.min(100, P_u-Math.sqrt(2*s*(P_u-P_d)))) || (s >= 100)) {
-                this.contractLevel.put(od, 0.0);
-            } else {
-                double lb = getWTPPrime(K);
-//            double ub = getWTPPrime(0.1);
-                double ub = getWTPPrime(0.0);
-
-                if (s + getExpectedValue(prices, g) > getExpectedValue(prices, getWTPPrime(0.0))) {
-                    optimalQ = 0.0;
-                } else {
-//                double optimalUPrime = calculateUPrimeHelper(prices, s, g, lb, ub, threshold);
-                    double optimalUPrime = calculateUPrime(prices, s, g, lb, ub, threshold);
-                    if (optimalUPrime == -1.0) {
-                        optimalQ = 0.0;
-                    } else {
-                        optimalQ = getDemand(optimalUPrime);
-                    }
-                }
-                this.contractLevel.put(od, optimalQ);
+    private void updateContractLevel(GFunction[] prices, FlowTable seller, double threshold, int[] ids) {
+        table.ensureCapacity(CONTRACT_LEVEL);
+        if (solverState != null) solverState.ensureCapacity(prices.length);
+        Metrics m = metrics;
+        long start = m == null ? 0L : m.start();
+        FlowTasks.forEach(pool, prices.length, ids, i -> {
+            if (prices[i] == null) return;
+
+            double s = seller.get(FlowTable.Column.RESERV_FEE, i);
+            double g = seller.get(FlowTable.Column.EXECU_FEE, i);
+            double K = seller.get(FlowTable.Column.CAPACITY, i);
+            double Q = getOptimalContractLevel(PriceStats.of(prices[i]), s, g, K, threshold, i);
+            if (m != null) {
+                if (Q == 0.0) m.increment(Metrics.Counter.ZERO_Q);
+                m.check(Q);
             }
+            table.set(CONTRACT_LEVEL, i, Q);
+        });
+        if (m != null) m.stop(Metrics.Phase.CONTRACT, start, ids == null ? prices.length : ids.length);
+    }
+
+    /** Make sure another flow table shares the Buyer's flow dictionary */
+    private void checkIndex(FlowTable other) {
+        if (other.getIndex() != flows) {
+            throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
         }
     }
 
 
+    /**
+     * Set the pool the by-index optimizations run on
+     * @param pool the pool splitting the flows, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the metrics the by-index optimizations are timed and counted in
+     * @param metrics the metrics of the run, null records nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set whether the by-index contract level optimization warm-starts the U' search of every
+     * flow from its last solution, which it does by default
+     * @param warmStart true to keep per-flow solver state, false to always search the full bracket
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.solverState = warmStart ? new SolverState() : null;
+    }
+
+    /** Get the per-flow solver state, null if warm starts are off */
+    public SolverState getSolverState() {
+        return this.solverState;
+    }
+
+    /**
+     * Set the cache the contract level of flows with nearly the same prices, s, g and K is shared in
+     * @param cache the cache, may be shared with other Buyers, null solves every flow
+     */
+    public void setCache(DecisionCache cache) {
+        this.cache = cache;
+    }
+
+    /** Get the cache of contract levels, null if there is none */
+    public DecisionCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Share the price distributions of the Market with the methods taking price samples by flow name,
+     * so they are not rebuilt from the samples on every call
+     * @param priceStats price distributions indexed by flow id, e.g. Market.getPriceStats(), null builds them from the samples
+     */
+    public void setPriceStats(PriceStats[] priceStats) {
+        this.priceStats = priceStats;
+    }
+
+    /** Get the shared price distributions, null if there are none */
+    public PriceStats[] getPriceStats() {
+        return this.priceStats;
+    }
+
+    /**
+     * Set the seed of the per-flow random streams, e.g. the initial contract level
+     * @param seed the seed of the run
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Get the seed of the per-flow random streams */
+    public long getSeed() {
+        return this.seed;
+    }
+
     /** Get contract level Q */
     public HashMap<String, Double> getContractLevel() {
-        return this.contractLevel;
+        return this.table.toMap(CONTRACT_LEVEL);
     }
 
     /** Get quantity purchased from the Seller q */
     public HashMap<String, Double> getDemandFromSeller() {
-        return this.demandFromSeller;
+        return this.table.toMap(DEMAND_FROM_SELLER);
     }
 
     /** Get quantity purchased from the market x */
     public HashMap<String, Double> getDemandFromMarket() {
-        return this.demandFromMkt;
+        return this.table.toMap(DEMAND_FROM_MKT);
+    }
+
+    /** Get the Buyer's decisions Q, q and x by flow id */
+    public FlowTable getFlowTable() {
+        return this.table;
     }
 
 }
@@ -0,0 +1,249 @@
+/**
+ * The class runs the Market, the Buyer and the Seller over a flow file too large to
+ * hold at once. The file is streamed in chunks of flow records, every chunk gets its
+ * own Market, Buyer and Seller, its rows are written out and the chunk is dropped,
+ * so memory is bounded by the chunk size instead of the number of flows.
+ *
+ * A loader thread reads the next chunk and generates its price samples and G tables
+ * while the calling thread optimizes the current one. At most QUEUED generated
+ * chunks wait, so no more than QUEUED + 2 chunks are resident at any time.
+ *
+ * Every chunk draws from its own seed derived from the run's seed and the chunk
+ * number, so a run is reproducible for a given chunk size.
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public class ChunkedPipeline {
+    private static final int QUEUED = 1;
+
+    /** A generated chunk, or the end of the file when market is null */
+    private static class Chunk {
+        final int number;
+        final Market market;
+
+        Chunk(int number, Market market) {
+            this.number = number;
+            this.market = market;
+        }
+    }
+
+    private final PriceModel.Factory factory;
+    private ForkJoinPool pool;
+    private long seed;
+    private int sampleSize;
+    private int chunkSize;
+    private int rounds;
+    private double threshold;
+    private double m_lb;
+    private double m_ub;
+    private Metrics metrics;
+
+    private long flowCount;
+    private int chunkCount;
+
+    /**
+     * Create a pipeline generating the price samples of every chunk through a price model
+     * @param factory creates the price model of each flow
+     */
+    public ChunkedPipeline(PriceModel.Factory factory) {
+        this.factory = factory;
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.sampleSize = 30;
+        this.chunkSize = 1 << 20;
+        this.rounds = 50;
+        this.threshold = 4.0;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+    }
+
+    /**
+     * Set the pool both the generation and the optimization of a chunk run on
+     * @param pool the pool splitting the flows of a chunk, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Set the seed every chunk's seed is derived from */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Set the size of sample price for each flow */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /** Set the number of flow records per chunk */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** Set the maximum number of equilibrium rounds of every chunk */
+    public void setRounds(int rounds) {
+        this.rounds = rounds;
+    }
+
+    /** Set the stop condition of the Buyer's contract level optimization */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Set the bounds of probability to enter market of the Seller's reservation fee */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /**
+     * Set the metrics every chunk's Market, Buyer and Seller are timed and counted in
+     * @param metrics the metrics of the run, null records nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The method runs every chunk of a flow file and writes the results of every flow
+     * @param csvFile file path containing flow records
+     * @param out the sink, rows are written chunk by chunk in file order, it is not closed
+     * @throws IOException if the file cannot be read or the output cannot be written
+     */
+    public void run(String csvFile, ResultSink out) throws IOException {
+        flowCount = 0;
+        chunkCount = 0;
+        BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUED);
+        IOException[] failure = new IOException[1];
+        RuntimeException[] error = new RuntimeException[1];
+
+        Thread loader = new Thread(() -> {
+            try {
+                new FlowLoader(new FlowIndex()).load(csvFile, chunkSize,
+                        (ods, number) -> put(queue, new Chunk(number, generate(ods, number))));
+            } catch (IOException e) {
+                failure[0] = e;
+            } catch (RuntimeException e) {
+                error[0] = e;
+            } finally {
+                try {
+                    put(queue, new Chunk(-1, null));
+                } catch (InterruptedIOException e) {
+                    // the optimizing thread gave up and no longer takes chunks
+                }
+            }
+        }, "chunk-loader");
+        loader.setDaemon(true);
+        loader.start();
+
+        try {
+            while (true) {
+                Chunk chunk = queue.take();
+                if (chunk.market == null) break;
+                optimize(chunk, out);
+            }
+            loader.join();
+        } catch (InterruptedException e) {
+            loader.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("chunked pipeline interrupted");
+        } catch (IOException | RuntimeException e) {
+            // unblock the loader, it stops at its next chunk
+            loader.interrupt();
+            throw e;
+        }
+        if (failure[0] != null) throw failure[0];
+        if (error[0] != null) throw error[0];
+    }
+
+    /** Hand a chunk to the optimizing thread, waiting while the queue is full */
+    private static void put(BlockingQueue<Chunk> queue, Chunk chunk) throws InterruptedIOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("chunk loader interrupted");
+        }
+    }
+
+    /** Generate the price samples and G tables of a chunk */
+    private Market generate(List<String> ods, int number) {
+        Market market = new Market();
+        market.setSeed(FlowRandom.mix64(seed + number));
+        market.setPool(pool);
+        market.setMetrics(metrics);
+        market.setOdPrice(sampleSize, ods, factory);
+        market.getPriceStats();
+        return market;
+    }
+
+    /** Run the Buyer and the Seller of a chunk and write its rows */
+    private void optimize(Chunk chunk, ResultSink out) throws IOException {
+        Market market = chunk.market;
+        List<String> ods = market.getOds();
+        FlowIndex flows = market.getFlowIndex();
+        long chunkSeed = FlowRandom.mix64(seed + chunk.number);
+
+        Buyer buyer = new Buyer(flows);
+        buyer.setSeed(chunkSeed);
+        buyer.setPool(pool);
+        buyer.setMetrics(metrics);
+        buyer.initializeContractLevel(ods);
+
+        Seller seller = new Seller(flows);
+        seller.setSeed(chunkSeed);
+        seller.setPool(pool);
+        seller.setMetrics(metrics);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+
+        Equilibrium equilibrium = new Equilibrium(buyer, seller, market.getPriceStats());
+        equilibrium.setThreshold(threshold);
+        equilibrium.setEntryBounds(m_lb, m_ub);
+        equilibrium.setMaxIterations(rounds);
+        equilibrium.run();
+        buyer.setDemand(seller.getFlowTable(), market.getFlowTable());
+
+        out.write(ods, buyer, seller);
+        flowCount += ods.size();
+        chunkCount++;
+    }
+
+    /** Get the number of flows written by the last run */
+    public long getFlowCount() {
+        return flowCount;
+    }
+
+    /** Get the number of chunks of the last run */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: ChunkedPipeline <flow csv> <output .csv or binary file> [chunk size] [rounds]");
+            return;
+        }
+        ChunkedPipeline pipeline = new ChunkedPipeline(UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        pipeline.setSeed(20190115L);
+        pipeline.setPool(ForkJoinPool.commonPool());
+        if (args.length > 2) pipeline.setChunkSize(Integer.parseInt(args[2]));
+        if (args.length > 3) pipeline.setRounds(Integer.parseInt(args[3]));
+        Metrics metrics = new Metrics();
+        pipeline.setMetrics(metrics);
+
+        try (ResultSink out = ResultSink.open(args[1])) {
+            pipeline.run(args[0], out);
+        }
+        System.out.println(pipeline.getFlowCount() + " flows in " + pipeline.getChunkCount() + " chunks");
+        System.out.print(metrics.toText());
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * The class writes results to a compact binary file, column by column. A 64 byte
+ * header (magic, version, number of columns, rows and blocks) is followed by one
+ * block per batch:
+ *
+ *   rows, bytes of the flow records, the length of every flow record, the flow
+ *   records in UTF-8 padded to 8 bytes, then every column as rows doubles
+ *
+ * All values are little-endian. The header is completed when the sink is closed,
+ * a file with zero blocks in its header was not closed.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+public class ColumnarResultSink implements ResultSink {
+    private static final long MAGIC = 0x3153455253434F42L; // "OBCSRES1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+
+    private final FileChannel channel;
+    private long pos;
+    private long rows;
+    private int blocks;
+    private ByteBuffer buffer;
+
+    /**
+     * Create a sink writing to a file
+     * @param file the file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public ColumnarResultSink(String file) throws IOException {
+        this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.pos = HEADER;
+        this.buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(ResultBatch.NAMES.length).putLong(rows).putInt(blocks);
+        header.clear();
+        write(channel, header, 0);
+    }
+
+    @Override
+    public void accept(ResultBatch batch) throws IOException {
+        int n = batch.size();
+        if (n == 0) return;
+        byte[][] names = new byte[n][];
+        int bytes = 0;
+        for (int i = 0; i < n; i++) {
+            names[i] = batch.od(i).getBytes(StandardCharsets.UTF_8);
+            bytes += names[i].length;
+        }
+        int columns = ResultBatch.NAMES.length;
+        long size = 8L + 4L * n + align(bytes) + 8L * columns * n;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("result batch of " + size + " bytes is too large");
+        }
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        buffer.putInt(n).putInt(bytes);
+        for (byte[] name : names) {
+            buffer.putInt(name.length);
+        }
+        for (byte[] name : names) {
+            buffer.put(name);
+        }
+        buffer.position(8 + 4 * n + (int) align(bytes));
+        for (int c = 0; c < columns; c++) {
+            buffer.asDoubleBuffer().put(batch.column(c), 0, n);
+            buffer.position(buffer.position() + 8 * n);
+        }
+        buffer.flip();
+        pos = write(channel, buffer, pos);
+        rows += n;
+        blocks++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeHeader();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The method reads a file written by the sink and passes its blocks to another sink, e.g. to convert it
+     * @param file the file
+     * @param sink receives every block as a batch, it is not closed
+     * @return the number of rows read
+     * @throws IOException if the file cannot be read or is not a result file
+     */
+    public static long read(String file, ResultSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a result file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported result version " + version);
+            }
+            int columns = header.getInt();
+            long rows = header.getLong();
+            int blocks = header.getInt();
+            if (columns != ResultBatch.NAMES.length) {
+                throw new IOException(file + " holds " + columns + " columns");
+            }
+
+            long pos = HEADER;
+            double[] row = new double[columns];
+            for (int k = 0; k < blocks; k++) {
+                ByteBuffer head = read(channel, pos, 8);
+                int n = head.getInt();
+                int bytes = head.getInt();
+                ByteBuffer block = read(channel, pos + 8, 4L * n + align(bytes) + 8L * columns * n);
+                int[] len = new int[n];
+                block.asIntBuffer().get(len);
+                block.position(4 * n);
+                double[][] values = new double[columns][n];
+                int start = 4 * n + (int) align(bytes);
+                for (int c = 0; c < columns; c++) {
+                    block.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(start + 8 * c * n)
+                            .asDoubleBuffer().get(values[c]);
+                }
+                ResultBatch batch = new ResultBatch(n);
+                byte[] name = new byte[0];
+                for (int i = 0; i < n; i++) {
+                    if (name.length < len[i]) name = new byte[len[i]];
+                    block.get(name, 0, len[i]);
+                    for (int c = 0; c < columns; c++) {
+                        row[c] = values[c][i];
+                    }
+                    batch.add(new String(name, 0, len[i], StandardCharsets.UTF_8), row);
+                }
+                sink.accept(batch);
+                pos += 8 + block.capacity();
+            }
+            return rows;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("result block of " + size + " bytes is too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new IOException("result file is truncated at position " + (pos + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return pos;
+    }
+
+    /** Round up to a multiple of 8 bytes */
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * The class writes results as csv rows "od,Q,q,x,s,g,K,b" through a buffered writer,
+ * one batch at a time.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+
+public class CsvResultSink implements ResultSink {
+    private final Writer out;
+    private final StringBuilder row;
+    private final boolean closeOut;
+
+    /**
+     * Create a sink writing to a file
+     * @param file the csv file, replaced if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public CsvResultSink(String file) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    /**
+     * Create a sink writing to a writer, closed along with the sink
+     * @param out the writer, e.g. buffered
+     * @throws IOException if the header cannot be written
+     */
+    public CsvResultSink(Writer out) throws IOException {
+        this(out, true);
+    }
+
+    private CsvResultSink(Writer out, boolean closeOut) throws IOException {
+        this.out = out;
+        this.closeOut = closeOut;
+        this.row = new StringBuilder();
+        out.write("od," + String.join(",", ResultBatch.NAMES));
+        out.write('\n');
+    }
+
+    /** Create a sink writing to standard output, which is flushed but left open on close */
+    public static CsvResultSink toStandardOutput() throws IOException {
+        return new CsvResultSink(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16),
+                false);
+    }
+
+    @Override
+    public void accept(ResultBatch batch) throws IOException {
+        int columns = ResultBatch.NAMES.length;
+        for (int i = 0; i < batch.size(); i++) {
+            row.setLength(0);
+            row.append(batch.od(i));
+            for (int c = 0; c < columns; c++) {
+                row.append(',').append(batch.get(c, i));
+            }
+            row.append('\n');
+            out.append(row);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeOut) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * The class memoizes the decisions of flows whose inputs are nearly the same. An
+ * entry is keyed by a fingerprint of the flow's price distribution together with
+ * the decision's inputs, every number optionally rounded to fewer bits of mantissa, so lanes
+ * sharing fees, capacity and prices are solved once:
+ *
+ *   CONTRACT    (G, s, g, K, threshold)      -> U', Q    the Buyer's solve
+ *   RESERV_FEE  (G, gamma, m, s, g, Q, K, b) -> s_opt    the Seller's fee
+ *
+ * The cache is bounded. It is split into segments, each evicting its least recently
+ * used entry once full, so threads optimizing different flows rarely wait on
+ * one another and one cache may be shared by several Buyers and Sellers.
+ */
+
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class DecisionCache {
+    private static final int SEGMENTS = 16;
+    private static final int MANTISSA_BITS = 52;
+
+    /** Kinds of decisions held in the cache */
+    public enum Kind {
+        CONTRACT,
+        RESERV_FEE
+    }
+
+    /** Quantized inputs of one decision */
+    private static class Key {
+        final long[] inputs;
+        final int hash;
+
+        Key(long[] inputs) {
+            this.inputs = inputs;
+            this.hash = Arrays.hashCode(inputs);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(inputs, ((Key) o).inputs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /** An access-ordered map dropping its eldest entry beyond its capacity */
+    private static class Segment extends LinkedHashMap<Key, double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private long evictions;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest) {
+            if (size() <= capacity) return false;
+            evictions++;
+            return true;
+        }
+    }
+
+    private final Segment[] segments;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final int capacity;
+    private int bits;
+
+    /**
+     * Create a cache holding at most about capacity decisions
+     * @param capacity the number of decisions, spread evenly over the segments
+     */
+    public DecisionCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("cache capacity must be positive");
+        this.capacity = capacity;
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS));
+        }
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.bits = MANTISSA_BITS;
+    }
+
+    /**
+     * Set how coarsely the inputs are rounded before they are compared, the cache is cleared
+     * @param bits the bits of mantissa kept, 20 matches inputs within about 1e-6 relative, 52, the default, only equal ones
+     */
+    public void setPrecision(int bits) {
+        if (bits < 1 || bits > MANTISSA_BITS) throw new IllegalArgumentException("precision must be in [1, 52]");
+        this.bits = bits;
+        clear();
+    }
+
+    /** Get the bits of mantissa the inputs are rounded to */
+    public int getPrecision() {
+        return bits;
+    }
+
+    /**
+     * The method looks up a decision
+     * @param kind the kind of decision
+     * @param prices price distribution of the flow
+     * @param inputs the inputs of the decision, in the order of its kind
+     * @return the cached values of the decision, null on a miss
+     */
+    public double[] get(Kind kind, PriceStats prices, double... inputs) {
+        Key key = key(kind, prices, inputs);
+        Segment segment = segment(key);
+        double[] values;
+        synchronized (segment) {
+            values = segment.get(key);
+        }
+        if (values == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return values;
+    }
+
+    /**
+     * The method stores a decision, evicting the least recently used one of its segment if it is full
+     * @param kind the kind of decision
+     * @param prices price distribution of the flow
+     * @param inputs the inputs of the decision, in the order of its kind
+     * @param values the values of the decision, kept as given
+     */
+    public void put(Kind kind, PriceStats prices, double[] inputs, double... values) {
+        Key key = key(kind, prices, inputs);
+        Segment segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, values);
+        }
+    }
+
+    private Key key(Kind kind, PriceStats prices, double[] inputs) {
+        long[] res = new long[inputs.length + 2];
+        res[0] = kind.ordinal();
+        res[1] = fingerprint(prices, bits);
+        for (int i = 0; i < inputs.length; i++) {
+            res[i + 2] = quantize(inputs[i], bits);
+        }
+        return new Key(res);
+    }
+
+    private Segment segment(Key key) {
+        return segments[(int) FlowRandom.mix64(key.hash) & (SEGMENTS - 1)];
+    }
+
+    /** Round a number to some bits of mantissa, to the nearest, NaN and infinities are kept and both zeros meet */
+    static long quantize(double value, int bits) {
+        if (value == 0.0) return 0L;
+        long raw = Double.doubleToLongBits(value);
+        if (!Double.isFinite(value) || bits >= MANTISSA_BITS) return raw;
+        int drop = MANTISSA_BITS - bits;
+        return (raw + (1L << (drop - 1))) & -(1L << drop);
+    }
+
+    /**
+     * The method hashes a price distribution: the sorted samples of a G table, else the extremes,
+     * the mean and G at a few points between the extremes. The hash is kept in the statistics
+     * @param prices price distribution of the flow
+     * @param bits the bits of mantissa every number is rounded to
+     * @return the fingerprint of the distribution
+     */
+    static long fingerprint(PriceStats prices, int bits) {
+        long[] memo = prices.fingerprint;
+        if (memo != null && memo[0] == bits) return memo[1];
+
+        GFunction g = prices.prices();
+        long h = FlowRandom.mix64(g.getClass().getName().hashCode());
+        if (g instanceof GTable) {
+            DoubleBuffer sorted = ((GTable) g).sorted();
+            h = FlowRandom.mix64(h ^ sorted.remaining());
+            while (sorted.hasRemaining()) {
+                h = FlowRandom.mix64(h ^ quantize(sorted.get(), bits));
+            }
+        } else {
+            double lo = prices.min();
+            double hi = prices.max();
+            h = FlowRandom.mix64(h ^ quantize(lo, bits));
+            h = FlowRandom.mix64(h ^ quantize(hi, bits));
+            h = FlowRandom.mix64(h ^ quantize(prices.mean(), bits));
+            for (int k = 1; k < 8; k++) {
+                h = FlowRandom.mix64(h ^ quantize(g.value(lo + (hi - lo) * k / 8.0), bits));
+            }
+        }
+        prices.fingerprint = new long[]{bits, h};
+        return h;
+    }
+
+    /** Forget every decision, the statistics are kept */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /** Get the number of decisions held */
+    public int size() {
+        int res = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.size();
+            }
+        }
+        return res;
+    }
+
+    /** Get the number of decisions the cache holds at most */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Get the number of lookups answered from the cache */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** Get the number of lookups not answered from the cache */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** Get the number of decisions dropped to make room */
+    public long getEvictions() {
+        long res = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.evictions;
+            }
+        }
+        return res;
+    }
+
+    /** Get the share of lookups answered from the cache, NaN before the first lookup */
+    public double getHitRate() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? Double.NaN : (double) h / total;
+    }
+
+    /** Reset the hit, miss and eviction statistics */
+    public void resetStats() {
+        hits.reset();
+        misses.reset();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.evictions = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "decision cache: %d hits, %d misses, hit rate %.4f, %d/%d held, %d evicted",
+                getHits(), getMisses(), getHitRate(), size(), capacity, getEvictions());
+    }
+}
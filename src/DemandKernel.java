@@ -0,0 +1,45 @@
+/**
+ * The class computes the Buyer's demand of many flows in one pass over primitive
+ * arrays: the quantity purchased from the Seller q and from the Market x. The loop
+ * body has no data dependent branch the JIT cannot turn into conditional moves.
+ */
+
+public class DemandKernel {
+
+    private DemandKernel() {
+    }
+
+    /** Calculate derivative of willingness-to-pay value given demand - U'(d) */
+    public static double wtpPrime(double demand) {
+        return 100.0 * Math.exp(-0.01 * demand);
+    }
+
+    /** Calculate demand value given price - D(p) */
+    public static double demand(double price) {
+        return -100.0 * Math.log(price / 100.0);
+    }
+
+    /**
+     * The method calculates q and x of the flows in [from, to)
+     * @param price Ps - the spot market price
+     * @param execuFee g - the execution fee per unit, NaN for flows the Seller does not serve
+     * @param contractLevel Q - the contract level
+     * @param fromSeller receives q - the quantity purchased from the Seller
+     * @param fromMkt receives x - the quantity purchased from the Market
+     * @param from the first flow
+     * @param to the flow after the last one
+     */
+    public static void demand(double[] price, double[] execuFee, double[] contractLevel,
+                              double[] fromSeller, double[] fromMkt, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double p = price[i];
+            double g = execuFee[i];
+            double Q = contractLevel[i];
+            double d = demand(p);
+            double w = wtpPrime(Q);
+            // a NaN price or fee fails every comparison and buys nothing
+            fromSeller[i] = p > g ? Q : 0.0;
+            fromMkt[i] = p < g ? d : (g <= p && p < w ? d - Q : 0.0);
+        }
+    }
+}
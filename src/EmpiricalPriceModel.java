@@ -0,0 +1,95 @@
+/**
+ * The class models the market price of a flow with the empirical distribution of
+ * its historical prices. Samples are drawn from the history with replacement and
+ * G(a) is the exact G table of the history.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+
+public class EmpiricalPriceModel implements PriceModel {
+    private final double[] history;
+    private final GTable table;
+
+    /**
+     * @param history the historical prices of the flow
+     */
+    public EmpiricalPriceModel(double[] history) {
+        if (history.length == 0) {
+            throw new IllegalArgumentException("empty price history");
+        }
+        this.history = history.clone();
+        this.table = new GTable(this.history);
+    }
+
+    /**
+     * The method loads the historical prices of every flow from a csv file of "od,price" lines,
+     * a first line whose price is not a number is taken as the header
+     * @param csvFile csv file path
+     * @return the factory of the models, flows without history get no model
+     * @throws IOException if the file cannot be read or a price is not a number
+     */
+    public static PriceModel.Factory load(String csvFile) throws IOException {
+        Map<String, double[]> histories = new HashMap<String, double[]>();
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(csvFile), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (lineNo == 1 && line.startsWith("\uFEFF")) line = line.substring(1);
+                if (line.trim().isEmpty()) continue;
+                int comma = line.lastIndexOf(',');
+                if (comma < 0) {
+                    throw new IOException("line " + lineNo + " of " + csvFile + ": expected od,price");
+                }
+                String od = line.substring(0, comma).trim();
+                double price;
+                try {
+                    price = Double.parseDouble(line.substring(comma + 1).trim());
+                } catch (NumberFormatException e) {
+                    if (lineNo == 1) continue;
+                    throw new IOException("line " + lineNo + " of " + csvFile + ": price is not a number");
+                }
+                double[] prices = histories.get(od);
+                int size = sizes.getOrDefault(od, 0);
+                if (prices == null) {
+                    prices = new double[16];
+                } else if (size == prices.length) {
+                    prices = Arrays.copyOf(prices, 2 * size);
+                }
+                prices[size] = price;
+                histories.put(od, prices);
+                sizes.put(od, size + 1);
+            }
+        }
+        Map<String, EmpiricalPriceModel> models = new HashMap<String, EmpiricalPriceModel>();
+        for (Map.Entry<String, double[]> entry : histories.entrySet()) {
+            String od = entry.getKey();
+            models.put(od, new EmpiricalPriceModel(Arrays.copyOf(entry.getValue(), sizes.get(od))));
+        }
+        return (od, rnd) -> models.get(od);
+    }
+
+    @Override
+    public void fill(SplittableRandom rnd, double[] out) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = history[rnd.nextInt(history.length)];
+        }
+    }
+
+    @Override
+    public GFunction expectedValue() {
+        return table;
+    }
+
+    /** Get the number of historical prices */
+    public int size() {
+        return history.length;
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * The class iterates the Stackelberg game between the Buyer and the Seller until
+ * their decisions settle. Every round optimizes the Buyer's contract level Q and
+ * then the Seller's reservation fee s and capacity K, but only for the flows
+ * whose s, g, K or Q moved more than epsilon in the previous round.
+ *
+ * A flow whose decision is NaN or infinite before or after a round has no
+ * distance to settle by, so its move is left out of the residuals and the flows
+ * ending the round non-finite are counted instead. They are still recomputed, and
+ * the equilibrium is not reached in a round some flow came back finite in.
+ */
+
+import java.util.*;
+
+
+public class Equilibrium {
+
+    /** Residuals of one round */
+    public static class Round {
+        public final int iteration;
+        public final int recomputed;
+        public final int moved;
+        public final double residualQ;
+        public final double residualS;
+        public final double residualK;
+        public final int nonFinite;
+
+        Round(int iteration, int recomputed, int moved, double residualQ, double residualS, double residualK) {
+            this(iteration, recomputed, moved, residualQ, residualS, residualK, 0);
+        }
+
+        Round(int iteration, int recomputed, int moved, double residualQ, double residualS, double residualK,
+              int nonFinite) {
+            this.iteration = iteration;
+            this.recomputed = recomputed;
+            this.moved = moved;
+            this.residualQ = residualQ;
+            this.residualS = residualS;
+            this.residualK = residualK;
+            this.nonFinite = nonFinite;
+        }
+
+        /** Get the largest move of any decision in the round, flows with a non-finite decision left out */
+        public double residual() {
+            return Math.max(residualQ, Math.max(residualS, residualK));
+        }
+
+        @Override
+        public String toString() {
+            String res = String.format("round %d: recomputed %d, moved %d, |dQ| %.6g, |ds| %.6g, |dK| %.6g",
+                    iteration, recomputed, moved, residualQ, residualS, residualK);
+            return nonFinite == 0 ? res : res + ", non-finite " + nonFinite;
+        }
+    }
+
+    private final Buyer buyer;
+    private final Seller seller;
+    private final GFunction[] prices;
+    private final List<Round> rounds;
+
+    private double threshold;
+    private double m_lb;
+    private double m_ub;
+    private double tolerance;
+    private double epsilon;
+    private int maxIterations;
+
+    /**
+     * Create the engine over a Buyer and a Seller sharing one flow dictionary
+     * @param buyer the Buyer
+     * @param seller the Seller
+     * @param prices price distributions indexed by flow id
+     */
+    public Equilibrium(Buyer buyer, Seller seller, GFunction[] prices) {
+        this.buyer = buyer;
+        this.seller = seller;
+        this.prices = prices;
+        this.rounds = new ArrayList<Round>();
+        this.threshold = 4.0;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+        this.tolerance = 1e-6;
+        this.epsilon = 1e-6;
+        this.maxIterations = 50;
+    }
+
+    /** Set the stop condition of the Buyer's contract level optimization */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Set the bounds of probability to enter market of the Seller's reservation fee */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /**
+     * Set when the equilibrium is reached and which flows are recomputed
+     * @param tolerance the largest move of any decision at the equilibrium
+     * @param epsilon a flow is recomputed in the next round if one of its s, g, K or Q moved more than this
+     */
+    public void setTolerance(double tolerance, double epsilon) {
+        this.tolerance = tolerance;
+        this.epsilon = epsilon;
+    }
+
+    /** Set the maximum number of rounds */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /** Check whether a decision moved, a decision staying NaN did not move */
+    private boolean moved(double before, double after) {
+        if (Double.isNaN(before) && Double.isNaN(after)) return false;
+        return !(Math.abs(after - before) <= epsilon);
+    }
+
+    /**
+     * The method runs rounds until every decision moves less than the tolerance
+     * @return true if the equilibrium was reached within the maximum number of rounds
+     */
+    public boolean run() {
+        rounds.clear();
+        FlowTable buyerTable = buyer.getFlowTable();
+        FlowTable sellerTable = seller.getFlowTable();
+
+        int n = prices.length;
+        int[] dirty = new int[n];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (prices[i] != null) dirty[size++] = i;
+        }
+        int[] ids = Arrays.copyOf(dirty, size);
+
+        double[] Q = new double[n];
+        double[] s = new double[n];
+        double[] g = new double[n];
+        double[] K = new double[n];
+        for (int iteration = 1; iteration <= maxIterations && ids.length > 0; iteration++) {
+            for (int i : ids) {
+                Q[i] = buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, i);
+                s[i] = sellerTable.get(FlowTable.Column.RESERV_FEE, i);
+                g[i] = sellerTable.get(FlowTable.Column.EXECU_FEE, i);
+                K[i] = sellerTable.get(FlowTable.Column.CAPACITY, i);
+            }
+
+            buyer.setOptimalContractLevel(prices, sellerTable, threshold, ids);
+            seller.setOptimalReserFee(prices, buyerTable, m_lb, m_ub, ids);
+            seller.setOptimalCapacity(prices, ids);
+
+            double dQ = 0.0, dS = 0.0, dK = 0.0;
+            int nonFinite = 0;
+            boolean recovered = false;
+            size = 0;
+            for (int i : ids) {
+                double newQ = buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, i);
+                double newS = sellerTable.get(FlowTable.Column.RESERV_FEE, i);
+                double newG = sellerTable.get(FlowTable.Column.EXECU_FEE, i);
+                double newK = sellerTable.get(FlowTable.Column.CAPACITY, i);
+                if (moved(Q[i], newQ) || moved(s[i], newS) || moved(g[i], newG) || moved(K[i], newK)) {
+                    dirty[size++] = i;
+                }
+                if (!finite(newQ, newS, newG, newK)) {
+                    nonFinite++;
+                } else if (!finite(Q[i], s[i], g[i], K[i])) {
+                    recovered = true;
+                } else {
+                    dQ = Math.max(dQ, Math.abs(newQ - Q[i]));
+                    dS = Math.max(dS, Math.abs(newS - s[i]));
+                    dK = Math.max(dK, Math.abs(newK - K[i]));
+                }
+            }
+            Round round = new Round(iteration, ids.length, size, dQ, dS, dK, nonFinite);
+            rounds.add(round);
+            if (round.residual() <= tolerance && !recovered) return true;
+            ids = Arrays.copyOf(dirty, size);
+        }
+        return ids.length == 0;
+    }
+
+    /** Check whether every decision of a flow is a number */
+    private static boolean finite(double Q, double s, double g, double K) {
+        return Double.isFinite(Q) && Double.isFinite(s) && Double.isFinite(g) && Double.isFinite(K);
+    }
+
+    /** Get the residuals of every round of the last run */
+    public List<Round> getRounds() {
+        return Collections.unmodifiableList(rounds);
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * The class evaluates the decisions of the Buyer and the Seller by Monte Carlo
+ * simulation of the spot price of every flow. A realization draws one spot price
+ * per flow, the Buyer then buys q from the Seller and x from the Market as in
+ * Buyer.setDemand, and the totals over all flows are recorded:
+ *
+ *   Buyer cost     s Q + g q + p x
+ *   Buyer surplus  U(q + x) - cost, U(d) = 10000 (1 - e^(-0.01 d)) the utility whose derivative is U'
+ *   Seller revenue s Q + (g - b) q, reservation plus execution minus marginal cost
+ *   Utilization    sum of q over sum of K
+ *
+ * Realizations run in batches, every block of flows accumulates its own totals of
+ * the batch before they are merged in block order, and the run stops early once
+ * every confidence interval is tight enough. A draw depends on the seed, the batch
+ * and the flow only, and the blocks on the number of flows only, so the estimates
+ * are the same for every pool.
+ */
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public class Evaluator {
+    private static final String[] NAMES = {"buyer cost", "buyer surplus", "seller revenue", "utilization"};
+    private static final int COST = 0;
+    private static final int SURPLUS = 1;
+    private static final int REVENUE = 2;
+    private static final int EXECUTED = 3;
+    private static final int METRICS = 4;
+    private static final int MIN_BLOCK = 64;
+    private static final int MAX_BLOCKS = 1024;
+
+    /** Mean of a total per realization with the half width of its confidence interval */
+    public static class Estimate {
+        public final String name;
+        public final double mean;
+        public final double halfWidth;
+        public final long realizations;
+
+        Estimate(String name, double mean, double halfWidth, long realizations) {
+            this.name = name;
+            this.mean = mean;
+            this.halfWidth = halfWidth;
+            this.realizations = realizations;
+        }
+
+        /** Check whether the half width is within a fraction of the mean */
+        public boolean isTight(double relativeError) {
+            return isTight(relativeError, 0.0);
+        }
+
+        /** Check whether the half width is within a fraction of the mean, or of the scale for a mean near 0 */
+        public boolean isTight(double relativeError, double scale) {
+            return halfWidth <= relativeError * Math.max(Math.abs(mean), scale);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.6g +/- %.3g (%d realizations)", name, mean, halfWidth, realizations);
+        }
+    }
+
+    private final Market market;
+    private final FlowTable buyer;
+    private final FlowTable seller;
+    private ForkJoinPool pool;
+    private long seed;
+    private int batchSize;
+    private long maxRealizations;
+    private double confidence;
+    private double relativeError;
+
+    private int evaluated;
+    private int skipped;
+
+    /**
+     * Create an evaluator of the current decisions
+     * @param market the Market giving the price distribution of every flow
+     * @param buyer the Buyer holding Q
+     * @param seller the Seller holding s, g, K and b
+     */
+    public Evaluator(Market market, Buyer buyer, Seller seller) {
+        this.market = market;
+        this.buyer = buyer.getFlowTable();
+        this.seller = seller.getFlowTable();
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.batchSize = 256;
+        this.maxRealizations = 100000;
+        this.confidence = 0.95;
+        this.relativeError = 0.001;
+    }
+
+    /**
+     * Set the pool the flows of a batch are split on
+     * @param pool the pool splitting the flows, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Set the seed of the simulated spot prices */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Set the number of realizations drawn per flow before the intervals are checked */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Set when the simulation stops
+     * @param confidence the confidence level of the intervals, e.g. 0.95
+     * @param relativeError stop once every half width is within this fraction of its mean, or of the buyer
+     *                      cost for a total of money and of 1 for the utilization when the mean is near 0
+     * @param maxRealizations stop after this many realizations anyway
+     */
+    public void setStopping(double confidence, double relativeError, long maxRealizations) {
+        this.confidence = confidence;
+        this.relativeError = relativeError;
+        this.maxRealizations = maxRealizations;
+    }
+
+    /** Utility of the Buyer given demand - U(d), its derivative is the Buyer's U' */
+    private static double utility(double demand) {
+        return 10000.0 * (1.0 - Math.exp(-0.01 * demand));
+    }
+
+    /**
+     * The method simulates realizations until the intervals are tight or the maximum is reached
+     * @return the estimates of buyer cost, buyer surplus, seller revenue and utilization
+     */
+    public List<Estimate> run() {
+        /** Flows with a price distribution and finite decisions */
+        int n = market.getFlowIndex().size();
+        int[] ids = new int[n];
+        int size = 0;
+        double capacity = 0.0;
+        skipped = 0;
+        for (int i = 0; i < n; i++) {
+            if (market.getPriceRow(i) < 0 && market.getPriceModel(i) == null) continue;
+            double Q = buyer.get(FlowTable.Column.CONTRACT_LEVEL, i);
+            double s = seller.get(FlowTable.Column.RESERV_FEE, i);
+            double g = seller.get(FlowTable.Column.EXECU_FEE, i);
+            double K = seller.get(FlowTable.Column.CAPACITY, i);
+            double b = seller.get(FlowTable.Column.MARGIN_COST, i);
+            if (!Double.isFinite(Q + s + g + K + b)) {
+                skipped++;
+                continue;
+            }
+            ids[size++] = i;
+            capacity += K;
+        }
+        int[] flows = Arrays.copyOf(ids, size);
+        evaluated = size;
+
+        double z = new NormalDistribution().inverseCumulativeProbability(0.5 + confidence / 2);
+        long count = 0;
+        double[] mean = new double[METRICS];
+        double[] m2 = new double[METRICS];
+        List<Estimate> res = estimates(z, count, mean, m2, capacity);
+        for (long batch = 0; count < maxRealizations; batch++) {
+            int realizations = (int) Math.min(batchSize, maxRealizations - count);
+            double[] totals = simulate(flows, batch, realizations);
+
+            /** Welford's update with the totals of every realization of the batch */
+            for (int r = 0; r < realizations; r++) {
+                count++;
+                for (int k = 0; k < METRICS; k++) {
+                    double delta = totals[r * METRICS + k] - mean[k];
+                    mean[k] += delta / count;
+                    m2[k] += delta * (totals[r * METRICS + k] - mean[k]);
+                }
+            }
+            res = estimates(z, count, mean, m2, capacity);
+            if (count < 2 * batchSize) continue;
+            // surplus, revenue and utilization may be near 0, e.g. when most Q are 0, so the totals of money
+            // are measured against the cost as well and the utilization against the whole capacity
+            double scale = Math.abs(res.get(COST).mean);
+            boolean tight = true;
+            for (int k = 0; k < METRICS; k++) {
+                tight &= res.get(k).isTight(relativeError, k == EXECUTED ? 1.0 : scale);
+            }
+            if (tight) break;
+        }
+        return res;
+    }
+
+    private static List<Estimate> estimates(double z, long count, double[] mean, double[] m2, double capacity) {
+        List<Estimate> res = new ArrayList<Estimate>(METRICS);
+        for (int k = 0; k < METRICS; k++) {
+            double halfWidth = count < 2 ? Double.POSITIVE_INFINITY : z * Math.sqrt(m2[k] / (count - 1) / count);
+            double scale = k == EXECUTED ? 1.0 / capacity : 1.0;
+            res.add(new Estimate(NAMES[k], mean[k] * scale, halfWidth * scale, count));
+        }
+        return res;
+    }
+
+    /** Simulate the realizations of one batch, return the totals of every realization */
+    private double[] simulate(int[] flows, long batch, int realizations) {
+        long batchSeed = FlowRandom.mix64(seed + batch);
+        PriceMatrix matrix = market.getPriceMatrix();
+        // the blocks do not depend on the pool, so neither does the order the totals are added in
+        int block = Math.max(MIN_BLOCK, (flows.length + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        double[][] slots = new double[(flows.length + block - 1) / block][];
+        FlowTasks.forEach(pool, slots.length, null, j -> {
+            double[] local = new double[realizations * METRICS];
+            double[] prices = new double[realizations];
+            double[] samples = null;
+            for (int k = j * block; k < Math.min(flows.length, (j + 1) * block); k++) {
+                int i = flows[k];
+                SplittableRandom rnd = FlowRandom.forFlow(batchSeed, FlowRandom.EVALUATION, i);
+                PriceModel model = market.getPriceModel(i);
+                if (model != null) {
+                    model.fill(rnd, prices);
+                } else {
+                    // resample the flow's own price samples
+                    if (samples == null) samples = new double[matrix.cols()];
+                    matrix.getRow(market.getPriceRow(i), samples);
+                    for (int r = 0; r < realizations; r++) {
+                        prices[r] = samples[rnd.nextInt(samples.length)];
+                    }
+                }
+
+                double Q = buyer.get(FlowTable.Column.CONTRACT_LEVEL, i);
+                double s = seller.get(FlowTable.Column.RESERV_FEE, i);
+                double g = seller.get(FlowTable.Column.EXECU_FEE, i);
+                double b = seller.get(FlowTable.Column.MARGIN_COST, i);
+                double w = DemandKernel.wtpPrime(Q);
+                for (int r = 0; r < realizations; r++) {
+                    double p = prices[r];
+                    double d = DemandKernel.demand(p);
+                    double q = p > g ? Q : 0.0;
+                    double x = p < g ? d : (p < w ? d - Q : 0.0);
+                    double cost = s * Q + g * q + p * x;
+                    local[r * METRICS + COST] += cost;
+                    local[r * METRICS + SURPLUS] += utility(q + x) - cost;
+                    local[r * METRICS + REVENUE] += s * Q + (g - b) * q;
+                    local[r * METRICS + EXECUTED] += q;
+                }
+            }
+            slots[j] = local;
+        });
+        double[] totals = new double[realizations * METRICS];
+        for (double[] local : slots) {
+            for (int j = 0; j < totals.length; j++) {
+                totals[j] += local[j];
+            }
+        }
+        return totals;
+    }
+
+    /** Get the number of flows evaluated by the last run */
+    public int getEvaluated() {
+        return evaluated;
+    }
+
+    /** Get the number of flows skipped by the last run because a decision was not finite */
+    public int getSkipped() {
+        return skipped;
+    }
+}
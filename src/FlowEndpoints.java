@@ -0,0 +1,93 @@
+/**
+ * The class splits "origin-destination" flow records into int-encoded endpoints.
+ * Endpoint names are kept in a dictionary of their own and every flow id maps
+ * to the codes of its origin and destination. A record is split at its first '-',
+ * so "A-B-C" runs from A to "B-C".
+ */
+
+import java.util.*;
+
+
+public class FlowEndpoints {
+    public static final char SEPARATOR = '-';
+
+    private final HashMap<String, Integer> codes;
+    private final List<String> names;
+    private int[] origin;
+    private int[] destination;
+
+    public FlowEndpoints() {
+        this.codes = new HashMap<String, Integer>();
+        this.names = new ArrayList<String>();
+        this.origin = new int[16];
+        this.destination = new int[16];
+        Arrays.fill(origin, -1);
+        Arrays.fill(destination, -1);
+    }
+
+    /** Register an endpoint and return its code */
+    public int code(String name) {
+        Integer code = codes.get(name);
+        if (code == null) {
+            code = names.size();
+            codes.put(name, code);
+            names.add(name);
+        }
+        return code;
+    }
+
+    /** Get the code of an endpoint, -1 if the endpoint is unknown */
+    public int find(String name) {
+        Integer code = codes.get(name);
+        return code == null ? -1 : code;
+    }
+
+    /** Get the name of an endpoint code */
+    public String name(int code) {
+        return names.get(code);
+    }
+
+    /** Get the number of endpoints */
+    public int size() {
+        return names.size();
+    }
+
+    /** Check whether a flow record is of the form "origin-destination", both endpoints non-empty */
+    public static boolean isFlow(String od) {
+        int sep = od.indexOf(SEPARATOR);
+        return sep > 0 && sep < od.length() - 1;
+    }
+
+    /**
+     * The method splits a flow record at its first '-' and stores the codes of its endpoints
+     * @param id the flow id
+     * @param od the flow record
+     * @return false if the record is not of the form "origin-destination"
+     */
+    public boolean put(int id, String od) {
+        if (!isFlow(od)) return false;
+        int sep = od.indexOf(SEPARATOR);
+
+        if (id >= origin.length) {
+            int len = Math.max(id + 1, 2 * origin.length);
+            int old = origin.length;
+            origin = Arrays.copyOf(origin, len);
+            destination = Arrays.copyOf(destination, len);
+            Arrays.fill(origin, old, len, -1);
+            Arrays.fill(destination, old, len, -1);
+        }
+        origin[id] = code(od.substring(0, sep).trim());
+        destination[id] = code(od.substring(sep + 1).trim());
+        return true;
+    }
+
+    /** Get the origin code of a flow, -1 if the flow was not split */
+    public int origin(int id) {
+        return id < origin.length ? origin[id] : -1;
+    }
+
+    /** Get the destination code of a flow, -1 if the flow was not split */
+    public int destination(int id) {
+        return id < destination.length ? destination[id] : -1;
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * The class is the flow dictionary shared by the Market, Buyer and Seller.
+ * It maps each od flow to a dense int id so that flow properties can be kept
+ * in primitive columns and visited by index.
+ */
+
+import java.util.*;
+
+
+public class FlowIndex {
+    private final HashMap<String, Integer> ids;
+    private final List<String> ods;
+
+    public FlowIndex() {
+        this.ids = new HashMap<String, Integer>();
+        this.ods = new ArrayList<String>();
+    }
+
+    /**
+     * Build the dictionary from flow records, duplicated flows share one id
+     * @param ods the list of flow records
+     */
+    public FlowIndex(List<String> ods) {
+        this();
+        for (String od : ods) {
+            add(od);
+        }
+    }
+
+    /**
+     * The method registers a flow, adding is not thread safe
+     * @param od the flow record
+     * @return the id of the flow, the existing one if it is already registered
+     */
+    public int add(String od) {
+        Integer id = ids.get(od);
+        if (id == null) {
+            id = ods.size();
+            ids.put(od, id);
+            ods.add(od);
+        }
+        return id;
+    }
+
+    /** Get the id of a flow, -1 if the flow is unknown */
+    public int id(String od) {
+        Integer id = ids.get(od);
+        return id == null ? -1 : id;
+    }
+
+    /** Get the flow record of an id */
+    public String od(int id) {
+        return ods.get(id);
+    }
+
+    /** Get the number of flows */
+    public int size() {
+        return ods.size();
+    }
+
+    /** Get flow records ordered by id */
+    public List<String> getOds() {
+        return Collections.unmodifiableList(ods);
+    }
+}
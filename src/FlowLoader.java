@@ -0,0 +1,254 @@
+/**
+ * The class loads flow records from a csv file into a flow dictionary. The file
+ * is memory-mapped and scanned once, the header is detected by its "od" column
+ * (or a pair of "origin" and "destination" columns), duplicated flows are
+ * registered once and malformed lines are reported instead of aborting the load.
+ * When the flows are split into endpoints, a flow record must be of the form
+ * "origin-destination" and is split at its first '-', so "A-B-C" runs from A to
+ * "B-C"; an origin column holding a '-' is reported, it would be split elsewhere.
+ * Files too large for one flow dictionary are streamed in chunks of flow records.
+ */
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+public class FlowLoader {
+    private static final long MAP_CHUNK = 1L << 28;
+    private static final int MAX_REPORTED = 100;
+
+    /** Receives the flow records of a file one chunk at a time */
+    public interface ChunkHandler {
+
+        /**
+         * The method is called once per chunk, in file order, on the loading thread
+         * @param ods the flow records of the chunk in file order
+         * @param chunk the number of the chunk, from 0
+         * @throws IOException if the chunk cannot be processed, the load stops
+         */
+        void accept(List<String> ods, int chunk) throws IOException;
+    }
+
+    /** Receives the flow record of one well-formed line */
+    private interface LineSink {
+        void accept(String od) throws IOException;
+    }
+
+    private final FlowIndex flows;
+    private FlowEndpoints endpoints;
+    private char delimiter;
+
+    private final List<Integer> loaded;
+    private final List<String> malformed;
+    private long malformedCount;
+    private long duplicateCount;
+
+    // columns of the current file, detected from its first line
+    private int odColumn;
+    private int originColumn;
+    private int destinationColumn;
+    private long lineNo;
+
+    /**
+     * Create a loader registering flows into a flow dictionary
+     * @param flows the flow dictionary to fill
+     */
+    public FlowLoader(FlowIndex flows) {
+        this.flows = flows;
+        this.delimiter = ',';
+        this.loaded = new ArrayList<Integer>();
+        this.malformed = new ArrayList<String>();
+    }
+
+    /**
+     * Split every loaded flow into int-encoded endpoints
+     * @param endpoints the endpoint dictionary to fill, null disables the split
+     */
+    public void setEndpoints(FlowEndpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /** Set the column delimiter, ',' by default */
+    public void setDelimiter(char delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * The method loads the flow records of a csv file
+     * @param csvFile csv file path
+     * @return ids of the flows registered by this file, in order of first appearance
+     * @throws IOException if the file cannot be read
+     */
+    public List<Integer> load(String csvFile) throws IOException {
+        loaded.clear();
+        scan(csvFile, this::register);
+        return Collections.unmodifiableList(new ArrayList<Integer>(loaded));
+    }
+
+    /**
+     * The method streams the flow records of a csv file in chunks, only one chunk is held at a time and
+     * nothing is registered in the flow dictionary, duplicated flows are not detected across chunks
+     * @param csvFile csv file path
+     * @param chunkSize the number of flow records per chunk, the last chunk may hold fewer
+     * @param handler receives every chunk
+     * @return the number of chunks
+     * @throws IOException if the file cannot be read or the handler fails
+     */
+    public int load(String csvFile, int chunkSize, ChunkHandler handler) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+        }
+        List<String> chunk = new ArrayList<String>();
+        int[] count = new int[1];
+        scan(csvFile, od -> {
+            chunk.add(od);
+            if (chunk.size() == chunkSize) {
+                handler.accept(new ArrayList<String>(chunk), count[0]++);
+                chunk.clear();
+            }
+        });
+        if (!chunk.isEmpty()) handler.accept(chunk, count[0]++);
+        return count[0];
+    }
+
+    /** Read every line of a file, passing the flow record of well-formed lines to the sink */
+    private void scan(String csvFile, LineSink sink) throws IOException {
+        malformed.clear();
+        malformedCount = 0;
+        duplicateCount = 0;
+        odColumn = -1;
+        lineNo = 0;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] line = new byte[256];
+            int len = 0;
+            for (long pos = 0; pos < size; pos += MAP_CHUNK) {
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size - pos));
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        handleLine(line, len, sink);
+                        len = 0;
+                    } else {
+                        if (len == line.length) line = Arrays.copyOf(line, 2 * len);
+                        line[len++] = b;
+                    }
+                }
+            }
+            if (len > 0) handleLine(line, len, sink);
+        }
+    }
+
+    private void handleLine(byte[] bytes, int len, LineSink sink) throws IOException {
+        lineNo++;
+        int start = 0;
+        if (lineNo == 1 && len >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF) {
+            start = 3;
+        }
+        if (len > start && bytes[len - 1] == '\r') len--;
+        String line = new String(bytes, start, len - start, StandardCharsets.UTF_8);
+        if (line.trim().isEmpty()) return;
+
+        if (odColumn == -1) {
+            if (detectHeader(line)) return;
+        }
+
+        String od;
+        if (odColumn >= 0) {
+            od = field(line, odColumn);
+        } else {
+            String origin = field(line, originColumn);
+            String destination = field(line, destinationColumn);
+            if (endpoints != null && origin != null && origin.indexOf(FlowEndpoints.SEPARATOR) >= 0) {
+                report("origin \"" + origin + "\" contains the separator " + FlowEndpoints.SEPARATOR);
+                return;
+            }
+            od = origin == null || destination == null || origin.isEmpty() || destination.isEmpty()
+                    ? null : origin + FlowEndpoints.SEPARATOR + destination;
+        }
+        if (od == null || od.isEmpty()) {
+            report("missing od field");
+            return;
+        }
+        // any other token is a flow record as well unless it is to be split
+        if (endpoints != null && !FlowEndpoints.isFlow(od)) {
+            report("od \"" + od + "\" is not of the form origin" + FlowEndpoints.SEPARATOR + "destination");
+            return;
+        }
+        sink.accept(od);
+    }
+
+    /** Register the flow record of a line in the flow dictionary */
+    private void register(String od) {
+        int before = flows.size();
+        int id = flows.add(od);
+        if (id < before) {
+            duplicateCount++;
+            return;
+        }
+        loaded.add(id);
+        if (endpoints != null) endpoints.put(id, od);
+    }
+
+    /** Detect the columns from the first line, return true if the line is a header */
+    private boolean detectHeader(String line) {
+        String[] names = line.split(java.util.regex.Pattern.quote(String.valueOf(delimiter)), -1);
+        originColumn = -1;
+        destinationColumn = -1;
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i].trim().toLowerCase(Locale.ROOT);
+            if (name.equals("od")) {
+                odColumn = i;
+                return true;
+            }
+            if (name.equals("origin")) originColumn = i;
+            if (name.equals("destination")) destinationColumn = i;
+        }
+        if (originColumn >= 0 && destinationColumn >= 0) {
+            odColumn = -2;
+            return true;
+        }
+        // no header, the flow record is the first column
+        odColumn = 0;
+        return false;
+    }
+
+    /** Get the trimmed field of a column, null if the line is too short */
+    private String field(String line, int column) {
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = line.indexOf(delimiter, start);
+            if (start < 0) return null;
+            start++;
+        }
+        int end = line.indexOf(delimiter, start);
+        return (end < 0 ? line.substring(start) : line.substring(start, end)).trim();
+    }
+
+    private void report(String reason) {
+        malformedCount++;
+        if (malformed.size() < MAX_REPORTED) malformed.add("line " + lineNo + ": " + reason);
+    }
+
+    /** Get the first malformed lines of the last load, with their line number and reason */
+    public List<String> getMalformed() {
+        return Collections.unmodifiableList(malformed);
+    }
+
+    /** Get the number of malformed lines of the last load */
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /** Get the number of duplicated flow records skipped by the last load */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * The class derives an independent random stream for every flow from one seed,
+ * so a draw depends on the seed and the flow id only, never on the thread or
+ * the order in which flows are visited.
+ */
+
+import java.util.SplittableRandom;
+
+
+public class FlowRandom {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    /** Streams of the draws made in one run, each purpose has its own */
+    public static final long MARKET_ATTRS = 1;
+    public static final long MARKET_PRICES = 2;
+    public static final long BUYER_CONTRACT_LEVEL = 3;
+    public static final long SELLER_MARGIN_COST = 4;
+    public static final long SELLER_RESERV_FEE = 5;
+    public static final long SELLER_CAPACITY = 6;
+    public static final long SELLER_ENTRY = 7;
+    public static final long EVALUATION = 8;
+
+    private FlowRandom() {
+    }
+
+    /** Scramble a 64 bit value, the finalizer of SplitMix64 */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * The method creates the random stream of one flow
+     * @param seed the seed of the run
+     * @param stream the purpose of the draws, different purposes get unrelated streams
+     * @param id the flow id
+     * @return the random stream of the flow
+     */
+    public static SplittableRandom forFlow(long seed, long stream, int id) {
+        long z = mix64(seed + GOLDEN_GAMMA * (stream + 1));
+        return new SplittableRandom(mix64(z + GOLDEN_GAMMA * (id + 1L)));
+    }
+}
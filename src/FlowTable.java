@@ -0,0 +1,177 @@
+/**
+ * The class is a columnar store of flow properties. Every column is a primitive
+ * array indexed by the flow id of a shared FlowIndex, so decisions are read and
+ * written without boxing or hashing the od flow.
+ */
+
+import java.util.*;
+
+
+public class FlowTable {
+
+    /** Flow properties kept by the Market, Buyer and Seller */
+    public enum Column {
+        CONTRACT_LEVEL,
+        DEMAND_FROM_SELLER,
+        DEMAND_FROM_MKT,
+        RESERV_FEE,
+        EXECU_FEE,
+        CAPACITY,
+        MARGIN_COST,
+        RECENT_PRICE
+    }
+
+    /** Told about every write to the table, e.g. to keep aggregates of a column up to date */
+    public interface Listener {
+
+        /**
+         * The method is called after values of a column changed, possibly from several threads at once
+         * @param column the column written
+         * @param id the flow whose value changed, -1 when the whole column changed
+         */
+        void changed(Column column, int id);
+    }
+
+    private final FlowIndex index;
+    private final double[][] values;
+    private final boolean[][] present;
+    private Listener listener;
+
+    public FlowTable(FlowIndex index) {
+        this.index = index;
+        this.values = new double[Column.values().length][];
+        this.present = new boolean[Column.values().length][];
+    }
+
+    /**
+     * Set the listener told about every write
+     * @param listener the listener, null tells nobody
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Get the listener told about every write, null if there is none */
+    public Listener getListener() {
+        return this.listener;
+    }
+
+    /** Get the flow dictionary the table is indexed by */
+    public FlowIndex getIndex() {
+        return this.index;
+    }
+
+    /**
+     * The method makes sure a column holds every flow of the dictionary. Columns have to
+     * be sized before they are written from several threads.
+     * @param column the column to size
+     */
+    public void ensureCapacity(Column column) {
+        grow(column, index.size());
+    }
+
+    private void grow(Column column, int size) {
+        int c = column.ordinal();
+        double[] col = values[c];
+        if (col != null && col.length >= size) return;
+
+        int len = col == null ? size : Math.max(size, 2 * col.length);
+        values[c] = col == null ? new double[len] : Arrays.copyOf(col, len);
+        present[c] = col == null ? new boolean[len] : Arrays.copyOf(present[c], len);
+    }
+
+    /** Get the value of a flow, 0.0 if the flow was never set */
+    public double get(Column column, int id) {
+        double[] col = values[column.ordinal()];
+        return col == null || id >= col.length ? 0.0 : col[id];
+    }
+
+    /** Set the value of a flow */
+    public void set(Column column, int id, double value) {
+        grow(column, id + 1);
+        values[column.ordinal()][id] = value;
+        present[column.ordinal()][id] = true;
+        if (listener != null) listener.changed(column, id);
+    }
+
+    /** Check whether the value of a flow was set */
+    public boolean has(Column column, int id) {
+        boolean[] col = present[column.ordinal()];
+        return col != null && id < col.length && col[id];
+    }
+
+    /** Forget every value of a column */
+    public void clear(Column column) {
+        boolean[] col = present[column.ordinal()];
+        if (col != null) Arrays.fill(col, false);
+        if (listener != null) listener.changed(column, -1);
+    }
+
+    /**
+     * The method copies a column into arrays indexed by flow id, for bulk export
+     * @param column the column to read
+     * @param dst receives the values, 0.0 for flows never set
+     * @param set receives whether the value of each flow was set
+     */
+    public void getColumn(Column column, double[] dst, boolean[] set) {
+        int c = column.ordinal();
+        int n = values[c] == null ? 0 : Math.min(dst.length, values[c].length);
+        Arrays.fill(dst, 0.0);
+        Arrays.fill(set, false);
+        if (n == 0) return;
+        System.arraycopy(values[c], 0, dst, 0, n);
+        System.arraycopy(present[c], 0, set, 0, n);
+    }
+
+    /**
+     * The method replaces a column with arrays indexed by flow id, for bulk import
+     * @param column the column to write
+     * @param src the values
+     * @param set whether the value of each flow is set
+     */
+    public void setColumn(Column column, double[] src, boolean[] set) {
+        int c = column.ordinal();
+        values[c] = src.clone();
+        present[c] = set.clone();
+        if (listener != null) listener.changed(column, -1);
+    }
+
+    /** Check whether any value of a column was set */
+    public boolean hasAny(Column column) {
+        boolean[] col = present[column.ordinal()];
+        if (col == null) return false;
+        for (boolean b : col) {
+            if (b) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The method copies key value pairs of flows into a column, unknown flows are registered
+     * @param column the column to write
+     * @param values key value pairs of flows and values
+     */
+    public void putAll(Column column, Map<String, Double> values) {
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            set(column, index.add(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * The method builds key value pairs of flows and values of a column,
+     * it adapts the table to callers working on HashMaps
+     * @param column the column to read
+     * @return key value pairs of every flow set in the column
+     */
+    public HashMap<String, Double> toMap(Column column) {
+        int c = column.ordinal();
+        HashMap<String, Double> res = new HashMap<String, Double>();
+        if (values[c] == null) return res;
+
+        int n = Math.min(index.size(), values[c].length);
+        for (int i = 0; i < n; i++) {
+            if (present[c][i]) res.put(index.od(i), values[c][i]);
+        }
+        return res;
+    }
+}
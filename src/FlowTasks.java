@@ -0,0 +1,87 @@
+/**
+ * The class splits per-flow work over ranges of flow ids and runs them on a
+ * ForkJoinPool. Flows are independent, so every range writes its own slots of
+ * the primitive columns and nothing has to be merged afterwards.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+public class FlowTasks {
+    private static final int MIN_RANGE = 64;
+    private static final int RANGES_PER_WORKER = 8;
+
+    /** Work done on the flows with ids in [from, to) */
+    public interface RangeBody {
+        void run(int from, int to);
+    }
+
+    /** Work done on one flow */
+    public interface FlowBody {
+        void run(int id);
+    }
+
+    private FlowTasks() {
+    }
+
+    /**
+     * The method runs the body over a set of flows
+     * @param pool the pool to run on, null runs serially on the calling thread
+     * @param n the number of flows, used when no ids are given
+     * @param ids the flow ids to visit, null visits every id in [0, n)
+     * @param body the work done on one flow
+     */
+    public static void forEach(ForkJoinPool pool, int n, int[] ids, FlowBody body) {
+        if (ids == null) {
+            forEachRange(pool, n, (from, to) -> {
+                for (int i = from; i < to; i++) body.run(i);
+            });
+        } else {
+            forEachRange(pool, ids.length, (from, to) -> {
+                for (int k = from; k < to; k++) body.run(ids[k]);
+            });
+        }
+    }
+
+    /**
+     * The method runs the body over the flow ids [0, n)
+     * @param pool the pool to run on, null runs serially on the calling thread
+     * @param n the number of flows
+     * @param body the work done on one range of flows
+     */
+    public static void forEachRange(ForkJoinPool pool, int n, RangeBody body) {
+        if (pool == null || pool.getParallelism() <= 1 || n <= MIN_RANGE) {
+            body.run(0, n);
+            return;
+        }
+        int grain = Math.max(MIN_RANGE, n / (pool.getParallelism() * RANGES_PER_WORKER));
+        pool.invoke(new RangeTask(body, 0, n, grain));
+    }
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final RangeBody body;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        RangeTask(RangeBody body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+        }
+    }
+}
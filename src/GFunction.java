@@ -0,0 +1,19 @@
+/**
+ * The interface describes the price distribution of one flow through its
+ * expected value G(a) = E[min(P, a)] and a few summary statistics.
+ */
+
+public interface GFunction {
+
+    /** Calculate the expected value given price distribution - G(a) */
+    double value(double a);
+
+    /** Get the highest price - P_u */
+    double max();
+
+    /** Get the lowest price - P_d */
+    double min();
+
+    /** Get the mean price - mu */
+    double mean();
+}
@@ -0,0 +1,148 @@
+/**
+ * The class holds the sorted price samples of one flow together with their prefix sums,
+ * so that the expected value G(a) = E[min(P, a)] is answered with a binary search.
+ */
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+
+public class GTable implements GFunction {
+    private final double[] sorted;
+    private final double[] prefix;
+
+    /**
+     * Build the table from primitive price samples, the input array is left untouched
+     * @param prices sample prices of one od flow
+     */
+    public GTable(double[] prices) {
+        this(prices.clone(), true);
+    }
+
+    /**
+     * Build the table from one row of a price matrix without boxing
+     * @param prices the price samples of all flows
+     * @param row the row of the flow
+     */
+    public GTable(PriceMatrix prices, int row) {
+        this(prices.getRow(row), true);
+    }
+
+    /**
+     * Build the table from samples that are sorted already, without sorting them again
+     * @param sorted sample prices of one od flow in ascending order, left untouched
+     */
+    static GTable ofSorted(double[] sorted) {
+        return new GTable(sorted.clone(), false);
+    }
+
+    /** Build the table over an array it owns, sorting it in place */
+    private GTable(double[] owned, boolean sort) {
+        if (owned.length == 0) {
+            throw new IllegalArgumentException("G table needs at least one price sample");
+        }
+        this.sorted = owned;
+        if (sort) Arrays.sort(this.sorted);
+        this.prefix = new double[sorted.length + 1];
+        for (int i = 0; i < sorted.length; i++) {
+            prefix[i + 1] = prefix[i] + sorted[i];
+        }
+    }
+
+    /**
+     * Build the table from boxed price samples
+     * @param prices sample prices of one od flow
+     */
+    public GTable(List<Double> prices) {
+        this(unbox(prices), true);
+    }
+
+    private static double[] unbox(List<Double> prices) {
+        double[] res = new double[prices.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = prices.get(i);
+        }
+        return res;
+    }
+
+    /** Number of samples strictly below a */
+    int countBelow(double a) {
+        int lo = 0;
+        int hi = sorted.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < a) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Calculate the expected value given price distribution - G(a) */
+    @Override
+    public double value(double a) {
+        int k = countBelow(a);
+        return (prefix[k] + a * (sorted.length - k)) / sorted.length;
+    }
+
+    /** G evaluated at the j-th sorted sample, non-decreasing in j */
+    private double knot(int j) {
+        return (prefix[j] + sorted[j] * (sorted.length - j)) / sorted.length;
+    }
+
+    /**
+     * The method inverts G exactly, G is piecewise linear between two neighbouring samples
+     * @param y the target expected value
+     * @return the smallest a with G(a) = y, or NaN if y exceeds the mean price
+     */
+    public double inverse(double y) {
+        int n = sorted.length;
+        if (y <= sorted[0]) return y;
+        if (y > mean()) return Double.NaN;
+        if (y == mean()) return max();
+
+        // the largest j with knot(j) <= y, knot(0) = P_d <= y < mu = knot(n-1)
+        int lo = 0;
+        int hi = n - 1;
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (knot(mid) <= y) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return (y * n - prefix[lo + 1]) / (n - lo - 1);
+    }
+
+    /** Get the highest sample price - P_u */
+    @Override
+    public double max() {
+        return sorted[sorted.length - 1];
+    }
+
+    /** Get the lowest sample price - P_d */
+    @Override
+    public double min() {
+        return sorted[0];
+    }
+
+    /** Get the mean of the sample prices - mu */
+    @Override
+    public double mean() {
+        return prefix[sorted.length] / sorted.length;
+    }
+
+    /** Get a read-only view of the sorted samples */
+    public DoubleBuffer sorted() {
+        return DoubleBuffer.wrap(sorted).asReadOnlyBuffer();
+    }
+
+    /** Get the number of samples */
+    public int size() {
+        return sorted.length;
+    }
+}
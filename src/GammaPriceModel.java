@@ -0,0 +1,149 @@
+/**
+ * The class models the market price of a flow with a Gamma distribution truncated
+ * to [lb, ub], an Erlang distribution when the shape is an integer.
+ */
+
+import org.apache.commons.math3.distribution.GammaDistribution;
+import org.apache.commons.math3.special.Gamma;
+
+import java.util.SplittableRandom;
+
+
+public class GammaPriceModel implements PriceModel, GFunction {
+    /** Below this probability mass of [lb, ub] rejection is replaced by inversion, as in TruncatedSampler */
+    private static final double MIN_ACCEPT = 0.25;
+
+    private final double shape;
+    private final double scale;
+    private final double lb;
+    private final double ub;
+    // cdf at the bounds, and the first moment below the bounds divided by shape * scale
+    private final double cdf_lb;
+    private final double cdf_ub;
+    private final double moment_lb;
+    private final double moment_ub;
+    private final double mass;
+
+    /**
+     * @param shape shape of Erlang distribution - k
+     * @param scale scale of Erlang distribution - lambda
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     */
+    public GammaPriceModel(double shape, double scale, double lb, double ub) {
+        if (!(lb < ub) || !(shape > 0) || !(scale > 0)) {
+            throw new IllegalArgumentException("invalid truncated Gamma(" + shape + ", " + scale + ") on ["
+                    + lb + ", " + ub + "]");
+        }
+        this.shape = shape;
+        this.scale = scale;
+        this.lb = lb;
+        this.ub = ub;
+        this.cdf_lb = cdf(lb);
+        this.cdf_ub = cdf(ub);
+        this.moment_lb = moment(lb);
+        this.moment_ub = moment(ub);
+        this.mass = cdf_ub - cdf_lb;
+    }
+
+    /**
+     * The method creates models whose shape and scale are drawn uniformly for each flow
+     * @param shape_ub upper bound of shape - k
+     * @param shape_lb lower bound of shape - k
+     * @param scale_ub upper bound of scale - lambda
+     * @param scale_lb lower bound of scale - lambda
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     * @return the factory of the models
+     */
+    public static PriceModel.Factory factory(
+            double shape_ub, double shape_lb, double scale_ub, double scale_lb, double lb, double ub) {
+        return (od, rnd) -> {
+            double shape = rnd.nextDouble(shape_lb, shape_ub);
+            double scale = rnd.nextDouble(scale_lb, scale_ub);
+            return new GammaPriceModel(shape, scale, lb, ub);
+        };
+    }
+
+    private double cdf(double x) {
+        return x <= 0 ? 0.0 : Gamma.regularizedGammaP(shape, x / scale);
+    }
+
+    /** E[P; P < x] / (shape * scale) */
+    private double moment(double x) {
+        return x <= 0 ? 0.0 : Gamma.regularizedGammaP(shape + 1, x / scale);
+    }
+
+    /** Draw a Gamma(shape, 1) value with the method of Marsaglia and Tsang */
+    private static double standardGamma(SplittableRandom rnd, double shape) {
+        if (shape < 1.0) {
+            // boost the shape above one and scale back by U^(1/shape)
+            return standardGamma(rnd, shape + 1.0) * Math.pow(rnd.nextDouble(), 1.0 / shape);
+        }
+        double d = shape - 1.0 / 3.0;
+        double c = 1.0 / Math.sqrt(9.0 * d);
+        while (true) {
+            double x, v;
+            do {
+                x = TruncatedSampler.gaussian(rnd);
+                v = 1.0 + c * x;
+            } while (v <= 0);
+            v = v * v * v;
+            double u = rnd.nextDouble();
+            if (u < 1.0 - 0.0331 * x * x * x * x) return d * v;
+            if (Math.log(u) < 0.5 * x * x + d * (1.0 - v + Math.log(v))) return d * v;
+        }
+    }
+
+    @Override
+    public void fill(SplittableRandom rnd, double[] out) {
+        if (!(mass > 0)) {
+            throw new IllegalStateException("Gamma(" + shape + ", " + scale + ") has no mass on [" + lb + ", " + ub + "]");
+        }
+        if (mass < MIN_ACCEPT) {
+            // a window in the tail would reject almost every draw, map uniform draws of [F(lb), F(ub)] instead
+            GammaDistribution inverse = new GammaDistribution(null, shape, scale);
+            for (int i = 0; i < out.length; i++) {
+                double p = cdf_lb + mass * rnd.nextDouble();
+                out[i] = Math.min(Math.max(inverse.inverseCumulativeProbability(p), lb), ub);
+            }
+            return;
+        }
+        for (int i = 0; i < out.length; i++) {
+            double sample;
+            do {
+                sample = scale * standardGamma(rnd, shape);
+            } while (sample < lb || sample > ub);
+            out[i] = sample;
+        }
+    }
+
+    @Override
+    public GFunction expectedValue() {
+        return mass > 1e-12 ? this : null;
+    }
+
+    /** Calculate G(a) = E[P; P < a] + a P(P >= a) of the truncated Gamma distribution */
+    @Override
+    public double value(double a) {
+        if (a <= lb) return a;
+        if (a >= ub) return mean();
+        double below = shape * scale * (moment(a) - moment_lb);
+        return (below + a * (cdf_ub - cdf(a))) / mass;
+    }
+
+    @Override
+    public double max() {
+        return ub;
+    }
+
+    @Override
+    public double min() {
+        return lb;
+    }
+
+    @Override
+    public double mean() {
+        return shape * scale * (moment_ub - moment_lb) / mass;
+    }
+}
@@ -7,307 +7,282 @@
  * @since Jan 15th, 2019
  */
 
-import org.apache.commons.math3.distribution.NormalDistribution;
-import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.distribution.UniformRealDistribution;
-
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 public class Market {
     private HashMap<String, List<Double>> od_prices;
     private List<String> ods;
-    private List<List<Double>> price_ls;
-    private HashMap<String, Double> recent_od_price;
+    private PriceMatrix matrix;
+    private int[] rows;
+    private String priceFile;
+    private FlowIndex flows;
+    private FlowTable table;
+    private PriceStats[] stats;
+    private BitSet stale;
+    private FlowEndpoints endpoints;
+    private PriceModel[] models;
+    private boolean analytic;
+    private ForkJoinPool pool;
+    private Metrics metrics;
+    private long seed;
 
     public Market() {
-        this.price_ls = new ArrayList<List<Double>>();
         this.ods = new ArrayList<String>();
-        this.od_prices = new HashMap<String, List<Double>>();
-        this.recent_od_price = new HashMap<String, Double>();
-    }
-
-//    /**
-//     * The method is used to initialize the market prices randomly with the Normal distribution
-//     * @param mean mean for Normal distribution
-//     * @param std  standard deviation for Normal distribution
-//     * @param sample_size sample size of market price for one flow
-//     * @return list of prices for one flow
-//     */
-//    private List<Double> setPrice(Double mean, Double std, Integer sample_size, Integer lb, Integer ub) {
-//        List<Double> price = new ArrayList<Double>();
-//        NormalDistribution generator = new NormalDistribution(mean, std);
-//        for (int i = 0; i < sample_size; i++) {
-//            Double sample = generator.sample();
-//            while (sample < lb) sample = generator.sample();
-//            while (sample > ub) sample = generator.sample();
-//            price.add(sample);
-////            System.out.println(price.sample());
-//        }
-//        return price;
-//    }
-
-
-//    /**
-//     * The method is used to initialize the market prices randomly with the Gamma(Erlang) distribution
-//     * @param shape shape of Erlang distribution - k
-//     * @param scale scale of Erlang distribution - lambda
-//     * @param sample_size size of sample price for each flow
-//     * @param lb lower bound of sample price
-//     * @param ub upper bound of sample price
-//     * @return list of prices for one flow
-//     */
-//    private List<Double> setPrice(double shape, double scale, int sample_size, int lb, int ub) {
-//        List<Double> price = new ArrayList<Double>();
-//        GammaDistribution generator = new GammaDistribution(shape, scale);
-//        for (int i = 0; i < sample_size; i++) {
-//            Double sample = generator.sample();
-//            while (sample < lb) sample = generator.sample();
-//            while (sample > ub) sample = generator.sample();
-//            price.add(sample);
-//        }
-//        return price;
-//    }
+        this.rows = new int[0];
+        this.flows = new FlowIndex();
+        this.table = new FlowTable(flows);
+        this.seed = ThreadLocalRandom.current().nextLong();
+    }
 
 
     /**
-     * The method is used to initialize the market prices randomly with the Uniform distribution
-     * @param lower Lower bound of this distribution (inclusive)
-     * @param upper Upper bound of this distribution (exclusive)
+     * The method generates random price samples for each flow through its price model
      * @param sample_size size of sample price for each flow
-     * @param lb lower bound of sample price
-     * @param ub upper bound of sample price
-     * @return list of prices for one flow
+     * @param factory creates the price model of each flow
+     * @return the samples of each flow by its position in the flow records, NaN rows for flows without a model
+     * @throws IOException if the price file cannot be created
      */
-    private List<Double> setPrice(double lower, double upper, int sample_size, int lb, int ub) {
-        List<Double> price = new ArrayList<Double>();
-        UniformRealDistribution generator = new UniformRealDistribution(lower, upper);
-        for (int i = 0; i < sample_size; i++) {
-            Double sample = generator.sample();
-            while (sample < lb) sample = generator.sample();
-            while (sample > ub) sample = generator.sample();
-            price.add(sample);
+    private PriceMatrix setPrices(int sample_size, PriceModel.Factory factory) throws IOException {
+        long start = metrics == null ? 0L : metrics.start();
+        PriceModel[] ods_models = new PriceModel[ods.size()];
+        FlowTasks.forEachRange(pool, ods_models.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                ods_models[i] = factory.create(ods.get(i), FlowRandom.forFlow(seed, FlowRandom.MARKET_ATTRS, i));
+            }
+        });
+        // a closed form G(a) only needs the most recent price, if every flow has one
+        int size = 1;
+        for (PriceModel model : ods_models) {
+            if (model != null && !(analytic && model.expectedValue() != null)) size = sample_size;
         }
-        return price;
-    }
-
-
-//    /**
-//     * The method randomly generates the pair of mean and std value for each flow.
-//     * @param n the number of flows
-//     * @param mean_ub high bound of mean value
-//     * @param mean_lb low bound of mean value
-//     * @param std_ub high bound of standard deviation
-//     * @param std_lb low bound of standard deviation
-//     * @return list of list, each containing the pair of randomly generated mean and std
-//     */
-//    private List<List<Double>> setAttrs(int n, double mean_ub, double mean_lb, double std_ub, double std_lb) {
-//        List<List<Double>> attrs = new ArrayList<List<Double>>(n);
-//        for (int i = 0; i < n; i++) {
-//            Double mean = ThreadLocalRandom.current().nextDouble(mean_lb, mean_ub);
-//            Double std = ThreadLocalRandom.current().nextDouble(std_lb, std_ub);
-//            List<Double> pair = new ArrayList<Double>();
-//            pair.add(mean);
-//            pair.add(std);
-//            attrs.add(pair);
-//        }
-//        return attrs;
-//    }
-
-
-//    /**
-//     * The method randomly generates the pair of shape and scale for each flow
-//     * @param n the number of flows
-//     * @param shape_ub upper bound of shape - k
-//     * @param shape_lb lower bound of shape - k
-//     * @param scale_ub upper bound of scale - lambda
-//     * @param scale_lb lower bound of scale - lambda
-//     * @return list of list, each containing the pair of randomly generated shape and scale
-//     */
-//    private List<List<Double>> setAttrs(int n, double shape_ub, double shape_lb, double scale_ub, double scale_lb) {
-//        List<List<Double>> attrs = new ArrayList<List<Double>>(n);
-//        for (int i = 0; i < n; i++) {
-//            double shape = ThreadLocalRandom.current().nextDouble(shape_lb, shape_ub);
-//            double scale = ThreadLocalRandom.current().nextDouble(scale_lb, scale_ub);
-//            List<Double> pair = new ArrayList<Double>();
-//            pair.add(shape);
-//            pair.add(scale);
-//            attrs.add(pair);
-//        }
-//        return attrs;
-//    }
+        int cols = size;
+
+        long key = flowKey();
+        PriceMatrix prices = priceFile == null
+                ? PriceMatrix.allocate(ods_models.length, cols, key)
+                : PriceMatrix.create(Paths.get(priceFile), ods_models.length, cols, key);
+        // every flow draws from its own stream, so the samples do not depend on the thread count
+        FlowTasks.forEachRange(pool, ods_models.length, (from, to) -> {
+            double[] price = new double[cols];
+            for (int i = from; i < to; i++) {
+                if (ods_models[i] == null) {
+                    Arrays.fill(price, Double.NaN);
+                } else {
+                    ods_models[i].fill(FlowRandom.forFlow(seed, FlowRandom.MARKET_PRICES, i), price);
+                }
+                prices.setRow(i, price);
+            }
+        });
+        prices.force();
+        if (metrics != null) metrics.stop(Metrics.Phase.GENERATION, start, ods_models.length);
 
-    /**
-     * The method randomly generates the pair of shape and scale for each flow
-     * @param n the number of flows
-     * @param upper_ub upper bound of upper
-     * @param upper_lb lower bound of upper
-     * @param lower_ub upper bound of lower
-     * @param lower_lb lower bound of lower
-     * @return list of list, each containing the pair of randomly generated upper and lower
-     */
-    private List<List<Double>> setAttrs(int n, double upper_ub, double upper_lb, double lower_ub, double lower_lb) {
-        List<List<Double>> attrs = new ArrayList<List<Double>>(n);
-        for (int i = 0; i < n; i++) {
-            double upper = ThreadLocalRandom.current().nextDouble(upper_lb, upper_ub);
-            double lower = ThreadLocalRandom.current().nextDouble(lower_lb, lower_ub);
-            List<Double> pair = new ArrayList<Double>();
-            pair.add(lower);
-            pair.add(upper);
-            attrs.add(pair);
+        this.models = new PriceModel[flows.size()];
+        for (int i = 0; i < ods_models.length; i++) {
+            models[flows.id(ods.get(i))] = ods_models[i];
         }
-        return attrs;
-    }
-
-//    /**
-//     * The method generates random price samples for each flow
-//     * @param sample_size sample size of price for each flow
-//     * @param mean_ub high bound of mean value
-//     * @param mean_lb low bound of mean value
-//     * @param std_ub high bound of standard deviation
-//     * @param std_lb low bound of standard deviation
-//     * @return list of list, each containing several sample prices
-//     */
-//    private List<List<Double>> setPrices(
-//            int sample_size, double mean_ub, double mean_lb, double std_ub, double std_lb, Integer lb, Integer ub){
-//        List<List<Double>> prices = new ArrayList<List<Double>>();
-//        List<List<Double>> ods_attrs = setAttrs(ods.size(), mean_ub, mean_lb, std_ub, std_lb);
-//        for (List<Double> attr_pair : ods_attrs) {
-//            List<Double> prices_sample = setPrice(attr_pair.get(0), attr_pair.get(1), sample_size, lb, ub);
-//            prices.add(prices_sample);
-//        }
-//        return prices;
-//    }
-
-//    /**
-//     * The method generates random price samples for each flow
-//     * @param sample_size size of sample price for each flow
-//     * @param shape_ub upper bound of shape - k
-//     * @param shape_lb lower bound of shape - k
-//     * @param scale_ub upper bound of scale - lambda
-//     * @param scale_lb lower bound of scale - lambda
-//     * @param lb lower bound of sample price
-//     * @param ub upper bound of sample price
-//     * @return list of list, each containing sample_size sample prices
-//     */
-//    private List<List<Double>> setPrices(
-//            int sample_size, double shape_ub, double shape_lb, double scale_ub, double scale_lb, int lb, int ub){
-//        List<List<Double>> prices = new ArrayList<List<Double>>();
-//        List<List<Double>> ods_attrs = setAttrs(ods.size(), shape_ub, shape_lb, scale_ub, scale_lb);
-//        for (List<Double> attr_pair : ods_attrs) {
-//            List<Double> prices_sample = setPrice(attr_pair.get(0), attr_pair.get(1), sample_size, lb, ub);
-//            prices.add(prices_sample);
-//        }
-//        return prices;
-//    }
+        return prices;
+    }
 
-    /**
-     * The method generates random price samples for each flow
-     * @param sample_size size of sample price for each flow
-     * @param upper_ub upper bound of upper
-     * @param upper_lb lower bound of upper
-     * @param lower_ub upper bound of lower
-     * @param lower_lb lower bound of lower
-     * @param lb lower bound of sample price
-     * @param ub upper bound of sample price
-     * @return list of list, each containing sample_size sample prices
-     */
-    private List<List<Double>> setPrices(
-            int sample_size, double upper_ub, double upper_lb, double lower_ub, double lower_lb, int lb, int ub){
-        List<List<Double>> prices = new ArrayList<List<Double>>();
-        List<List<Double>> ods_attrs = setAttrs(ods.size(), upper_ub, upper_lb, lower_ub, lower_lb);
-        for (List<Double> attr_pair : ods_attrs) {
-            List<Double> prices_sample = setPrice(attr_pair.get(0), attr_pair.get(1), sample_size, lb, ub);
-            prices.add(prices_sample);
+    /** Key of the flow records, so a saved price file is only reopened for the same flows */
+    private long flowKey() {
+        long key = ods.size();
+        for (String od : ods) {
+            key = FlowRandom.mix64(key * 31 + od.hashCode());
         }
-        return prices;
+        return key;
     }
 
 
     /**
-     * The method retrieves flow records from csv file
+     * The method retrieves flow records from csv file, duplicated flows are kept once
      * @param csvFile csv file path
      */
     private void setOds(String csvFile) {
-        String line;
+        FlowLoader loader = new FlowLoader(flows);
+        loader.setEndpoints(endpoints);
         try {
-            // Create an instance of BufferReader
-            BufferedReader  br = new BufferedReader(new FileReader(csvFile));
-            // loop until all lines are read
-            while ((line = br.readLine()) != null) {
-                if (!line.equals("od")) {
-                    this.ods.add(line);
-                }
+            for (int id : loader.load(csvFile)) {
+                this.ods.add(flows.od(id));
             }
         } catch (IOException ioe) {
-            ioe.printStackTrace();
+            System.err.println("Cannot read flow records from " + csvFile + ": " + ioe.getMessage());
+            return;
+        }
+        if (loader.getMalformedCount() > 0) {
+            System.err.println(loader.getMalformedCount() + " malformed lines in " + csvFile + ":");
+            for (String line : loader.getMalformed()) {
+                System.err.println("  " + line);
+            }
         }
     }
 
-//    /**
-//     * The method generate a key value pair of flows and market price samples
-//     * @param sample_size sample numbers of each flow
-//     * @param csvFile csv file path containing flow records
-//     * @param mean_ub high bound of mean value
-//     * @param mean_lb low bound of mean value
-//     * @param std_ub high bound of standard deviation
-//     * @param std_lb low bound of standard deviation
-//     */
-//    private void setOdPrice(
-//            Integer sample_size, String csvFile, double mean_ub, double mean_lb,
-//            double std_ub, double std_lb, Integer lb, Integer ub){
-//        setOds(csvFile);
-//        this.price_ls = setPrices(sample_size, mean_ub, mean_lb, std_ub, std_lb, lb, ub);
-//
-//        Iterator<String> od_iter = ods.iterator();
-//        Iterator<List<Double>> price_iter = this.price_ls.iterator();
-//
-//        while (od_iter.hasNext() && price_iter.hasNext()) {
-//            List<Double> prices = price_iter.next();
-//            String od = od_iter.next();
-//            od_prices.put(od, prices);
-//            recent_od_price.put(od, prices.get(prices.size()-1));
-//        }
-//    }
-
-
-//    /**
-//     * The method generate a key value pair of flows and market price samples
-//     * @param sample_size size of sample price for each flow
-//     * @param csvFile csv file path containing flow records
-//     * @param shape_ub upper bound of shape - k
-//     * @param shape_lb lower bound of shape - k
-//     * @param scale_ub upper bound of scale - lambda
-//     * @param scale_lb lower bound of scale - lambda
-//     * @param lb lower bound of sample price
-//     * @param ub upper bound of sample price
-//     */
-//    private void setOdPrice(
-//            int sample_size, String csvFile, double shape_ub, double shape_lb,
-//            double scale_ub, double scale_lb, Integer lb, Integer ub){
-//        setOds(csvFile);
-//        this.price_ls = setPrices(sample_size, shape_ub, shape_lb, scale_ub, scale_lb, lb, ub);
-//
-//        Iterator<String> od_iter = ods.iterator();
-//        Iterator<List<Double>> price_iter = this.price_ls.iterator();
-//
-//        while (od_iter.hasNext() && price_iter.hasNext()) {
-//            List<Double> prices = price_iter.next();
-//            String od = od_iter.next();
-//            od_prices.put(od, prices);
-//            recent_od_price.put(od, prices.get(prices.size()-1));
-//        }
-//    }
 
+    /**
+     * The method registers flow records given in memory, duplicated flows are kept once
+     * @param records the flow records in order
+     */
+    private void setOds(List<String> records) {
+        for (String od : records) {
+            int before = flows.size();
+            int id = flows.add(od);
+            if (id < before) continue;
+            this.ods.add(od);
+            if (endpoints != null && !endpoints.put(id, od)) {
+                System.err.println("od \"" + od + "\" is not of the form origin" + FlowEndpoints.SEPARATOR + "destination");
+            }
+        }
+    }
 
     /**
      * The method generate a key value pair of flows and market price samples
      * @param sample_size size of sample price for each flow
      * @param csvFile file path containing flow records
+     * @param factory creates the price model of each flow, flows without a model get no samples
+     */
+    public void setOdPrice(int sample_size, String csvFile, PriceModel.Factory factory) {
+        setOds(csvFile);
+        try {
+            setMatrix(setPrices(sample_size, factory));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Cannot create price file " + priceFile, ioe);
+        }
+    }
+
+    /**
+     * The method generates market price samples of flow records given in memory, e.g. one chunk of a
+     * file too large to load at once
+     * @param sample_size size of sample price for each flow
+     * @param records the flow records in order
+     * @param factory creates the price model of each flow, flows without a model get no samples
+     */
+    public void setOdPrice(int sample_size, List<String> records, PriceModel.Factory factory) {
+        setOds(records);
+        try {
+            setMatrix(setPrices(sample_size, factory));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException("Cannot create price file " + priceFile, ioe);
+        }
+    }
+
+    /** Index the rows of a price matrix by flow id and take the most recent prices from it */
+    private void setMatrix(PriceMatrix prices) {
+        this.matrix = prices;
+        this.rows = new int[flows.size()];
+        Arrays.fill(rows, -1);
+        for (int i = 0; i < ods.size(); i++) {
+            // a flow without a price model has a NaN row
+            if (Double.isNaN(prices.get(i, 0))) continue;
+            int id = flows.add(ods.get(i));
+            rows[id] = i;
+            table.set(FlowTable.Column.RECENT_PRICE, id, prices.get(i, prices.cols() - 1));
+        }
+        this.od_prices = null;
+        this.stats = null;
+    }
+
+    /**
+     * The method replaces the price samples of one flow, only the statistics of that flow are recomputed
+     * @param id the flow id
+     * @param samples the new samples, as many as every flow has
+     */
+    public void updatePrices(int id, double[] samples) {
+        writeRow(id, samples);
+        invalidate(id);
+    }
+
+    /**
+     * The method replaces the price samples of one flow together with their G table, e.g. maintained
+     * incrementally by a stream of price ticks, so nothing is recomputed
+     * @param id the flow id
+     * @param samples the new samples from the oldest to the most recent, as many as every flow has
+     * @param prices the G table of the new samples
+     */
+    public void updatePrices(int id, double[] samples, GTable prices) {
+        writeRow(id, samples);
+        if (stats != null) stats[id] = new PriceStats(prices);
+    }
+
+    private void writeRow(int id, double[] samples) {
+        int row = getPriceRow(id);
+        if (row < 0) {
+            throw new IllegalArgumentException("flow " + id + " has no price samples");
+        }
+        // samples reopened from a file are copied before their first change
+        if (matrix.isReadOnly()) {
+            matrix = matrix.copy();
+            od_prices = null;
+        }
+        matrix.setRow(row, samples);
+        table.set(FlowTable.Column.RECENT_PRICE, id, samples[samples.length - 1]);
+    }
+
+    /** Recompute the statistics of a flow on the next getPriceStats */
+    private void invalidate(int id) {
+        if (stats != null) stale.set(id);
+    }
+
+
+    /**
+     * Write the price samples to a file that a later run can reopen with openOdPrice
+     * @param file the price file
+     * @throws IOException if the file cannot be written
+     */
+    public void saveOdPrice(String file) throws IOException {
+        matrix.save(Paths.get(file));
+    }
+
+    /**
+     * The method reloads the flow records and maps the price samples a previous run saved,
+     * nothing is sampled and the price models are unknown
+     * @param csvFile file path containing the flow records the samples were generated for
+     * @param file the price file
+     * @throws IOException if the price file cannot be read or belongs to other flow records
+     */
+    public void openOdPrice(String csvFile, String file) throws IOException {
+        setOds(csvFile);
+        PriceMatrix prices = PriceMatrix.open(Paths.get(file));
+        if (prices.rows() != ods.size() || prices.key() != flowKey()) {
+            throw new IOException(file + " was generated for other flow records than " + csvFile);
+        }
+        this.models = null;
+        setMatrix(prices);
+    }
+
+    /**
+     * The method restores the flow records and price samples of a snapshot, the flows must be registered
+     * @param ods the flow records in order
+     * @param prices the samples by position in the flow records
+     */
+    void restoreOdPrice(List<String> ods, PriceMatrix prices) {
+        this.ods.clear();
+        this.ods.addAll(ods);
+        this.models = null;
+        setMatrix(prices);
+    }
+
+    /**
+     * Generate the next price samples directly into a memory-mapped file, so they never occupy the heap
+     * and stay in the file for later runs
+     * @param priceFile the price file, null keeps the samples in direct memory
+     */
+    public void setPriceFile(String priceFile) {
+        this.priceFile = priceFile;
+    }
+
+
+    /**
+     * The method generate a key value pair of flows and market price samples with the Uniform distribution
+     * @param sample_size size of sample price for each flow
+     * @param csvFile file path containing flow records
      * @param upper_ub upper bound of upper
      * @param upper_lb lower bound of upper
      * @param lower_ub upper bound of lower
@@ -315,32 +290,63 @@ public class Market {
      * @param lb lower bound of sample price
      * @param ub upper bound of sample price
      */
-    private void setOdPrice(
+    public void setOdPrice(
             int sample_size, String csvFile, double upper_ub, double upper_lb,
             double lower_ub, double lower_lb, Integer lb, Integer ub){
-        setOds(csvFile);
-        this.price_ls = setPrices(sample_size, upper_ub, upper_lb, lower_ub, lower_lb, lb, ub);
+        setOdPrice(sample_size, csvFile, UniformPriceModel.factory(upper_ub, upper_lb, lower_ub, lower_lb, lb, ub));
+    }
 
-        Iterator<String> od_iter = ods.iterator();
-        Iterator<List<Double>> price_iter = this.price_ls.iterator();
 
-        while (od_iter.hasNext() && price_iter.hasNext()) {
-            List<Double> prices = price_iter.next();
-            String od = od_iter.next();
-            od_prices.put(od, prices);
-            recent_od_price.put(od, prices.get(prices.size()-1));
-        }
+    /**
+     * Use the closed form G(a) of the price models that have one instead of their samples,
+     * only the most recent price of those flows is sampled
+     * @param analytic true to skip sampling where a closed form exists
+     */
+    public void setAnalytic(boolean analytic) {
+        this.analytic = analytic;
+        this.stats = null;
     }
 
 
+
+    /**
+     * Set the pool the price samples are generated on
+     * @param pool the pool splitting the flows, null generates them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the metrics the generation of price samples and G tables is timed in
+     * @param metrics the metrics of the run, null records nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the seed of the per-flow random streams the price samples are drawn from
+     * @param seed the seed of the run
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Get the seed of the per-flow random streams */
+    public long getSeed() {
+        return this.seed;
+    }
+
     /** Get sample prices of a specific flow */
     public List<Double> getPrices(String od) {
-        return this.od_prices.get(od);
+        int id = flows.id(od);
+        return id < 0 || id >= rows.length || rows[id] < 0 ? null : matrix.rowList(rows[id]);
     }
 
     /** Get most recent price of a specific flow */
     public HashMap<String, Double> getRecentPrice() {
-        return recent_od_price;
+        return table.toMap(FlowTable.Column.RECENT_PRICE);
     }
 
     /** Get flow records */
@@ -348,64 +354,179 @@ public class Market {
         return this.ods;
     }
 
-    /** Get flows and their respective sample prices */
+    /** Get flows and their respective sample prices, the samples are views of the price matrix */
     public HashMap<String, List<Double>>getOdPrice() {
+        if (od_prices == null) {
+            HashMap<String, List<Double>> res = new HashMap<String, List<Double>>();
+            for (int id = 0; id < rows.length; id++) {
+                if (rows[id] >= 0) res.put(flows.od(id), matrix.rowList(rows[id]));
+            }
+            od_prices = res;
+        }
         return this.od_prices;
     }
 
+    /** Get the price samples of all flows, without boxing */
+    public PriceMatrix getPriceMatrix() {
+        return this.matrix;
+    }
+
+    /** Get the row of a flow in the price matrix, -1 if it has no samples */
+    public int getPriceRow(int id) {
+        return id < rows.length ? rows[id] : -1;
+    }
+
+    /** Get the flow dictionary shared with the Buyer and the Seller */
+    public FlowIndex getFlowIndex() {
+        return this.flows;
+    }
+
+    /**
+     * Split the loaded flows into int-encoded origin and destination
+     * @param endpoints the endpoint dictionary to fill, null disables the split
+     */
+    public void setEndpoints(FlowEndpoints endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    /** Get the origin and destination of the loaded flows, null if they are not split */
+    public FlowEndpoints getEndpoints() {
+        return this.endpoints;
+    }
+
+    /** Get the most recent price by flow id */
+    public FlowTable getFlowTable() {
+        return this.table;
+    }
+
+    /** Get the price model of a flow, null if it has none */
+    public PriceModel getPriceModel(int id) {
+        return models != null && id < models.length ? models[id] : null;
+    }
+
+    /** Build the price distribution of a flow, null if it has none */
+    private PriceStats buildStats(int id) {
+        PriceModel model = getPriceModel(id);
+        if (analytic && model != null && model.expectedValue() != null) {
+            return new PriceStats(model.expectedValue());
+        }
+        int row = getPriceRow(id);
+        return row < 0 ? null : new PriceStats(new GTable(matrix, row));
+    }
+
+    /**
+     * Get the price distribution and its statistics by flow id. They are computed once per generated
+     * sample set and afterwards only for the flows whose samples changed, the array stays the same.
+     * In analytic mode the closed form of the price model is used where it exists
+     */
+    public PriceStats[] getPriceStats() {
+        if (stats == null) {
+            PriceStats[] res = new PriceStats[flows.size()];
+            FlowTasks.forEachRange(pool, res.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    res[i] = buildStats(i);
+                }
+            });
+            stats = res;
+            stale = new BitSet(res.length);
+        }
+        for (int i = stale.nextSetBit(0); i >= 0; i = stale.nextSetBit(i + 1)) {
+            stats[i] = buildStats(i);
+        }
+        stale.clear();
+        return stats;
+    }
+
+    /** Get the G table of the sample prices by flow id, the same array as getPriceStats */
+    public GFunction[] getGTables() {
+        return getPriceStats();
+    }
 
 
-    public static void main(String[] args) {
-        String filePath = "G:\\Python\\SF\\special_sales\\large_vol_list.csv";
+
+    /**
+     * The method creates the price model factory named on the command line
+     * @param name uniform, normal, gamma or empirical:path of the price history csv
+     */
+    private static PriceModel.Factory priceModel(String name) throws IOException {
+        if (name.startsWith("empirical:")) {
+            return EmpiricalPriceModel.load(name.substring("empirical:".length()));
+        }
+        switch (name) {
+            case "uniform":
+                return UniformPriceModel.factory(40, 30, 20, 10, 10, 40);
+            case "normal":
+                return NormalPriceModel.factory(30, 15, 3, 1, 10, 40);
+            case "gamma":
+                return GammaPriceModel.factory(20, 9, 1.5, 1, 10, 40);
+            default:
+                throw new IllegalArgumentException("unknown price model " + name);
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        String filePath = args.length > 0 ? args[0] : "G:\\Python\\SF\\special_sales\\large_vol_list.csv";
+        String model = args.length > 1 ? args[1] : "uniform";
 
         /** Initialize Market price and flows */
+        long seed = 20190115L;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Metrics metrics = new Metrics();
+        metrics.startReporter(30, TimeUnit.SECONDS, m -> System.err.println(m.toJson()));
         Market mkt = new Market();
-//        mkt.setOdPrice(30, filePath, 30, 15,3, 1, 10, 40);
-//        mkt.setOdPrice(30, filePath, 20, 9,1.5, 1, 10, 40);
-        mkt.setOdPrice(30, filePath, 40, 30,20, 10, 10, 40);
+        mkt.setSeed(seed);
+        mkt.setPool(pool);
+        mkt.setMetrics(metrics);
+        mkt.setAnalytic(args.length > 2 && args[2].equals("analytic"));
+        String priceFile = args.length > 3 ? args[3] : null;
+        if (priceFile != null && Files.exists(Paths.get(priceFile))) {
+            /** Reuse the price samples saved by an earlier run */
+            mkt.openOdPrice(filePath, priceFile);
+        } else {
+            mkt.setPriceFile(priceFile);
+            mkt.setOdPrice(30, filePath, priceModel(model));
+        }
         List<String> ods = mkt.getOds();
-        HashMap<String, List<Double>> odsPrice = mkt.getOdPrice();
-        HashMap<String, Double> recent_od_price = mkt.getRecentPrice();
+        FlowIndex flows = mkt.getFlowIndex();
+        GFunction[] odsPrice = mkt.getGTables();
+        FlowTable recent_od_price = mkt.getFlowTable();
 
 
         /** Initialize the Buyer and get the contract level (Q) of the Buyer */
-        Buyer buyer = new Buyer();
+        Buyer buyer = new Buyer(flows);
+        buyer.setSeed(seed);
+        buyer.setPool(pool);
+        buyer.setMetrics(metrics);
         buyer.initializeContractLevel(ods);
-        HashMap<String, Double> contractLevel = buyer.getContractLevel();
 
         /** Initialize the Seller and get the execution and reservation fee of the Seller */
-        Seller seller = new Seller();
+        Seller seller = new Seller(flows);
+        seller.setSeed(seed);
+        seller.setPool(pool);
+        seller.setMetrics(metrics);
         seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
-        HashMap<String, Double> execuFee = seller.getExecuFee();
         seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
-        HashMap<String, Double> reservFee = seller.getReservFee();
 //        seller.setCapacity(ods, 800, 400, 10, 5, 200, 1000);
         seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
-        HashMap<String, Double> capacity = seller.getCapacity();
+        FlowTable sellerTable = seller.getFlowTable();
 
         /**  Calculate demand from the Seller and market with the most recent price */
-        buyer.setDemandFromSeller(contractLevel, execuFee, recent_od_price);
-        HashMap<String, Double> demandFromSeller = buyer.getDemandFromSeller();
-//        System.out.println(demandFromSeller);
-        buyer.setDemandFromMkt(contractLevel, execuFee, recent_od_price);
-        HashMap<String, Double> demandFromMkt = buyer.getDemandFromMarket();
-//        System.out.println(demandFromMkt);
-
-
-        /** Optimize Buyer's contract level */
-        System.out.println("Initial Q: " + buyer.getContractLevel());
-        buyer.setOptimalContractLevel(odsPrice, reservFee, execuFee, capacity, 4.0);
-        System.out.println("Updated Q: " + buyer.getContractLevel());
-
-        /** Optimize Seller's reservation fee */
-        System.out.println("Initial s: " + seller.getReservFee());
-        contractLevel = buyer.getContractLevel();
-        HashMap<String, Double> marginalCost = seller.getMarginalCost();
-        seller.setOptimalReserFee(
-                odsPrice, reservFee, execuFee, capacity, contractLevel, marginalCost, 0.25, 0.65
-        );
-        reservFee = seller.getReservFee();
-        System.out.println("Updated s: " + reservFee);
+        buyer.setDemand(sellerTable, recent_od_price);
+//        System.out.println(buyer.getDemandFromSeller());
+//        System.out.println(buyer.getDemandFromMarket());
+
+
+
+        /** Alternate the Buyer's Q and the Seller's s and K until they settle */
+        Equilibrium equilibrium = new Equilibrium(buyer, seller, odsPrice);
+        equilibrium.setThreshold(4.0);
+        equilibrium.setEntryBounds(0.25, 0.65);
+        boolean converged = equilibrium.run();
+        for (Equilibrium.Round round : equilibrium.getRounds()) {
+            System.out.println(round);
+        }
+        System.out.println(converged ? "Equilibrium reached" : "Equilibrium not reached");
 
 //        /** Print out the optimal non-zero contract level and reservation fee */
 //        for (Map.Entry<String, Double> entry: buyer.getContractLevel().entrySet()){
@@ -416,10 +537,37 @@ public class Market {
 //            }
 //        }
 
-        System.out.println("Initial K: " + capacity);
-        seller.setOptimalCapacity(odsPrice, reservFee, execuFee);
-        capacity = seller.getCapacity();
-        System.out.println("Optimal K: " + capacity);
+        /** Stream the optimal decisions, to standard output if no result file is given */
+        buyer.setDemand(sellerTable, recent_od_price);
+        String results = args.length > 5 ? args[5] : null;
+        try (ResultSink sink = results != null ? ResultSink.open(results)
+                : new AsyncResultSink(CsvResultSink.toStandardOutput(), 16)) {
+            sink.write(ods, buyer, seller);
+        }
+
+        /** Evaluate the decisions over simulated spot prices */
+        Evaluator evaluator = new Evaluator(mkt, buyer, seller);
+        evaluator.setSeed(seed);
+        evaluator.setPool(pool);
+        for (Evaluator.Estimate estimate : evaluator.run()) {
+            System.out.println(estimate);
+        }
+
+        /** Respond the Seller's optimal s and K to its parameters */
+        Sensitivity sensitivity = new Sensitivity(seller, buyer, odsPrice);
+        sensitivity.setPool(pool);
+        sensitivity.setEntryBounds(0.25, 0.65);
+        sensitivity.run();
+        for (Sensitivity.Summary summary : sensitivity.summarize()) {
+            System.out.println(summary);
+        }
+        metrics.stopReporter();
+        System.out.print(metrics.toText());
+
+        /** Checkpoint the run so that it can be resumed or analysed later */
+        if (args.length > 4) {
+            Snapshot.save(args[4], mkt, buyer, seller);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,478 @@
+/**
+ * The class plays the game between several Buyers and several Sellers competing on
+ * the same flows. Every agent keeps its own decisions in its own flow table, all
+ * tables share the Market's flow dictionary. A round visits every flow once:
+ *
+ *   1. every Buyer contracts with the Seller offering the cheapest contract s + G(g)
+ *      and optimizes its contract level Q against that Seller's s, g and K
+ *   2. a Seller whose contracts exceed its capacity rations them pro rata, the part
+ *      a Buyer is rationed out of is offered to the next-cheapest Sellers with
+ *      capacity left, again pro rata, and what none of them has room for is bought
+ *      on the spot market
+ *   3. every Seller re-optimizes its reservation fee s and capacity K against the
+ *      contract level it sold on the flow
+ *   4. every Buyer buys q from its Sellers and x from the Market at the recent price
+ *
+ * The flows are sharded into ranges, a worker owns all agents' slots of the flows in
+ * its range, so rounds run without locking and only the residuals are merged.
+ */
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+
+public class Marketplace {
+    private final Market market;
+    private final Buyer[] buyers;
+    private final Seller[] sellers;
+    private final FlowTable[] books;
+    private final int[][] choice;
+    private final double[][] contracts;
+    private final List<Equilibrium.Round> rounds;
+
+    private ForkJoinPool pool;
+    private double threshold;
+    private double m_lb;
+    private double m_ub;
+    private double tolerance;
+    private double epsilon;
+    private int maxIterations;
+    private boolean recovered;
+
+    /** Residuals of one round, merged from the ranges of flows */
+    private static class Residuals {
+        int recomputed;
+        int moved;
+        double dQ;
+        double dS;
+        double dK;
+        int nonFinite;
+        boolean recovered;
+
+        synchronized void merge(Residuals other) {
+            recomputed += other.recomputed;
+            moved += other.moved;
+            nonFinite += other.nonFinite;
+            recovered |= other.recovered;
+            dQ = Math.max(dQ, other.dQ);
+            dS = Math.max(dS, other.dS);
+            dK = Math.max(dK, other.dK);
+        }
+    }
+
+    /**
+     * Create a marketplace over agents sharing the Market's flow dictionary
+     * @param market the Market giving the price distribution and recent price of every flow
+     * @param buyers the Buyers, with their contract levels initialized
+     * @param sellers the Sellers, with their fees, capacities and marginal costs initialized
+     */
+    public Marketplace(Market market, List<Buyer> buyers, List<Seller> sellers) {
+        FlowIndex flows = market.getFlowIndex();
+        for (Buyer buyer : buyers) {
+            if (buyer.getFlowTable().getIndex() != flows) {
+                throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+            }
+        }
+        for (Seller seller : sellers) {
+            if (seller.getFlowTable().getIndex() != flows) {
+                throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+            }
+        }
+        this.market = market;
+        this.buyers = buyers.toArray(new Buyer[0]);
+        this.sellers = sellers.toArray(new Seller[0]);
+        this.books = new FlowTable[this.sellers.length];
+        for (int j = 0; j < books.length; j++) {
+            books[j] = new FlowTable(flows);
+        }
+        this.choice = new int[this.buyers.length][];
+        this.contracts = new double[this.buyers.length][];
+        this.rounds = new ArrayList<Equilibrium.Round>();
+        this.threshold = 4.0;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+        this.tolerance = 1e-6;
+        this.epsilon = 1e-6;
+        this.maxIterations = 50;
+    }
+
+    /**
+     * Set the pool the ranges of flows run on
+     * @param pool the pool splitting the flows, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Set the stop condition of the Buyers' contract level optimization */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Set the bounds of probability to enter market of the Sellers' reservation fees */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /**
+     * Set when the rounds stop
+     * @param tolerance the largest move of any decision at the equilibrium
+     * @param epsilon a flow counts as moved if one of its decisions moved more than this
+     */
+    public void setTolerance(double tolerance, double epsilon) {
+        this.tolerance = tolerance;
+        this.epsilon = epsilon;
+    }
+
+    /** Set the maximum number of rounds */
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * The method runs rounds until every decision of every agent moves less than the tolerance
+     * @return true if the equilibrium was reached within the maximum number of rounds
+     */
+    public boolean run() {
+        rounds.clear();
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            Equilibrium.Round round = step(iteration);
+            rounds.add(round);
+            if (round.residual() <= tolerance && !recovered) return true;
+        }
+        return false;
+    }
+
+    /** Size every column a round writes, so the ranges write their own slots only */
+    private void ensureCapacity(int n) {
+        for (int k = 0; k < buyers.length; k++) {
+            FlowTable table = buyers[k].getFlowTable();
+            table.ensureCapacity(FlowTable.Column.CONTRACT_LEVEL);
+            table.ensureCapacity(FlowTable.Column.DEMAND_FROM_SELLER);
+            table.ensureCapacity(FlowTable.Column.DEMAND_FROM_MKT);
+            if (buyers[k].getSolverState() != null) buyers[k].getSolverState().ensureCapacity(n);
+            if (choice[k] == null || choice[k].length < n) {
+                int old = choice[k] == null ? 0 : choice[k].length;
+                choice[k] = choice[k] == null ? new int[n] : Arrays.copyOf(choice[k], n);
+                Arrays.fill(choice[k], old, n, -1);
+            }
+            int size = n * sellers.length;
+            if (contracts[k] == null || contracts[k].length < size) {
+                contracts[k] = contracts[k] == null ? new double[size] : Arrays.copyOf(contracts[k], size);
+            }
+        }
+        for (int j = 0; j < sellers.length; j++) {
+            sellers[j].getFlowTable().ensureCapacity(FlowTable.Column.RESERV_FEE);
+            sellers[j].getFlowTable().ensureCapacity(FlowTable.Column.CAPACITY);
+            books[j].ensureCapacity(FlowTable.Column.CONTRACT_LEVEL);
+            books[j].ensureCapacity(FlowTable.Column.DEMAND_FROM_SELLER);
+        }
+    }
+
+    /** Run one round over every flow */
+    private Equilibrium.Round step(int iteration) {
+        PriceStats[] prices = market.getPriceStats();
+        FlowTable recent = market.getFlowTable();
+        int n = prices.length;
+        ensureCapacity(n);
+
+        Residuals total = new Residuals();
+        FlowTasks.forEachRange(pool, n, (from, to) -> {
+            Residuals local = new Residuals();
+            double[] Q = new double[buyers.length];
+            int[] pick = new int[buyers.length];
+            double[] sold = new double[sellers.length];
+            double[] cost = new double[sellers.length];
+            Integer[] order = new Integer[sellers.length];
+            for (int i = from; i < to; i++) {
+                if (prices[i] == null) continue;
+                local.recomputed++;
+                boolean moved = contract(i, prices[i], Q, pick, sold, cost, order, local);
+                moved |= price(i, prices[i], sold, local);
+                if (moved) local.moved++;
+                if (!finite(i)) local.nonFinite++;
+            }
+            demand(recent, from, to);
+            total.merge(local);
+        });
+        recovered = total.recovered;
+        return new Equilibrium.Round(iteration, total.recomputed, total.moved, total.dQ, total.dS, total.dK,
+                total.nonFinite);
+    }
+
+    /**
+     * Let every Buyer of a flow choose its Seller and contract level, then ration oversold capacity
+     * and reassign what was rationed out to the Sellers with capacity left, the cheapest first
+     */
+    private boolean contract(int i, PriceStats prices, double[] Q, int[] pick, double[] sold,
+                             double[] cost, Integer[] order, Residuals res) {
+        Arrays.fill(sold, 0.0);
+        int best = -1;
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < sellers.length; j++) {
+            FlowTable seller = sellers[j].getFlowTable();
+            cost[j] = Double.POSITIVE_INFINITY;
+            if (!(seller.get(FlowTable.Column.CAPACITY, i) > 0)) continue;
+            cost[j] = seller.get(FlowTable.Column.RESERV_FEE, i)
+                    + prices.value(seller.get(FlowTable.Column.EXECU_FEE, i));
+            if (cost[j] < bestCost) {
+                best = j;
+                bestCost = cost[j];
+            }
+        }
+        for (int k = 0; k < buyers.length; k++) {
+            pick[k] = best;
+            Q[k] = 0.0;
+            if (best >= 0) {
+                FlowTable seller = sellers[best].getFlowTable();
+                Q[k] = buyers[k].getOptimalContractLevel(prices,
+                        seller.get(FlowTable.Column.RESERV_FEE, i),
+                        seller.get(FlowTable.Column.EXECU_FEE, i),
+                        seller.get(FlowTable.Column.CAPACITY, i), threshold, i);
+                if (Q[k] > 0) sold[best] += Q[k];
+            }
+        }
+
+        // Q is left with what a Buyer could not contract at its Seller
+        int base = i * sellers.length;
+        double rationed = 0.0;
+        for (int k = 0; k < buyers.length; k++) {
+            Arrays.fill(contracts[k], base, base + sellers.length, 0.0);
+            int j = pick[k];
+            if (j < 0) continue;
+            double K = sellers[j].getFlowTable().get(FlowTable.Column.CAPACITY, i);
+            double kept = Q[k] > 0 && sold[j] > K ? Q[k] * K / sold[j] : Q[k];
+            contracts[k][base + j] = kept;
+            Q[k] = Q[k] > 0 ? Q[k] - kept : 0.0;
+            rationed += Q[k];
+        }
+        for (int j = 0; j < sellers.length; j++) {
+            double K = sellers[j].getFlowTable().get(FlowTable.Column.CAPACITY, i);
+            if (sold[j] > K) sold[j] = K;
+        }
+        if (rationed > 0) {
+            for (int j = 0; j < sellers.length; j++) order[j] = j;
+            Arrays.sort(order, (a, b) -> Double.compare(cost[a], cost[b]));
+            for (int j : order) {
+                if (!(rationed > 0)) break;
+                double free = sellers[j].getFlowTable().get(FlowTable.Column.CAPACITY, i) - sold[j];
+                if (!(cost[j] < Double.POSITIVE_INFINITY) || !(free > 0)) continue;
+                double share = Math.min(1.0, free / rationed);
+                for (int k = 0; k < buyers.length; k++) {
+                    if (!(Q[k] > 0)) continue;
+                    double taken = Q[k] * share;
+                    contracts[k][base + j] += taken;
+                    Q[k] -= taken;
+                }
+                sold[j] += rationed * share;
+                rationed -= rationed * share;
+            }
+        }
+
+        boolean moved = false;
+        for (int k = 0; k < buyers.length; k++) {
+            double total = 0.0;
+            for (int j = 0; j < sellers.length; j++) {
+                total += contracts[k][base + j];
+            }
+            FlowTable table = buyers[k].getFlowTable();
+            double before = table.get(FlowTable.Column.CONTRACT_LEVEL, i);
+            res.dQ = Math.max(res.dQ, move(before, total, res));
+            moved |= moved(before, total) || choice[k][i] != pick[k];
+            table.set(FlowTable.Column.CONTRACT_LEVEL, i, total);
+            choice[k][i] = pick[k];
+        }
+        for (int j = 0; j < sellers.length; j++) {
+            books[j].set(FlowTable.Column.CONTRACT_LEVEL, i, sold[j]);
+        }
+        return moved;
+    }
+
+    /** Let every Seller of a flow re-optimize its reservation fee and capacity against what it sold */
+    private boolean price(int i, PriceStats prices, double[] sold, Residuals res) {
+        boolean moved = false;
+        for (int j = 0; j < sellers.length; j++) {
+            Seller seller = sellers[j];
+            FlowTable table = seller.getFlowTable();
+            double s = table.get(FlowTable.Column.RESERV_FEE, i);
+            double g = table.get(FlowTable.Column.EXECU_FEE, i);
+            double K = table.get(FlowTable.Column.CAPACITY, i);
+            double m = seller.getEntryProbability(i, m_lb, m_ub);
+            double s_opt = seller.getOptimalReserFee(prices, seller.getGamma(), m, s, g, sold[j], K,
+                    table.get(FlowTable.Column.MARGIN_COST, i));
+            double K_opt = seller.calculateQ(prices, s_opt, g);
+            res.dS = Math.max(res.dS, move(s, s_opt, res));
+            res.dK = Math.max(res.dK, move(K, K_opt, res));
+            moved |= moved(s, s_opt) || moved(K, K_opt);
+            table.set(FlowTable.Column.RESERV_FEE, i, s_opt);
+            table.set(FlowTable.Column.CAPACITY, i, K_opt);
+        }
+        return moved;
+    }
+
+    /**
+     * Let every Buyer of the flows in [from, to) buy from its Sellers and from the Market. The contract
+     * with the chosen Seller goes through the demand kernel, a contract reassigned to another Seller is
+     * executed when the price is above that Seller's execution fee and replaces market purchases
+     */
+    private void demand(FlowTable recent, int from, int to) {
+        int len = to - from;
+        double[] price = new double[len];
+        double[] execuFee = new double[len];
+        double[] contractLevel = new double[len];
+        double[] fromSeller = new double[len];
+        double[] fromMkt = new double[len];
+        for (int j = 0; j < sellers.length; j++) {
+            for (int i = from; i < to; i++) {
+                books[j].set(FlowTable.Column.DEMAND_FROM_SELLER, i, 0.0);
+            }
+        }
+        for (int k = 0; k < buyers.length; k++) {
+            FlowTable table = buyers[k].getFlowTable();
+            for (int i = from; i < to; i++) {
+                int j = choice[k][i];
+                price[i - from] = recent.has(FlowTable.Column.RECENT_PRICE, i)
+                        ? recent.get(FlowTable.Column.RECENT_PRICE, i) : Double.NaN;
+                execuFee[i - from] = j < 0 ? Double.NaN : sellers[j].getFlowTable().get(FlowTable.Column.EXECU_FEE, i);
+                contractLevel[i - from] = j < 0
+                        ? table.get(FlowTable.Column.CONTRACT_LEVEL, i) : contracts[k][i * sellers.length + j];
+            }
+            DemandKernel.demand(price, execuFee, contractLevel, fromSeller, fromMkt, 0, len);
+            for (int i = from; i < to; i++) {
+                double p = price[i - from];
+                if (Double.isNaN(p)) continue;
+                int j = choice[k][i];
+                if (j >= 0) {
+                    books[j].set(FlowTable.Column.DEMAND_FROM_SELLER, i,
+                            books[j].get(FlowTable.Column.DEMAND_FROM_SELLER, i) + fromSeller[i - from]);
+                }
+                for (int other = 0; other < sellers.length; other++) {
+                    double reassigned = contracts[k][i * sellers.length + other];
+                    if (other == j || !(reassigned > 0)) continue;
+                    double q = p > sellers[other].getFlowTable().get(FlowTable.Column.EXECU_FEE, i) ? reassigned : 0.0;
+                    fromSeller[i - from] += q;
+                    fromMkt[i - from] = Math.max(fromMkt[i - from] - q, 0.0);
+                    books[other].set(FlowTable.Column.DEMAND_FROM_SELLER, i,
+                            books[other].get(FlowTable.Column.DEMAND_FROM_SELLER, i) + q);
+                }
+                table.set(FlowTable.Column.DEMAND_FROM_SELLER, i, fromSeller[i - from]);
+                table.set(FlowTable.Column.DEMAND_FROM_MKT, i, fromMkt[i - from]);
+            }
+        }
+    }
+
+    /** Check whether a decision moved, a decision staying NaN did not move */
+    private boolean moved(double before, double after) {
+        if (Double.isNaN(before) && Double.isNaN(after)) return false;
+        return !(Math.abs(after - before) <= epsilon);
+    }
+
+    /**
+     * Absolute move of a decision, left out of the residuals while it is NaN or infinite as in Equilibrium,
+     * a decision coming back finite keeps the round from being the equilibrium
+     */
+    private static double move(double before, double after, Residuals res) {
+        if (!Double.isFinite(after)) return 0.0;
+        if (!Double.isFinite(before)) {
+            res.recovered = true;
+            return 0.0;
+        }
+        return Math.abs(after - before);
+    }
+
+    /** Check whether every decision of every agent on a flow is a number */
+    private boolean finite(int i) {
+        for (Buyer buyer : buyers) {
+            if (!Double.isFinite(buyer.getFlowTable().get(FlowTable.Column.CONTRACT_LEVEL, i))) return false;
+        }
+        for (Seller seller : sellers) {
+            FlowTable table = seller.getFlowTable();
+            if (!Double.isFinite(table.get(FlowTable.Column.RESERV_FEE, i))
+                    || !Double.isFinite(table.get(FlowTable.Column.CAPACITY, i))) return false;
+        }
+        return true;
+    }
+
+    /** Get the residuals of every round of the last run */
+    public List<Equilibrium.Round> getRounds() {
+        return Collections.unmodifiableList(rounds);
+    }
+
+    /** Get the Seller a Buyer contracts with on a flow, -1 for none */
+    public int getChoice(int buyer, int id) {
+        int[] col = choice[buyer];
+        return col == null || id >= col.length ? -1 : col[id];
+    }
+
+    /** Get the contract level a Buyer holds with a Seller on a flow, rationed and reassigned */
+    public double getContract(int buyer, int seller, int id) {
+        double[] col = contracts[buyer];
+        int slot = id * sellers.length + seller;
+        return col == null || slot >= col.length ? 0.0 : col[slot];
+    }
+
+    /** Get what a Seller sold: the contract level Q and the quantity executed q of every flow */
+    public FlowTable getBook(int seller) {
+        return books[seller];
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: Marketplace <flow csv> <buyers> <sellers> [rounds]");
+            return;
+        }
+        int buyerCount = Integer.parseInt(args[1]);
+        int sellerCount = Integer.parseInt(args[2]);
+
+        long seed = 20190115L;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Market mkt = new Market();
+        mkt.setSeed(seed);
+        mkt.setPool(pool);
+        mkt.setOdPrice(30, args[0], 40, 30, 20, 10, 10, 40);
+        List<String> ods = mkt.getOds();
+
+        /** Every agent draws its own initial decisions from its own seed */
+        List<Buyer> buyers = new ArrayList<Buyer>();
+        for (int k = 0; k < buyerCount; k++) {
+            Buyer buyer = new Buyer(mkt.getFlowIndex());
+            buyer.setSeed(FlowRandom.mix64(seed + k));
+            buyer.initializeContractLevel(ods);
+            buyers.add(buyer);
+        }
+        List<Seller> sellers = new ArrayList<Seller>();
+        for (int j = 0; j < sellerCount; j++) {
+            Seller seller = new Seller(mkt.getFlowIndex());
+            seller.setSeed(FlowRandom.mix64(~seed - j));
+            seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+            seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+            seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+            sellers.add(seller);
+        }
+
+        Marketplace marketplace = new Marketplace(mkt, buyers, sellers);
+        marketplace.setPool(pool);
+        if (args.length > 3) marketplace.setMaxIterations(Integer.parseInt(args[3]));
+        boolean converged = marketplace.run();
+        for (Equilibrium.Round round : marketplace.getRounds()) {
+            System.out.println(round);
+        }
+        System.out.println(converged ? "Equilibrium reached" : "Equilibrium not reached");
+
+        /** Share of the contracts sold by every Seller */
+        int n = mkt.getFlowIndex().size();
+        for (int j = 0; j < sellerCount; j++) {
+            FlowTable book = marketplace.getBook(j);
+            double Q = 0.0;
+            double q = 0.0;
+            for (int i = 0; i < n; i++) {
+                Q += book.get(FlowTable.Column.CONTRACT_LEVEL, i);
+                q += book.get(FlowTable.Column.DEMAND_FROM_SELLER, i);
+            }
+            System.out.printf("seller %d: contracted %.6g, executed %.6g%n", j, Q, q);
+        }
+    }
+}
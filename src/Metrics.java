@@ -0,0 +1,206 @@
+/**
+ * The class collects timings and counters of an optimization run. Counters are
+ * striped LongAdders, so parallel workers update them without contention, and
+ * the whole set is exported as JSON or as metrics text, at the end of a run or
+ * periodically while it is running.
+ */
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+
+public class Metrics {
+
+    /** Timed phases of a run */
+    public enum Phase {
+        GENERATION,
+        CONTRACT,
+        FEE,
+        CAPACITY,
+        DEMAND
+    }
+
+    /** Counted events of a run */
+    public enum Counter {
+        /** U' solved for a flow */
+        SOLVER_CALLS,
+        /** U' solved by inverting a G table exactly */
+        SOLVER_EXACT,
+        /** G evaluations of the iterative U' solver */
+        SOLVER_ITERATIONS,
+        /** U' solved from a narrow bracket around the last solution */
+        SOLVER_WARM_STARTS,
+        /** Narrow brackets that missed the root and were widened */
+        SOLVER_EXPANSIONS,
+        /** Flows the Buyer zeroes by the early-exit test on g and s */
+        EARLY_EXIT_Q,
+        /** Flows with an optimal contract level of zero */
+        ZERO_Q,
+        /** Capacities with a negative term under the square root */
+        NEGATIVE_DISCRIMINANT,
+        /** Buyer's elasticities that are not finite */
+        ELASTICITY_NOT_FINITE,
+        /** Decisions that are NaN */
+        NAN_RESULTS,
+        /** Decisions that are infinite */
+        INF_RESULTS
+    }
+
+    private final LongAdder[] counters;
+    private final LongAdder[] nanos;
+    private final LongAdder[] flows;
+    private ScheduledExecutorService reporter;
+
+    public Metrics() {
+        this.counters = adders(Counter.values().length);
+        this.nanos = adders(Phase.values().length);
+        this.flows = adders(Phase.values().length);
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] res = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = new LongAdder();
+        }
+        return res;
+    }
+
+    /** Get the start time of a phase, to be passed to stop */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * The method records a finished phase
+     * @param phase the phase
+     * @param start the time returned by start
+     * @param n the number of flows processed
+     */
+    public void stop(Phase phase, long start, long n) {
+        nanos[phase.ordinal()].add(System.nanoTime() - start);
+        flows[phase.ordinal()].add(n);
+    }
+
+    /** Count one event */
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /** Count several events */
+    public void add(Counter counter, long n) {
+        counters[counter.ordinal()].add(n);
+    }
+
+    /** Count a decision that is NaN or infinite */
+    public void check(double value) {
+        if (Double.isNaN(value)) {
+            counters[Counter.NAN_RESULTS.ordinal()].increment();
+        } else if (Double.isInfinite(value)) {
+            counters[Counter.INF_RESULTS.ordinal()].increment();
+        }
+    }
+
+    /** Get the number of events counted */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /** Get the time spent in a phase in seconds */
+    public double getSeconds(Phase phase) {
+        return nanos[phase.ordinal()].sum() / 1e9;
+    }
+
+    /** Get the number of flows processed in a phase */
+    public long getFlows(Phase phase) {
+        return flows[phase.ordinal()].sum();
+    }
+
+    /** Get the flows processed per second of a phase, 0 if it never ran */
+    public double getFlowsPerSecond(Phase phase) {
+        double seconds = getSeconds(phase);
+        return seconds > 0 ? getFlows(phase) / seconds : 0.0;
+    }
+
+    /** Forget everything recorded so far */
+    public void reset() {
+        for (LongAdder adder : counters) adder.reset();
+        for (LongAdder adder : nanos) adder.reset();
+        for (LongAdder adder : flows) adder.reset();
+    }
+
+    private static String name(Enum<?> e) {
+        return e.name().toLowerCase(Locale.ROOT);
+    }
+
+    /** Export as a JSON object of phases and counters */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            if (phase.ordinal() > 0) sb.append(',');
+            sb.append('"').append(name(phase)).append("\":{")
+                    .append(String.format(Locale.ROOT, "\"seconds\":%.6f,\"flows\":%d,\"flows_per_second\":%.1f",
+                            getSeconds(phase), getFlows(phase), getFlowsPerSecond(phase)))
+                    .append('}');
+        }
+        sb.append("},\"counters\":{");
+        for (Counter counter : Counter.values()) {
+            if (counter.ordinal() > 0) sb.append(',');
+            sb.append('"').append(name(counter)).append("\":").append(get(counter));
+        }
+        return sb.append("}}").toString();
+    }
+
+    /** Export in the metrics text exposition format, one sample per line */
+    public String toText() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE obcs_phase_seconds_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format(Locale.ROOT, "obcs_phase_seconds_total{phase=\"%s\"} %.6f%n",
+                    name(phase), getSeconds(phase)));
+        }
+        sb.append("# TYPE obcs_phase_flows_total counter\n");
+        for (Phase phase : Phase.values()) {
+            sb.append("obcs_phase_flows_total{phase=\"").append(name(phase)).append("\"} ")
+                    .append(getFlows(phase)).append('\n');
+        }
+        sb.append("# TYPE obcs_phase_flows_per_second gauge\n");
+        for (Phase phase : Phase.values()) {
+            sb.append(String.format(Locale.ROOT, "obcs_phase_flows_per_second{phase=\"%s\"} %.1f%n",
+                    name(phase), getFlowsPerSecond(phase)));
+        }
+        for (Counter counter : Counter.values()) {
+            String metric = "obcs_" + name(counter) + "_total";
+            sb.append("# TYPE ").append(metric).append(" counter\n");
+            sb.append(metric).append(' ').append(get(counter)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The method exports the metrics periodically on a daemon thread until stopReporter
+     * @param period the time between two exports
+     * @param unit the unit of period
+     * @param out receives every export, e.g. toJson of this object
+     */
+    public synchronized void startReporter(long period, TimeUnit unit, Consumer<Metrics> out) {
+        stopReporter();
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-reporter");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(() -> out.accept(this), period, period, unit);
+    }
+
+    /** Stop the periodic export */
+    public synchronized void stopReporter() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}
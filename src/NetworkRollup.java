@@ -0,0 +1,249 @@
+/**
+ * The class keeps totals of flow decisions by endpoint of the network, e.g. the
+ * contract level Q of the Buyer, the capacity K of the Seller or the demand x the
+ * Buyer expects to meet in the market, summed
+ *
+ *   by origin       over the flows leaving an endpoint
+ *   by destination  over the flows entering an endpoint
+ *   by hub          over the flows leaving or entering an endpoint
+ *
+ * The rollup listens to the flow tables of the watched columns. A write marks the
+ * totals of the flow's origin, destination and hubs stale, and a stale total is
+ * summed again over its own flows only when it is read, in flow id order, so the
+ * totals are exact and the same for a given set of decisions however they were
+ * written. Unset and non-finite values count as zero.
+ *
+ * Writes may come from several threads at once and totals may be read meanwhile.
+ * A write marks its groups stale under the rollup's monitor, which a read holds
+ * from summing a group until it is marked fresh, so a write landing during the sum
+ * leaves the group stale for the next read.
+ */
+
+import java.util.*;
+
+
+public class NetworkRollup implements FlowTable.Listener {
+
+    /** Groups of flows sharing an endpoint */
+    public enum Level {
+        ORIGIN,
+        DESTINATION,
+        HUB
+    }
+
+    private final FlowIndex flows;
+    private final FlowEndpoints endpoints;
+    private final FlowTable[] tables;
+    private final int[] measures;
+    private int watched;
+
+    private int flowCount;
+    private int groupCount;
+    private int[][][] members;
+    private double[][][] totals;
+    private boolean[][][] stale;
+    private long recomputed;
+
+    /**
+     * Create a rollup over the flows of a dictionary split into endpoints
+     * @param flows the flow dictionary of the watched tables
+     * @param endpoints the origin and destination of every flow, flows without them are left out
+     */
+    public NetworkRollup(FlowIndex flows, FlowEndpoints endpoints) {
+        this.flows = flows;
+        this.endpoints = endpoints;
+        this.tables = new FlowTable[FlowTable.Column.values().length];
+        this.measures = new int[FlowTable.Column.values().length];
+        Arrays.fill(measures, -1);
+        this.members = new int[Level.values().length][0][];
+        this.totals = new double[0][][];
+        this.stale = new boolean[0][][];
+    }
+
+    /**
+     * The method keeps totals of a column of a flow table, the table tells the rollup about every write
+     * @param table the table of the Buyer, the Seller or the Market, indexed by the rollup's flow dictionary
+     * @param column the column to total, each column is taken from one table only
+     */
+    public synchronized void watch(FlowTable table, FlowTable.Column column) {
+        if (table.getIndex() != flows) {
+            throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+        }
+        if (table.getListener() != null && table.getListener() != this) {
+            throw new IllegalArgumentException("flow table already has a listener");
+        }
+        int c = column.ordinal();
+        if (tables[c] != null && tables[c] != table) {
+            throw new IllegalArgumentException("column " + column + " is already watched in another table");
+        }
+        if (tables[c] != null) return;
+
+        tables[c] = table;
+        measures[c] = watched++;
+        table.setListener(this);
+        totals = Arrays.copyOf(totals, watched);
+        stale = Arrays.copyOf(stale, watched);
+        totals[watched - 1] = new double[Level.values().length][groupCount];
+        stale[watched - 1] = new boolean[Level.values().length][groupCount];
+        for (boolean[] level : stale[watched - 1]) Arrays.fill(level, true);
+    }
+
+    @Override
+    public synchronized void changed(FlowTable.Column column, int id) {
+        int m = measures[column.ordinal()];
+        if (m < 0) return;
+        boolean[][] dirty = stale[m];
+        if (id < 0) {
+            for (boolean[] level : dirty) Arrays.fill(level, true);
+            return;
+        }
+        // flows registered after the groups were built are picked up on the next read
+        if (id >= flowCount) return;
+        int o = endpoints.origin(id);
+        int d = endpoints.destination(id);
+        if (o < 0 || d < 0) return;
+        dirty[Level.ORIGIN.ordinal()][o] = true;
+        dirty[Level.DESTINATION.ordinal()][d] = true;
+        dirty[Level.HUB.ordinal()][o] = true;
+        dirty[Level.HUB.ordinal()][d] = true;
+    }
+
+    /**
+     * Get the total of a column over the flows of an endpoint
+     * @param level whether the flows leave, enter or touch the endpoint
+     * @param endpoint the name of the endpoint
+     * @param column a watched column
+     * @return the total, 0.0 for an unknown endpoint
+     */
+    public double total(Level level, String endpoint, FlowTable.Column column) {
+        int code = endpoints.find(endpoint);
+        return code < 0 ? 0.0 : total(level, code, column);
+    }
+
+    /**
+     * Get the total of a column over the flows of an endpoint
+     * @param level whether the flows leave, enter or touch the endpoint
+     * @param code the code of the endpoint
+     * @param column a watched column
+     * @return the total
+     */
+    public synchronized double total(Level level, int code, FlowTable.Column column) {
+        int m = measure(column);
+        refresh();
+        if (code < 0 || code >= groupCount) return 0.0;
+        if (stale[m][level.ordinal()][code]) sum(m, level.ordinal(), code, column);
+        return totals[m][level.ordinal()][code];
+    }
+
+    /**
+     * Get the totals of a column over the flows of every endpoint
+     * @param level whether the flows leave, enter or touch the endpoint
+     * @param column a watched column
+     * @return the totals indexed by endpoint code, a copy
+     */
+    public synchronized double[] totals(Level level, FlowTable.Column column) {
+        int m = measure(column);
+        refresh();
+        boolean[] dirty = stale[m][level.ordinal()];
+        for (int code = 0; code < groupCount; code++) {
+            if (dirty[code]) sum(m, level.ordinal(), code, column);
+        }
+        return totals[m][level.ordinal()].clone();
+    }
+
+    /** Get the number of flows of an endpoint */
+    public synchronized int count(Level level, int code) {
+        refresh();
+        return code < 0 || code >= groupCount ? 0 : members[level.ordinal()][code].length;
+    }
+
+    /** Get the number of totals summed again since the rollup was created */
+    public synchronized long getRecomputed() {
+        return recomputed;
+    }
+
+    private int measure(FlowTable.Column column) {
+        int m = measures[column.ordinal()];
+        if (m < 0) throw new IllegalArgumentException("column " + column + " is not watched");
+        return m;
+    }
+
+    private void sum(int m, int level, int code, FlowTable.Column column) {
+        FlowTable table = tables[column.ordinal()];
+        double res = 0.0;
+        for (int id : members[level][code]) {
+            if (!table.has(column, id)) continue;
+            double value = table.get(column, id);
+            if (Double.isFinite(value)) res += value;
+        }
+        totals[m][level][code] = res;
+        stale[m][level][code] = false;
+        recomputed++;
+    }
+
+    /** Group the flows registered since the last read by endpoint and mark their groups stale */
+    private void refresh() {
+        int n = flows.size();
+        int g = endpoints.size();
+        if (n == flowCount && g == groupCount) return;
+
+        int[][] sizes = new int[Level.values().length][g];
+        for (int level = 0; level < sizes.length; level++) {
+            for (int code = 0; code < groupCount; code++) {
+                sizes[level][code] = members[level][code].length;
+            }
+        }
+        for (int id = flowCount; id < n; id++) {
+            int o = endpoints.origin(id);
+            int d = endpoints.destination(id);
+            if (o < 0 || d < 0) continue;
+            sizes[Level.ORIGIN.ordinal()][o]++;
+            sizes[Level.DESTINATION.ordinal()][d]++;
+            sizes[Level.HUB.ordinal()][o]++;
+            if (d != o) sizes[Level.HUB.ordinal()][d]++;
+        }
+
+        int[][][] grown = new int[Level.values().length][g][];
+        for (int level = 0; level < grown.length; level++) {
+            for (int code = 0; code < g; code++) {
+                int old = code < groupCount ? members[level][code].length : 0;
+                grown[level][code] = code < groupCount
+                        ? Arrays.copyOf(members[level][code], sizes[level][code]) : new int[sizes[level][code]];
+                sizes[level][code] = old;
+            }
+        }
+        for (int m = 0; m < watched; m++) {
+            stale[m] = grow(stale[m], g);
+            for (int level = 0; level < totals[m].length; level++) {
+                totals[m][level] = Arrays.copyOf(totals[m][level], g);
+            }
+        }
+        for (int id = flowCount; id < n; id++) {
+            int o = endpoints.origin(id);
+            int d = endpoints.destination(id);
+            if (o < 0 || d < 0) continue;
+            grown[Level.ORIGIN.ordinal()][o][sizes[Level.ORIGIN.ordinal()][o]++] = id;
+            grown[Level.DESTINATION.ordinal()][d][sizes[Level.DESTINATION.ordinal()][d]++] = id;
+            grown[Level.HUB.ordinal()][o][sizes[Level.HUB.ordinal()][o]++] = id;
+            if (d != o) grown[Level.HUB.ordinal()][d][sizes[Level.HUB.ordinal()][d]++] = id;
+            for (int m = 0; m < watched; m++) {
+                stale[m][Level.ORIGIN.ordinal()][o] = true;
+                stale[m][Level.DESTINATION.ordinal()][d] = true;
+                stale[m][Level.HUB.ordinal()][o] = true;
+                stale[m][Level.HUB.ordinal()][d] = true;
+            }
+        }
+        members = grown;
+        flowCount = n;
+        groupCount = g;
+    }
+
+    private static boolean[][] grow(boolean[][] flags, int size) {
+        if (flags[0].length >= size) return flags;
+        boolean[][] res = new boolean[flags.length][];
+        for (int level = 0; level < flags.length; level++) {
+            res[level] = Arrays.copyOf(flags[level], size);
+        }
+        return res;
+    }
+}
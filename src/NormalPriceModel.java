@@ -0,0 +1,104 @@
+/**
+ * The class models the market price of a flow with a Normal distribution
+ * truncated to [lb, ub].
+ */
+
+import java.util.SplittableRandom;
+
+
+public class NormalPriceModel implements PriceModel, GFunction {
+    private static final double INV_SQRT_2PI = 1.0 / Math.sqrt(2.0 * Math.PI);
+
+    private final double mu;
+    private final double std;
+    private final double lb;
+    private final double ub;
+    // standard Normal pdf and cdf at the bounds, and the probability mass between them
+    private final double pdf_lb;
+    private final double pdf_ub;
+    private final double cdf_lb;
+    private final double cdf_ub;
+    private final double mass;
+
+    /**
+     * @param mean mean for Normal distribution
+     * @param std standard deviation for Normal distribution
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     */
+    public NormalPriceModel(double mean, double std, double lb, double ub) {
+        if (!(lb < ub) || !(std > 0)) {
+            throw new IllegalArgumentException("invalid truncated Normal N(" + mean + ", " + std + ") on ["
+                    + lb + ", " + ub + "]");
+        }
+        this.mu = mean;
+        this.std = std;
+        this.lb = lb;
+        this.ub = ub;
+        this.pdf_lb = pdf((lb - mean) / std);
+        this.pdf_ub = pdf((ub - mean) / std);
+        this.cdf_lb = TruncatedSampler.cdf((lb - mean) / std);
+        this.cdf_ub = TruncatedSampler.cdf((ub - mean) / std);
+        this.mass = cdf_ub - cdf_lb;
+    }
+
+    /**
+     * The method creates models whose mean and std are drawn uniformly for each flow
+     * @param mean_ub high bound of mean value
+     * @param mean_lb low bound of mean value
+     * @param std_ub high bound of standard deviation
+     * @param std_lb low bound of standard deviation
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     * @return the factory of the models
+     */
+    public static PriceModel.Factory factory(
+            double mean_ub, double mean_lb, double std_ub, double std_lb, double lb, double ub) {
+        return (od, rnd) -> {
+            double mean = rnd.nextDouble(mean_lb, mean_ub);
+            double std = rnd.nextDouble(std_lb, std_ub);
+            return new NormalPriceModel(mean, std, lb, ub);
+        };
+    }
+
+    private static double pdf(double x) {
+        return INV_SQRT_2PI * Math.exp(-0.5 * x * x);
+    }
+
+    @Override
+    public void fill(SplittableRandom rnd, double[] out) {
+        TruncatedSampler.fillNormal(rnd, out, mu, std, lb, ub);
+    }
+
+    @Override
+    public GFunction expectedValue() {
+        // the closed form loses all precision once the window holds no mass
+        return mass > 1e-12 ? this : null;
+    }
+
+    /** Calculate G(a) = E[P; P < a] + a P(P >= a) of the truncated Normal distribution */
+    @Override
+    public double value(double a) {
+        if (a <= lb) return a;
+        if (a >= ub) return mean();
+        double z = (a - mu) / std;
+        double cdf_a = TruncatedSampler.cdf(z);
+        double below = mu * (cdf_a - cdf_lb) - std * (pdf(z) - pdf_lb);
+        return (below + a * (cdf_ub - cdf_a)) / mass;
+    }
+
+    @Override
+    public double max() {
+        return ub;
+    }
+
+    @Override
+    public double min() {
+        return lb;
+    }
+
+    @Override
+    public double mean() {
+        return mu - std * (pdf_ub - pdf_lb) / mass;
+    }
+}
@@ -0,0 +1,505 @@
+/**
+ * The class serves the optimal decisions of resident flows over HTTP on localhost.
+ * The Market's price samples and statistics and the Buyer's and the Seller's state
+ * are built once at start-up and kept for the life of the server, so a request only
+ * pays for the flows it asks about:
+ *
+ *   GET /optimize?od=A-B,C-D[&s=..][&g=..][&K=..]
+ *
+ * answers the Buyer's optimal Q under the given fees and capacity, the current ones
+ * of the Seller for the fees left out, and the Seller's optimal s and K given that Q.
+ * The same query may be POSTed as a form body. With a network rollup set,
+ *
+ *   GET /rollup?level=origin|destination|hub&column=CAPACITY[&endpoint=A]
+ *
+ * answers the totals of a column by endpoint.
+ *
+ * Requests are not solved one by one. A single batcher thread takes every request
+ * waiting at the time, solves each distinct flow and fee set once over the pool and
+ * answers all of them, so concurrent requests for the same flows share the work. A
+ * query never reads or writes the Buyer's solver state, so its answer does not
+ * depend on the requests served before it.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class OptimizationServer {
+    private static final int MAX_BATCH = 1024;
+
+    /** One flow under one set of fees, the unit of work shared by the requests of a batch */
+    private static class Query {
+        final int id;
+        final double s;
+        final double g;
+        final double K;
+
+        Query(int id, double s, double g, double K) {
+            this.id = id;
+            this.s = s;
+            this.g = g;
+            this.K = K;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Query)) return false;
+            Query q = (Query) o;
+            return id == q.id && Double.compare(s, q.s) == 0 && Double.compare(g, q.g) == 0
+                    && Double.compare(K, q.K) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, s, g, K);
+        }
+    }
+
+    /** A request waiting for its batch, the fees are NaN where the Seller's current ones are used */
+    private static class Pending {
+        final int[] ids;
+        final double s;
+        final double g;
+        final double K;
+        final CompletableFuture<double[][]> result;
+
+        Pending(int[] ids, double s, double g, double K) {
+            this.ids = ids;
+            this.s = s;
+            this.g = g;
+            this.K = K;
+            this.result = new CompletableFuture<double[][]>();
+        }
+    }
+
+    private final Market market;
+    private final Buyer buyer;
+    private final Seller seller;
+    private final PriceStats[] stats;
+    private final BlockingQueue<Pending> queue;
+    private final LongAdder requests;
+    private final LongAdder batches;
+    private final LongAdder solved;
+    private ForkJoinPool pool;
+    private Metrics metrics;
+    private NetworkRollup rollup;
+    private double threshold;
+    private double m_lb;
+    private double m_ub;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Thread batcher;
+
+    /**
+     * Create a server over a Market whose prices are generated and agents whose state is initialized
+     * @param market the Market holding the price samples of every flow
+     * @param buyer the Buyer sharing the Market's flow dictionary
+     * @param seller the Seller sharing the Market's flow dictionary
+     */
+    public OptimizationServer(Market market, Buyer buyer, Seller seller) {
+        if (buyer.getFlowTable().getIndex() != market.getFlowIndex()
+                || seller.getFlowTable().getIndex() != market.getFlowIndex()) {
+            throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+        }
+        this.market = market;
+        this.buyer = buyer;
+        this.seller = seller;
+        this.stats = market.getPriceStats();
+        this.queue = new LinkedBlockingQueue<Pending>();
+        this.requests = new LongAdder();
+        this.batches = new LongAdder();
+        this.solved = new LongAdder();
+        this.threshold = 4.0;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+    }
+
+    /**
+     * Set the pool the flows of a batch are split on
+     * @param pool the pool splitting the flows, null solves them on the batcher thread
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the metrics exported on /metrics
+     * @param metrics the metrics of the Buyer and the Seller, null exports the server counters only
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the rollup answering /rollup, its tables must not be written while the server runs
+     * @param rollup the totals by endpoint, null answers /rollup with 404
+     */
+    public void setRollup(NetworkRollup rollup) {
+        this.rollup = rollup;
+    }
+
+    /** Set the stop condition of the Buyer's contract level optimization */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Set the bounds of probability to enter market of the Seller's reservation fee */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /**
+     * The method starts serving on the loopback address
+     * @param port the port, 0 picks a free one
+     * @param threads the number of threads handling connections
+     * @return the port the server listens on
+     * @throws IOException if the port cannot be bound
+     */
+    public synchronized int start(int port, int threads) throws IOException {
+        if (server != null) throw new IllegalStateException("server already started");
+        batcher = new Thread(this::batch, "optimize-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "optimize-http");
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/optimize", this::optimize);
+        server.createContext("/metrics", this::metrics);
+        server.createContext("/rollup", this::rollup);
+        server.setExecutor(executor);
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    /** The method stops serving, requests still waiting for their batch fail */
+    public synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        batcher.interrupt();
+        for (Pending pending; (pending = queue.poll()) != null; ) {
+            pending.result.completeExceptionally(new IllegalStateException("server stopped"));
+        }
+        server = null;
+    }
+
+    /**
+     * The method answers some flows under some fees, waiting for the batch they are solved in
+     * @param ods the flow records
+     * @param s the reservation fee per unit, NaN for the Seller's current one
+     * @param g the execution fee per unit, NaN for the Seller's current one
+     * @param K the capacity of the Seller, NaN for the Seller's current one
+     * @return for every flow its Q, s and K, null for an unknown flow
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws ExecutionException if the batch failed
+     */
+    public double[][] optimize(List<String> ods, double s, double g, double K)
+            throws InterruptedException, ExecutionException {
+        FlowIndex flows = market.getFlowIndex();
+        int[] ids = new int[ods.size()];
+        for (int i = 0; i < ids.length; i++) {
+            int id = flows.id(ods.get(i));
+            ids[i] = id >= 0 && id < stats.length && stats[id] != null ? id : -1;
+        }
+        Pending pending = new Pending(ids, s, g, K);
+        requests.increment();
+        queue.add(pending);
+        return pending.result.get();
+    }
+
+    /** Take every waiting request and answer them together, until interrupted */
+    private void batch() {
+        List<Pending> batch = new ArrayList<Pending>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                try {
+                    solve(batch);
+                } catch (RuntimeException e) {
+                    for (Pending pending : batch) pending.result.completeExceptionally(e);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            for (Pending pending : batch) {
+                pending.result.completeExceptionally(new IllegalStateException("server stopped"));
+            }
+        }
+    }
+
+    /** Solve every distinct flow and fee set of a batch once and answer its requests */
+    private void solve(List<Pending> batch) {
+        FlowTable table = seller.getFlowTable();
+        Map<Query, Integer> index = new HashMap<Query, Integer>();
+        List<Query> queries = new ArrayList<Query>();
+        int[][] slots = new int[batch.size()][];
+        for (int p = 0; p < batch.size(); p++) {
+            Pending pending = batch.get(p);
+            slots[p] = new int[pending.ids.length];
+            for (int i = 0; i < pending.ids.length; i++) {
+                int id = pending.ids[i];
+                if (id < 0) {
+                    slots[p][i] = -1;
+                    continue;
+                }
+                Query query = new Query(id,
+                        Double.isNaN(pending.s) ? table.get(FlowTable.Column.RESERV_FEE, id) : pending.s,
+                        Double.isNaN(pending.g) ? table.get(FlowTable.Column.EXECU_FEE, id) : pending.g,
+                        Double.isNaN(pending.K) ? table.get(FlowTable.Column.CAPACITY, id) : pending.K);
+                Integer slot = index.get(query);
+                if (slot == null) {
+                    slot = queries.size();
+                    index.put(query, slot);
+                    queries.add(query);
+                }
+                slots[p][i] = slot;
+            }
+        }
+
+        double gamma = seller.getGamma();
+        double[][] answers = new double[queries.size()][];
+        FlowTasks.forEach(pool, queries.size(), null, k -> {
+            Query query = queries.get(k);
+            int id = query.id;
+            PriceStats prices = stats[id];
+            // what-if fees must not leave solver state behind, so every query is solved cold
+            double Q = buyer.getOptimalContractLevel(prices, query.s, query.g, query.K, threshold, -1);
+            double s_opt = seller.getOptimalReserFee(prices, gamma, seller.getEntryProbability(id, m_lb, m_ub),
+                    query.s, query.g, Q, query.K, table.get(FlowTable.Column.MARGIN_COST, id));
+            answers[k] = new double[]{Q, s_opt, seller.calculateQ(prices, s_opt, query.g)};
+        });
+        batches.increment();
+        solved.add(queries.size());
+
+        for (int p = 0; p < batch.size(); p++) {
+            double[][] res = new double[slots[p].length][];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = slots[p][i] < 0 ? null : answers[slots[p][i]];
+            }
+            batch.get(p).result.complete(res);
+        }
+    }
+
+    /** Handle GET or POST /optimize */
+    private void optimize(HttpExchange exchange) throws IOException {
+        try {
+            String query = "POST".equals(exchange.getRequestMethod())
+                    ? new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                    : exchange.getRequestURI().getRawQuery();
+            Map<String, List<String>> params = parse(query);
+            List<String> ods = new ArrayList<String>();
+            for (String value : params.getOrDefault("od", Collections.emptyList())) {
+                for (String od : value.split(",")) {
+                    if (!od.isEmpty()) ods.add(od);
+                }
+            }
+            if (ods.isEmpty()) {
+                respond(exchange, 400, "{\"error\":\"no od given\"}");
+                return;
+            }
+            double[][] res = optimize(ods, fee(params, "s"), fee(params, "g"), fee(params, "K"));
+
+            StringBuilder sb = new StringBuilder("{\"flows\":[");
+            for (int i = 0; i < res.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append("{\"od\":\"").append(escape(ods.get(i))).append('"');
+                if (res[i] == null) {
+                    sb.append(",\"error\":\"unknown flow\"}");
+                } else {
+                    sb.append(",\"Q\":").append(number(res[i][0]))
+                            .append(",\"s\":").append(number(res[i][1]))
+                            .append(",\"K\":").append(number(res[i][2])).append('}');
+                }
+            }
+            respond(exchange, 200, sb.append("]}").toString());
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"interrupted\"}");
+        } catch (ExecutionException e) {
+            respond(exchange, 500, "{\"error\":\"" + escape(String.valueOf(e.getCause())) + "\"}");
+        }
+    }
+
+    /** Handle GET /rollup, the totals of one endpoint or of every endpoint by name */
+    private void rollup(HttpExchange exchange) throws IOException {
+        NetworkRollup rollup = this.rollup;
+        FlowEndpoints endpoints = market.getEndpoints();
+        if (rollup == null || endpoints == null) {
+            respond(exchange, 404, "{\"error\":\"no network rollup\"}");
+            return;
+        }
+        try {
+            Map<String, List<String>> params = parse(exchange.getRequestURI().getRawQuery());
+            NetworkRollup.Level level = NetworkRollup.Level.valueOf(
+                    param(params, "level", "hub").toUpperCase(Locale.ROOT));
+            FlowTable.Column column = FlowTable.Column.valueOf(
+                    param(params, "column", "CAPACITY").toUpperCase(Locale.ROOT));
+            String endpoint = param(params, "endpoint", null);
+
+            StringBuilder sb = new StringBuilder("{\"level\":\"").append(level.name().toLowerCase(Locale.ROOT))
+                    .append("\",\"column\":\"").append(column.name()).append("\",\"totals\":{");
+            if (endpoint != null) {
+                sb.append('"').append(escape(endpoint)).append("\":")
+                        .append(number(rollup.total(level, endpoint, column)));
+            } else {
+                double[] totals = rollup.totals(level, column);
+                for (int code = 0; code < totals.length; code++) {
+                    if (code > 0) sb.append(',');
+                    sb.append('"').append(escape(endpoints.name(code))).append("\":").append(number(totals[code]));
+                }
+            }
+            respond(exchange, 200, sb.append("}}").toString());
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+        }
+    }
+
+    /** Handle GET /metrics, the server counters followed by the Buyer's and the Seller's metrics */
+    private void metrics(HttpExchange exchange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# TYPE obcs_server_requests_total counter\n")
+                .append("obcs_server_requests_total ").append(requests.sum()).append('\n')
+                .append("# TYPE obcs_server_batches_total counter\n")
+                .append("obcs_server_batches_total ").append(batches.sum()).append('\n')
+                .append("# TYPE obcs_server_solved_total counter\n")
+                .append("obcs_server_solved_total ").append(solved.sum()).append('\n');
+        if (metrics != null) sb.append(metrics.toText());
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /** Parse a form-encoded query, a parameter may repeat */
+    private static Map<String, List<String>> parse(String query) {
+        Map<String, List<String>> res = new HashMap<String, List<String>>();
+        if (query == null) return res;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String key = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            res.computeIfAbsent(key, k -> new ArrayList<String>()).add(value);
+        }
+        return res;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String param(Map<String, List<String>> params, String name, String otherwise) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? otherwise : values.get(0);
+    }
+
+    /** Get a fee parameter, NaN if it is not given */
+    private static double fee(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        if (values == null || values.isEmpty()) return Double.NaN;
+        try {
+            return Double.parseDouble(values.get(0));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number for " + name + ": " + values.get(0));
+        }
+    }
+
+    private static String number(double value) {
+        return Double.isFinite(value) ? Double.toString(value) : "null";
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: OptimizationServer <flow csv> [port] [threads]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8090;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+        /** Generate the prices and settle the agents once, they stay resident */
+        long seed = 20190115L;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        Metrics metrics = new Metrics();
+        Market mkt = new Market();
+        mkt.setSeed(seed);
+        mkt.setPool(pool);
+        mkt.setMetrics(metrics);
+        mkt.setEndpoints(new FlowEndpoints());
+        mkt.setOdPrice(30, args[0], UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        List<String> ods = mkt.getOds();
+        FlowIndex flows = mkt.getFlowIndex();
+
+        Buyer buyer = new Buyer(flows);
+        buyer.setSeed(seed);
+        buyer.setPool(pool);
+        buyer.setMetrics(metrics);
+        buyer.initializeContractLevel(ods);
+
+        Seller seller = new Seller(flows);
+        seller.setSeed(seed);
+        seller.setPool(pool);
+        seller.setMetrics(metrics);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+
+        /** Keep the totals by endpoint up to date while the agents settle */
+        NetworkRollup rollup = new NetworkRollup(flows, mkt.getEndpoints());
+        rollup.watch(buyer.getFlowTable(), FlowTable.Column.CONTRACT_LEVEL);
+        rollup.watch(buyer.getFlowTable(), FlowTable.Column.DEMAND_FROM_MKT);
+        rollup.watch(seller.getFlowTable(), FlowTable.Column.CAPACITY);
+
+        /** The equilibrium rounds also warm up the solver before the first request */
+        Equilibrium equilibrium = new Equilibrium(buyer, seller, mkt.getPriceStats());
+        equilibrium.setThreshold(4.0);
+        equilibrium.setEntryBounds(0.25, 0.65);
+        equilibrium.run();
+        buyer.setDemand(seller.getFlowTable(), mkt.getFlowTable());
+
+        OptimizationServer server = new OptimizationServer(mkt, buyer, seller);
+        server.setPool(pool);
+        server.setMetrics(metrics);
+        server.setRollup(rollup);
+        int bound = server.start(port, threads);
+        System.out.println("serving " + flows.size() + " flows on http://127.0.0.1:" + bound + "/optimize");
+    }
+}
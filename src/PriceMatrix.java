@@ -0,0 +1,300 @@
+/**
+ * The class stores the price samples of all flows as one contiguous flows x samples
+ * matrix of doubles outside the heap. The matrix is either allocated in direct
+ * memory or mapped from a file, so a generated sample set can be saved once and
+ * reopened by later runs without regenerating or parsing anything.
+ *
+ * The file starts with a 64 byte header (magic, version, rows, columns and a key
+ * chosen by the owner to recognize its flows) followed by the rows in order, all
+ * values little-endian. Rows never straddle two segments of the matrix.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+
+public class PriceMatrix {
+    private static final long MAGIC = 0x31584D5053434F42L; // "OBCSPMX1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final long SEGMENT = 1L << 30;
+
+    private final int rows;
+    private final int cols;
+    private final long key;
+    private final int rowsPerSegment;
+    private final ByteBuffer[] bytes;
+    private final DoubleBuffer[] segments;
+
+    private PriceMatrix(int rows, int cols, long key, ByteBuffer[] bytes) {
+        this.rows = rows;
+        this.cols = cols;
+        this.key = key;
+        this.rowsPerSegment = rowsPerSegment(cols);
+        this.bytes = bytes;
+        this.segments = new DoubleBuffer[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            segments[i] = bytes[i].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+    }
+
+    private static int rowsPerSegment(int cols) {
+        if (cols <= 0 || (long) cols * Double.BYTES > SEGMENT) {
+            throw new IllegalArgumentException("invalid number of samples per flow: " + cols);
+        }
+        return (int) (SEGMENT / ((long) cols * Double.BYTES));
+    }
+
+    private static int segmentCount(int rows, int rowsPerSegment) {
+        return (int) (((long) rows + rowsPerSegment - 1) / rowsPerSegment);
+    }
+
+    /** Bytes of a segment holding the given number of rows */
+    private static long segmentBytes(int rows, int cols) {
+        return (long) rows * cols * Double.BYTES;
+    }
+
+    /**
+     * The method allocates a matrix in direct memory
+     * @param rows the number of flows
+     * @param cols the number of samples per flow
+     * @param key the key of the flows, saved along with the samples
+     * @return the zero filled matrix
+     */
+    public static PriceMatrix allocate(int rows, int cols, long key) {
+        int perSegment = rowsPerSegment(cols);
+        ByteBuffer[] bytes = new ByteBuffer[segmentCount(rows, perSegment)];
+        for (int i = 0; i < bytes.length; i++) {
+            int n = Math.min(perSegment, rows - i * perSegment);
+            bytes[i] = ByteBuffer.allocateDirect((int) segmentBytes(n, cols));
+        }
+        return new PriceMatrix(rows, cols, key, bytes);
+    }
+
+    /**
+     * The method creates a matrix file and maps it, writes to the matrix go to the file
+     * @param file the file, replaced if it exists
+     * @param rows the number of flows
+     * @param cols the number of samples per flow
+     * @param key the key of the flows
+     * @return the zero filled matrix
+     * @throws IOException if the file cannot be created
+     */
+    public static PriceMatrix create(Path file, int rows, int cols, long key) throws IOException {
+        int perSegment = rowsPerSegment(cols);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header(rows, cols, key), 0);
+            return new PriceMatrix(rows, cols, key,
+                    map(channel, FileChannel.MapMode.READ_WRITE, 0, rows, cols, perSegment));
+        }
+    }
+
+    /**
+     * The method maps a matrix file saved by an earlier run, read-only
+     * @param file the file
+     * @return the matrix
+     * @throws IOException if the file cannot be read or is not a matrix file
+     */
+    public static PriceMatrix open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return read(channel, 0);
+        }
+    }
+
+    /**
+     * The method maps a matrix written into a larger file, read-only
+     * @param channel the file
+     * @param pos the position the matrix was written at
+     * @return the matrix, which stays mapped after the channel is closed
+     * @throws IOException if the file cannot be read or holds no matrix at pos
+     */
+    public static PriceMatrix read(FileChannel channel, long pos) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, pos + header.position()) < 0) break;
+        }
+        header.flip();
+        if (header.remaining() < HEADER || header.getLong() != MAGIC) {
+            throw new IOException("no price matrix at position " + pos);
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported price matrix version " + version);
+        }
+        int rows = header.getInt();
+        int cols = header.getInt();
+        long key = header.getLong();
+        int perSegment = rowsPerSegment(cols);
+        if (channel.size() < pos + HEADER + segmentBytes(rows, cols)) {
+            throw new IOException("price matrix at position " + pos + " is truncated");
+        }
+        return new PriceMatrix(rows, cols, key,
+                map(channel, FileChannel.MapMode.READ_ONLY, pos, rows, cols, perSegment));
+    }
+
+    private static ByteBuffer header(int rows, int cols, long key) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(MAGIC).putInt(VERSION).putInt(rows).putInt(cols).putLong(key);
+        header.clear();
+        return header;
+    }
+
+    private static ByteBuffer[] map(
+            FileChannel channel, FileChannel.MapMode mode, long pos, int rows, int cols, int perSegment)
+            throws IOException {
+        ByteBuffer[] bytes = new ByteBuffer[segmentCount(rows, perSegment)];
+        for (int i = 0; i < bytes.length; i++) {
+            int n = Math.min(perSegment, rows - i * perSegment);
+            bytes[i] = channel.map(mode, pos + HEADER + segmentBytes(i * perSegment, cols), segmentBytes(n, cols));
+        }
+        return bytes;
+    }
+
+    /**
+     * The method writes the matrix to a file that can be reopened later
+     * @param file the file, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, 0);
+        }
+    }
+
+    /**
+     * The method writes the matrix into a larger file with bulk writes
+     * @param channel the file
+     * @param pos the position to write the matrix at
+     * @return the position after the matrix
+     * @throws IOException if the file cannot be written
+     */
+    public long write(FileChannel channel, long pos) throws IOException {
+        pos = writeFully(channel, header(rows, cols, key), pos);
+        for (ByteBuffer buffer : bytes) {
+            pos = writeFully(channel, buffer.duplicate().clear(), pos);
+        }
+        return pos;
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return pos;
+    }
+
+    /** Flush the writes of a file backed matrix to the file */
+    public void force() {
+        for (ByteBuffer buffer : bytes) {
+            if (buffer instanceof MappedByteBuffer && !buffer.isReadOnly()) ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    /** Get a private view of a row positioned at its first sample, thread-safe */
+    private DoubleBuffer view(int row) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + rows);
+        }
+        DoubleBuffer view = segments[row / rowsPerSegment].duplicate();
+        int start = (row % rowsPerSegment) * cols;
+        view.limit(start + cols).position(start);
+        return view;
+    }
+
+    /** Get one sample */
+    public double get(int row, int col) {
+        if (col < 0 || col >= cols) {
+            throw new IndexOutOfBoundsException("column " + col + " of " + cols);
+        }
+        return segments[row / rowsPerSegment].get((row % rowsPerSegment) * cols + col);
+    }
+
+    /**
+     * The method copies the samples of a row, rows may be read by several threads at once
+     * @param row the row
+     * @param dst the array receiving the cols samples
+     */
+    public void getRow(int row, double[] dst) {
+        view(row).get(dst, 0, cols);
+    }
+
+    /** Get a copy of the samples of a row */
+    public double[] getRow(int row) {
+        double[] res = new double[cols];
+        getRow(row, res);
+        return res;
+    }
+
+    /**
+     * The method writes the samples of a row, distinct rows may be written by several threads at once
+     * @param row the row
+     * @param src the cols samples
+     */
+    public void setRow(int row, double[] src) {
+        view(row).put(src, 0, cols);
+    }
+
+    /** Get a read-only List view of a row, a sample is boxed only when it is read */
+    public List<Double> rowList(int row) {
+        view(row);
+        return new RowList(row);
+    }
+
+    private class RowList extends AbstractList<Double> implements RandomAccess {
+        private final int row;
+
+        RowList(int row) {
+            this.row = row;
+        }
+
+        @Override
+        public Double get(int index) {
+            return PriceMatrix.this.get(row, index);
+        }
+
+        @Override
+        public int size() {
+            return cols;
+        }
+    }
+
+    /** Check whether the matrix is mapped from a file read-only */
+    public boolean isReadOnly() {
+        return bytes.length > 0 && bytes[0].isReadOnly();
+    }
+
+    /** Get a writable copy of the matrix in direct memory */
+    public PriceMatrix copy() {
+        PriceMatrix res = allocate(rows, cols, key);
+        for (int i = 0; i < bytes.length; i++) {
+            res.bytes[i].duplicate().put(bytes[i].duplicate().clear());
+        }
+        return res;
+    }
+
+    /** Get the number of flows */
+    public int rows() {
+        return rows;
+    }
+
+    /** Get the number of samples per flow */
+    public int cols() {
+        return cols;
+    }
+
+    /** Get the key of the flows the matrix was generated for */
+    public long key() {
+        return key;
+    }
+}
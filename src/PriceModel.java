@@ -0,0 +1,34 @@
+/**
+ * The interface describes the spot price distribution of one flow. A model fills
+ * primitive arrays with price samples and, when the distribution has a closed
+ * form of G(a) = E[min(P, a)], exposes it so the Buyer and the Seller can skip
+ * the samples altogether.
+ */
+
+import java.util.SplittableRandom;
+
+
+public interface PriceModel {
+
+    /**
+     * The method fills an array with price samples of the flow
+     * @param rnd random stream of the flow
+     * @param out the array to fill
+     */
+    void fill(SplittableRandom rnd, double[] out);
+
+    /** Get the closed form of G(a) of the model, null if there is none */
+    GFunction expectedValue();
+
+    /** Creates the model of each flow, e.g. with parameters drawn within bounds */
+    interface Factory {
+
+        /**
+         * The method creates the model of one flow
+         * @param od the flow record
+         * @param rnd random stream of the flow to draw the model parameters from
+         * @return the model of the flow, null if the flow has no price model
+         */
+        PriceModel create(String od, SplittableRandom rnd);
+    }
+}
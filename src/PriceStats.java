@@ -0,0 +1,92 @@
+/**
+ * The class caches the summary statistics of the price distribution of one flow,
+ * P_u, P_d, mu and sigma, next to its expected value G(a), so the Buyer and the
+ * Seller read them in constant time instead of scanning the samples again.
+ */
+
+import java.nio.DoubleBuffer;
+import java.util.List;
+
+
+public class PriceStats implements GFunction {
+    private final GFunction prices;
+    private final double max;
+    private final double min;
+    private final double mean;
+    private final double sigma;
+
+    /** The bits and the value of the last fingerprint taken by a decision cache */
+    volatile long[] fingerprint;
+
+    /**
+     * Compute the statistics of a price distribution once
+     * @param prices price distribution of one od flow
+     */
+    public PriceStats(GFunction prices) {
+        this.prices = prices;
+        this.max = prices.max();
+        this.min = prices.min();
+        this.mean = prices.mean();
+        this.sigma = sigma(max, min);
+    }
+
+    /** Get sigma of the prices between P_d and P_u */
+    static double sigma(double max, double min) {
+        return (max - min) / (2 * Math.sqrt(3));
+    }
+
+    /** Get the statistics of a price distribution, computed only if they are not cached yet */
+    public static PriceStats of(GFunction prices) {
+        return prices instanceof PriceStats ? (PriceStats) prices : new PriceStats(prices);
+    }
+
+    /**
+     * Get the statistics of a flow shared by the Market, else compute them from its samples
+     * @param shared price distributions indexed by flow id, may be null
+     * @param id the flow id
+     * @param samples sample prices of the flow
+     */
+    static PriceStats of(PriceStats[] shared, int id, List<Double> samples) {
+        if (shared != null && id < shared.length && shared[id] != null) return shared[id];
+        return new PriceStats(new GTable(samples));
+    }
+
+    /** Get the price distribution the statistics are computed from */
+    public GFunction prices() {
+        return prices;
+    }
+
+    /** Calculate the expected value given price distribution - G(a) */
+    @Override
+    public double value(double a) {
+        return prices.value(a);
+    }
+
+    /** Get the highest price - P_u */
+    @Override
+    public double max() {
+        return max;
+    }
+
+    /** Get the lowest price - P_d */
+    @Override
+    public double min() {
+        return min;
+    }
+
+    /** Get the mean price - mu */
+    @Override
+    public double mean() {
+        return mean;
+    }
+
+    /** Get sigma used to calculate Q'(s), the std of a Uniform distribution on [P_d, P_u] */
+    public double sigma() {
+        return sigma;
+    }
+
+    /** Get the sorted samples, null if the distribution is not given by samples */
+    public DoubleBuffer sorted() {
+        return prices instanceof GTable ? ((GTable) prices).sorted() : null;
+    }
+}
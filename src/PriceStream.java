@@ -0,0 +1,262 @@
+/**
+ * The class ingests spot price ticks while the Market, the Buyer and the Seller are
+ * running. Every flow keeps a rolling window of its latest prices, as many as the
+ * Market holds samples, next to the same window in ascending order, so a tick only
+ * shifts the part of the window between the old and the new price and its G table
+ * is rebuilt without sorting.
+ *
+ * Ticks are accepted from any thread. The flows that ticked are queued once until
+ * the next drain, which publishes their windows to the Market and re-optimizes the
+ * Buyer's Q, q and x and the Seller's s and K of those flows only.
+ */
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class PriceStream {
+
+    /** Receives the decisions of the flows re-optimized by a drain */
+    public interface Listener {
+
+        /**
+         * The method is called once per re-optimized flow, on the draining thread
+         * @param id the flow id
+         * @param Q the contract level
+         * @param s the reservation fee
+         * @param g the execution fee
+         * @param K the capacity
+         */
+        void onDecision(int id, double Q, double s, double g, double K);
+    }
+
+    /** Rolling window of one flow */
+    private static class Window {
+        final double[] ring;
+        final double[] sorted;
+        int head;
+
+        Window(double[] samples) {
+            this.ring = samples;
+            this.sorted = samples.clone();
+            Arrays.sort(sorted);
+        }
+
+        /** Replace the oldest price, keeping the sorted copy sorted */
+        void add(double price) {
+            double old = ring[head];
+            ring[head] = price;
+            head = (head + 1) % ring.length;
+
+            int j = Arrays.binarySearch(sorted, old);
+            if (price > old) {
+                while (j + 1 < sorted.length && sorted[j + 1] < price) {
+                    sorted[j] = sorted[j + 1];
+                    j++;
+                }
+            } else {
+                while (j > 0 && sorted[j - 1] > price) {
+                    sorted[j] = sorted[j - 1];
+                    j--;
+                }
+            }
+            sorted[j] = price;
+        }
+
+        /** Copy the window from the oldest to the most recent price */
+        void copyTo(double[] dst) {
+            int tail = ring.length - head;
+            System.arraycopy(ring, head, dst, 0, tail);
+            System.arraycopy(ring, 0, dst, tail, head);
+        }
+    }
+
+    private final Market market;
+    private final Buyer buyer;
+    private final Seller seller;
+    private final Window[] windows;
+    private final AtomicIntegerArray queued;
+    private final Queue<Integer> ticked;
+
+    private double threshold;
+    private double m_lb;
+    private double m_ub;
+    private Listener listener;
+    private volatile Thread publisher;
+    private volatile boolean running;
+
+    /**
+     * Create a stream over the current samples of a Market, they become the initial windows
+     * @param market the Market, its samples are replaced as ticks arrive
+     * @param buyer the Buyer sharing the Market's flow dictionary
+     * @param seller the Seller sharing the Market's flow dictionary
+     */
+    public PriceStream(Market market, Buyer buyer, Seller seller) {
+        this.market = market;
+        this.buyer = buyer;
+        this.seller = seller;
+        int n = market.getFlowIndex().size();
+        this.windows = new Window[n];
+        this.queued = new AtomicIntegerArray(n);
+        this.ticked = new ConcurrentLinkedQueue<Integer>();
+        this.threshold = 4.0;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+
+        PriceMatrix prices = market.getPriceMatrix();
+        for (int id = 0; id < n; id++) {
+            int row = market.getPriceRow(id);
+            if (row >= 0) windows[id] = new Window(prices.getRow(row));
+        }
+        market.getPriceStats();
+    }
+
+    /** Set the stop condition of the Buyer's contract level optimization */
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /** Set the bounds of probability to enter market of the Seller's reservation fee */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /** Set the listener the decisions are published to, null publishes them to the flow tables only */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * The method appends a spot price tick to the window of a flow
+     * @param id the flow id
+     * @param price the spot price
+     */
+    public void tick(int id, double price) {
+        Window window = id < windows.length ? windows[id] : null;
+        if (window == null) {
+            throw new IllegalArgumentException("flow " + id + " has no price window");
+        }
+        if (Double.isNaN(price)) {
+            throw new IllegalArgumentException("price of flow " + id + " is NaN");
+        }
+        synchronized (window) {
+            window.add(price);
+        }
+        if (queued.compareAndSet(id, 0, 1)) {
+            ticked.add(id);
+            Thread t = publisher;
+            if (t != null) LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * The method appends a spot price tick to the window of a flow
+     * @param od the flow record
+     * @param price the spot price
+     */
+    public void tick(String od, double price) {
+        int id = market.getFlowIndex().id(od);
+        if (id < 0) {
+            throw new IllegalArgumentException("unknown flow " + od);
+        }
+        tick(id, price);
+    }
+
+    /**
+     * The method publishes the windows of the flows that ticked since the last drain and
+     * re-optimizes their decisions, ticks arriving meanwhile are left for the next drain
+     * @return the number of re-optimized flows
+     */
+    public synchronized int drain() {
+        // every flow is queued at most once, so the queue never holds more than all flows
+        int[] ids = new int[16];
+        int size = 0;
+        Integer next;
+        while ((next = ticked.poll()) != null) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, 2 * size);
+            ids[size++] = next;
+        }
+        if (size == 0) return 0;
+        ids = Arrays.copyOf(ids, size);
+
+        double[] samples = null;
+        double[] sorted = null;
+        for (int id : ids) {
+            // a tick after this point queues the flow again
+            queued.set(id, 0);
+            Window window = windows[id];
+            if (samples == null) {
+                samples = new double[window.ring.length];
+                sorted = new double[window.ring.length];
+            }
+            synchronized (window) {
+                window.copyTo(samples);
+                System.arraycopy(window.sorted, 0, sorted, 0, sorted.length);
+            }
+            market.updatePrices(id, samples, GTable.ofSorted(sorted));
+        }
+
+        // the last U' of a ticked flow was solved for its old window
+        SolverState state = buyer.getSolverState();
+        if (state != null) {
+            for (int id : ids) {
+                state.forget(id);
+            }
+        }
+
+        PriceStats[] prices = market.getPriceStats();
+        FlowTable buyerTable = buyer.getFlowTable();
+        FlowTable sellerTable = seller.getFlowTable();
+        buyer.setOptimalContractLevel(prices, sellerTable, threshold, ids);
+        seller.setOptimalReserFee(prices, buyerTable, m_lb, m_ub, ids);
+        seller.setOptimalCapacity(prices, ids);
+        buyer.setDemand(sellerTable, market.getFlowTable(), ids);
+
+        Listener l = listener;
+        if (l != null) {
+            for (int id : ids) {
+                l.onDecision(id, buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, id),
+                        sellerTable.get(FlowTable.Column.RESERV_FEE, id),
+                        sellerTable.get(FlowTable.Column.EXECU_FEE, id),
+                        sellerTable.get(FlowTable.Column.CAPACITY, id));
+            }
+        }
+        return ids.length;
+    }
+
+    /**
+     * The method starts a daemon thread draining the stream as soon as flows tick, so a burst of
+     * ticks of one flow is re-optimized once
+     */
+    public synchronized void start() {
+        if (publisher != null) return;
+        running = true;
+        Thread t = new Thread(() -> {
+            while (running) {
+                if (drain() == 0) LockSupport.park(this);
+            }
+        }, "price-stream");
+        t.setDaemon(true);
+        publisher = t;
+        t.start();
+    }
+
+    /**
+     * The method stops the draining thread after its current drain, ticks left are drained by the caller
+     * @throws InterruptedException if interrupted while waiting for the thread
+     */
+    public void stop() throws InterruptedException {
+        Thread t;
+        synchronized (this) {
+            t = publisher;
+            publisher = null;
+            running = false;
+        }
+        if (t == null) return;
+        LockSupport.unpark(t);
+        t.join();
+    }
+}
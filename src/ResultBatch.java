@@ -0,0 +1,97 @@
+/**
+ * The class holds the results of a block of flows column by column: the flow record
+ * and the Buyer's Q, q, x and the Seller's s, g, K, b. Batches are the unit a result
+ * sink writes, so rows are never formatted into one large string.
+ */
+
+import java.util.Arrays;
+
+
+public class ResultBatch {
+    /** Names of the columns, in order */
+    public static final String[] NAMES = {"Q", "q", "x", "s", "g", "K", "b"};
+
+    private static final FlowTable.Column[] BUYER = {
+            FlowTable.Column.CONTRACT_LEVEL, FlowTable.Column.DEMAND_FROM_SELLER, FlowTable.Column.DEMAND_FROM_MKT};
+    private static final FlowTable.Column[] SELLER = {
+            FlowTable.Column.RESERV_FEE, FlowTable.Column.EXECU_FEE, FlowTable.Column.CAPACITY,
+            FlowTable.Column.MARGIN_COST};
+
+    private final String[] ods;
+    private final double[][] values;
+    private int size;
+
+    /**
+     * Create an empty batch
+     * @param capacity the number of rows the batch holds
+     */
+    public ResultBatch(int capacity) {
+        this.ods = new String[capacity];
+        this.values = new double[NAMES.length][capacity];
+    }
+
+    /**
+     * The method appends the results of one flow, values never set are NaN
+     * @param od the flow record
+     * @param buyer the Buyer's flow table holding Q, q and x
+     * @param seller the Seller's flow table holding s, g, K and b
+     * @param id the flow id in both tables
+     * @return true if the batch is full
+     */
+    public boolean add(String od, FlowTable buyer, FlowTable seller, int id) {
+        ods[size] = od;
+        int c = 0;
+        for (FlowTable.Column column : BUYER) {
+            values[c++][size] = buyer.has(column, id) ? buyer.get(column, id) : Double.NaN;
+        }
+        for (FlowTable.Column column : SELLER) {
+            values[c++][size] = seller.has(column, id) ? seller.get(column, id) : Double.NaN;
+        }
+        return ++size == ods.length;
+    }
+
+    /**
+     * The method appends one row
+     * @param od the flow record
+     * @param row the values of the row in the order of NAMES
+     * @return true if the batch is full
+     */
+    public boolean add(String od, double[] row) {
+        ods[size] = od;
+        for (int c = 0; c < values.length; c++) {
+            values[c][size] = row[c];
+        }
+        return ++size == ods.length;
+    }
+
+    /** Get the flow record of a row */
+    public String od(int row) {
+        return ods[row];
+    }
+
+    /** Get one value */
+    public double get(int column, int row) {
+        return values[column][row];
+    }
+
+    /** Get a column, only its first size values belong to the batch */
+    double[] column(int column) {
+        return values[column];
+    }
+
+    /** Get the number of rows */
+    public int size() {
+        return size;
+    }
+
+    /** Get the number of rows the batch holds */
+    public int capacity() {
+        return ods.length;
+    }
+
+    /** Remove every row */
+    public void clear() {
+        Arrays.fill(ods, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * The interface receives the per-flow results of a run in batches, so rows are
+ * streamed to their destination instead of being collected into maps or strings.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+
+public interface ResultSink extends Closeable {
+    int BATCH_SIZE = 4096;
+
+    /**
+     * The method opens a sink writing to a file on a background thread
+     * @param file the file, csv rows if its name ends with .csv and the binary columnar format otherwise
+     * @return the sink
+     * @throws IOException if the file cannot be created
+     */
+    static ResultSink open(String file) throws IOException {
+        ResultSink sink = file.toLowerCase(java.util.Locale.ROOT).endsWith(".csv")
+                ? new CsvResultSink(file) : new ColumnarResultSink(file);
+        return new AsyncResultSink(sink, 16);
+    }
+
+    /**
+     * The method writes a batch, the sink owns the batch afterwards and the caller must not reuse it
+     * @param batch the rows to write
+     * @throws IOException if the rows cannot be written
+     */
+    void accept(ResultBatch batch) throws IOException;
+
+    /**
+     * The method writes the results of every flow of a run, in the order of the flow records
+     * @param ods the flow records
+     * @param buyer the Buyer holding Q, q and x
+     * @param seller the Seller holding s, g, K and b, sharing the Buyer's flow dictionary
+     * @throws IOException if the rows cannot be written
+     */
+    default void write(List<String> ods, Buyer buyer, Seller seller) throws IOException {
+        FlowIndex flows = buyer.getFlowTable().getIndex();
+        FlowTable b = buyer.getFlowTable();
+        FlowTable s = seller.getFlowTable();
+        ResultBatch batch = new ResultBatch(BATCH_SIZE);
+        for (String od : ods) {
+            if (batch.add(od, b, s, flows.id(od))) {
+                accept(batch);
+                batch = new ResultBatch(BATCH_SIZE);
+            }
+        }
+        if (batch.size() > 0) accept(batch);
+    }
+}
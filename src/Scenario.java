@@ -0,0 +1,119 @@
+/**
+ * The class holds the parameters of one point of a scenario sweep: the bounds of
+ * probability to enter market and the generator bounds of the Seller's execution
+ * fee, reservation fee and capacity. Generator bounds are given as
+ * {mean_hb, mean_lb, std_hb, std_lb, lb, hb}.
+ *
+ * The stop condition of the contract level is not a parameter: a sweep runs on
+ * the G tables of price samples, whose contract level is solved exactly.
+ */
+
+import java.util.*;
+
+
+public class Scenario {
+    public static final double[] DEFAULT_ENTRY = {0.25, 0.65};
+    public static final double[] DEFAULT_EXECU_FEE = {25, 10, 3, 1, 5, 30};
+    public static final double[] DEFAULT_RESERV_FEE = {3, 2, 2, 1, 1, 5};
+    public static final double[] DEFAULT_CAPACITY = {300, 150, 10, 5, 100, 500};
+
+    public final int id;
+    public final double m_lb;
+    public final double m_ub;
+    private final double[] execuFee;
+    private final double[] reservFee;
+    private final double[] capacity;
+
+    public Scenario(int id, double m_lb, double m_ub,
+                    double[] execuFee, double[] reservFee, double[] capacity) {
+        checkBounds("execuFee", execuFee);
+        checkBounds("reservFee", reservFee);
+        checkBounds("capacity", capacity);
+        this.id = id;
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+        this.execuFee = execuFee.clone();
+        this.reservFee = reservFee.clone();
+        this.capacity = capacity.clone();
+    }
+
+    private static void checkBounds(String name, double[] bounds) {
+        if (bounds.length != 6) {
+            throw new IllegalArgumentException(name + " needs 6 generator bounds, got " + bounds.length);
+        }
+    }
+
+    /** Generate the Seller's execution fee, reservation fee and capacity of the scenario */
+    public void initialize(Seller seller, List<String> ods) {
+        seller.setExecuFee(ods, execuFee[0], execuFee[1], execuFee[2], execuFee[3], execuFee[4], execuFee[5]);
+        seller.setReservFee(ods, reservFee[0], reservFee[1], reservFee[2], reservFee[3], reservFee[4], reservFee[5]);
+        seller.setCapacity(ods, capacity[0], capacity[1], capacity[2], capacity[3], capacity[4], capacity[5]);
+    }
+
+    /**
+     * The method builds every combination of a grid definition. Each line reads
+     * "key = alternative, alternative, ..." where an alternative is a space separated
+     * tuple, keys are m (m_lb m_ub), execuFee, reservFee and capacity.
+     * Missing keys take the values of Market.main, '#' starts a comment.
+     * @param lines the lines of the grid definition
+     * @return the scenarios, numbered from 0
+     */
+    public static List<Scenario> grid(List<String> lines) {
+        Map<String, List<double[]>> axes = new LinkedHashMap<String, List<double[]>>();
+        axes.put("m", Collections.singletonList(DEFAULT_ENTRY));
+        axes.put("execufee", Collections.singletonList(DEFAULT_EXECU_FEE));
+        axes.put("reservfee", Collections.singletonList(DEFAULT_RESERV_FEE));
+        axes.put("capacity", Collections.singletonList(DEFAULT_CAPACITY));
+
+        int lineNo = 0;
+        for (String raw : lines) {
+            lineNo++;
+            int comment = raw.indexOf('#');
+            String line = (comment >= 0 ? raw.substring(0, comment) : raw).trim();
+            if (line.isEmpty()) continue;
+
+            int eq = line.indexOf('=');
+            String key = eq < 0 ? "" : line.substring(0, eq).trim().toLowerCase(Locale.ROOT);
+            if (key.equals("threshold")) {
+                throw new IllegalArgumentException("line " + lineNo
+                        + ": threshold is not a grid key, the contract level of sampled prices is solved exactly");
+            }
+            if (!axes.containsKey(key)) {
+                throw new IllegalArgumentException("line " + lineNo + ": unknown grid key \"" + key + "\"");
+            }
+            List<double[]> values = new ArrayList<double[]>();
+            for (String alternative : line.substring(eq + 1).split(",")) {
+                String[] parts = alternative.trim().split("\\s+");
+                double[] tuple = new double[parts.length];
+                try {
+                    for (int i = 0; i < parts.length; i++) tuple[i] = Double.parseDouble(parts[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("line " + lineNo + ": " + e.getMessage());
+                }
+                values.add(tuple);
+            }
+            axes.put(key, values);
+        }
+
+        List<Scenario> res = new ArrayList<Scenario>();
+        for (double[] m : axes.get("m")) {
+            if (m.length != 2) throw new IllegalArgumentException("m needs m_lb and m_ub");
+            for (double[] execuFee : axes.get("execufee")) {
+                for (double[] reservFee : axes.get("reservfee")) {
+                    for (double[] capacity : axes.get("capacity")) {
+                        res.add(new Scenario(res.size(), m[0], m[1], execuFee, reservFee, capacity));
+                    }
+                }
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public String toString() {
+        return "scenario " + id + ": m=[" + m_lb + ", " + m_ub + "]"
+                + " execuFee=" + Arrays.toString(execuFee)
+                + " reservFee=" + Arrays.toString(reservFee)
+                + " capacity=" + Arrays.toString(capacity);
+    }
+}
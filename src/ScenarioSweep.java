@@ -0,0 +1,171 @@
+/**
+ * The class evaluates a grid of scenarios against one set of Market price samples.
+ * The samples and their G tables are generated once and shared read-only, every
+ * scenario runs its own Buyer and Seller on a worker thread and streams one row
+ * per flow to the output as soon as it is done.
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+public class ScenarioSweep {
+    private static final int FLUSH_ROWS = 4096;
+    public static final String HEADER = "scenario,od,Q,s,g,K,b";
+
+    private final FlowIndex flows;
+    private final List<String> ods;
+    private final GFunction[] prices;
+    private DecisionCache cache;
+    private long seed;
+    private int rounds;
+    private int threads;
+
+    /**
+     * Create a sweep over the flows and price samples of a Market, the Market must not change afterwards
+     * @param market the Market holding the shared price samples
+     */
+    public ScenarioSweep(Market market) {
+        this.flows = market.getFlowIndex();
+        this.ods = new ArrayList<String>(market.getOds());
+        this.prices = market.getGTables();
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.rounds = 1;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Set the seed shared by every scenario, so scenarios only differ by their parameters */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Set the number of Buyer and Seller rounds of each scenario, 1 is a single Q, s, K pass */
+    public void setRounds(int rounds) {
+        this.rounds = rounds;
+    }
+
+    /**
+     * Set the cache every scenario's Buyer and Seller share their decisions in
+     * @param cache the cache shared across scenarios, null solves every scenario from scratch
+     */
+    public void setCache(DecisionCache cache) {
+        this.cache = cache;
+    }
+
+    /** Set the number of scenarios evaluated at the same time */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * The method evaluates every scenario and writes the rows "scenario,od,Q,s,g,K,b"
+     * @param scenarios the scenarios to evaluate
+     * @param out the output, rows of one scenario are written in blocks and never interleaved within a block
+     * @throws IOException if the output cannot be written
+     */
+    public void run(List<Scenario> scenarios, Writer out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Scenario scenario : scenarios) {
+                futures.add(executor.submit(() -> {
+                    evaluate(scenario, out);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("scenario sweep interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        out.flush();
+    }
+
+    /** Run the Buyer and the Seller of one scenario and stream its rows */
+    private void evaluate(Scenario scenario, Writer out) throws IOException {
+        Buyer buyer = new Buyer(flows);
+        buyer.setSeed(seed);
+        buyer.setCache(cache);
+        buyer.initializeContractLevel(ods);
+        Seller seller = new Seller(flows);
+        seller.setSeed(seed);
+        seller.setCache(cache);
+        scenario.initialize(seller, ods);
+
+        Equilibrium equilibrium = new Equilibrium(buyer, seller, prices);
+        equilibrium.setEntryBounds(scenario.m_lb, scenario.m_ub);
+        equilibrium.setMaxIterations(rounds);
+        equilibrium.run();
+
+        FlowTable b = buyer.getFlowTable();
+        FlowTable s = seller.getFlowTable();
+        StringBuilder rows = new StringBuilder();
+        int pending = 0;
+        for (int i = 0; i < prices.length; i++) {
+            if (prices[i] == null) continue;
+            rows.append(scenario.id).append(',').append(flows.od(i))
+                    .append(',').append(b.get(FlowTable.Column.CONTRACT_LEVEL, i))
+                    .append(',').append(s.get(FlowTable.Column.RESERV_FEE, i))
+                    .append(',').append(s.get(FlowTable.Column.EXECU_FEE, i))
+                    .append(',').append(s.get(FlowTable.Column.CAPACITY, i))
+                    .append(',').append(s.get(FlowTable.Column.MARGIN_COST, i))
+                    .append('\n');
+            if (++pending == FLUSH_ROWS) {
+                write(out, rows);
+                pending = 0;
+            }
+        }
+        write(out, rows);
+    }
+
+    private static void write(Writer out, StringBuilder rows) throws IOException {
+        synchronized (out) {
+            out.append(rows);
+        }
+        rows.setLength(0);
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("usage: ScenarioSweep <flow csv> <grid file> <output csv> [threads] [rounds] [cache size]");
+            return;
+        }
+        List<Scenario> scenarios = Scenario.grid(Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8));
+
+        /** Generate the shared Market price samples once */
+        long seed = 20190115L;
+        Market mkt = new Market();
+        mkt.setSeed(seed);
+        mkt.setPool(ForkJoinPool.commonPool());
+        mkt.setOdPrice(30, args[0], 40, 30, 20, 10, 10, 40);
+
+        ScenarioSweep sweep = new ScenarioSweep(mkt);
+        sweep.setSeed(seed);
+        if (args.length > 3) sweep.setThreads(Integer.parseInt(args[3]));
+        if (args.length > 4) sweep.setRounds(Integer.parseInt(args[4]));
+        DecisionCache cache = args.length > 5 ? new DecisionCache(Integer.parseInt(args[5])) : null;
+        sweep.setCache(cache);
+        for (Scenario scenario : scenarios) {
+            System.out.println(scenario);
+        }
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(args[2]), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(HEADER);
+            out.write('\n');
+            sweep.run(scenarios, out);
+        }
+        if (cache != null) System.out.println(cache);
+    }
+}
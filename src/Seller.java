@@ -7,22 +7,49 @@
  * @since Jan 18th, 2019
  */
 
-import org.apache.commons.math3.distribution.NormalDistribution;
 import java.util.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class Seller {
-    private HashMap<String, Double> marginCost;
-    private HashMap<String, Double> reservFee;
-    private HashMap<String, Double> execuFee;
-    private HashMap<String, Double> capacity;
+    private static final FlowTable.Column MARGIN_COST = FlowTable.Column.MARGIN_COST;
+    private static final FlowTable.Column RESERV_FEE = FlowTable.Column.RESERV_FEE;
+    private static final FlowTable.Column EXECU_FEE = FlowTable.Column.EXECU_FEE;
+    private static final FlowTable.Column CAPACITY = FlowTable.Column.CAPACITY;
+
+    private final FlowIndex flows;
+    private final FlowTable table;
+    private ForkJoinPool pool;
+    private Metrics metrics;
+    private DecisionCache cache;
+    private PriceStats[] priceStats;
+    private long seed;
+    private double gamma;
 
 
     public Seller() {
-        this.marginCost = new HashMap<String, Double>();
-        this.reservFee = new HashMap<String, Double>();
-        this.execuFee = new HashMap<String, Double>();
-        this.capacity = new HashMap<String, Double>();
+        this(new FlowIndex());
+    }
+
+    /**
+     * Create a Seller whose decisions are indexed by a shared flow dictionary
+     * @param flows the flow dictionary shared with the Market and the Buyer
+     */
+    public Seller(FlowIndex flows) {
+        this.flows = flows;
+        this.table = new FlowTable(flows);
+        this.seed = ThreadLocalRandom.current().nextLong();
+        this.gamma = 0.01;
+    }
+
+    /** Draw one value of a flow from a Normal distribution with random mean and std, truncated to [lb, hb] */
+    private double sampleTruncatedNormal(
+            long stream, int id, double mean_hb, double mean_lb, double std_hb, double std_lb, double lb, double hb) {
+        SplittableRandom rnd = FlowRandom.forFlow(seed, stream, id);
+        double mean = rnd.nextDouble(mean_lb, mean_hb);
+        double std = rnd.nextDouble(std_lb, std_hb);
+        return TruncatedSampler.normal(rnd, mean, std, lb, hb);
     }
 
     /**
@@ -39,15 +66,12 @@ public class Seller {
     private HashMap<String, Double> getMarginCost(
             List<String> ods, double mean_hb, double mean_lb, double std_hb, double std_lb, double lb, double hb) {
         for (int i = 0; i < ods.size(); i++) {
-            Double mean = ThreadLocalRandom.current().nextDouble(mean_lb, mean_hb);
-            Double std = ThreadLocalRandom.current().nextDouble(std_lb, std_hb);
-            NormalDistribution generator = new NormalDistribution(mean, std);
-            double temp = generator.sample();
-            while (temp < lb) temp = generator.sample();
-            while (temp > hb) temp = generator.sample();
-            marginCost.put(ods.get(i), temp);
+            int id = flows.add(ods.get(i));
+            double temp = sampleTruncatedNormal(
+                    FlowRandom.SELLER_MARGIN_COST, id, mean_hb, mean_lb, std_hb, std_lb, lb, hb);
+            table.set(MARGIN_COST, id, temp);
         }
-        return marginCost;
+        return table.toMap(MARGIN_COST);
     }
 
     /**
@@ -56,7 +80,7 @@ public class Seller {
      */
     public void setExecuFee(
             List<String> ods, double mean_hb, double mean_lb, double std_hb, double std_lb, double lb, double hb) {
-        execuFee = getMarginCost(ods, mean_hb, mean_lb, std_hb, std_lb, lb, hb);
+        table.putAll(EXECU_FEE, getMarginCost(ods, mean_hb, mean_lb, std_hb, std_lb, lb, hb));
     }
 
 
@@ -73,13 +97,10 @@ public class Seller {
     public void setReservFee(
             List<String> ods, double mean_hb, double mean_lb, double std_hb, double std_lb, double lb, double hb) {
         for (int i = 0; i < ods.size(); i++) {
-            Double mean = ThreadLocalRandom.current().nextDouble(mean_lb, mean_hb);
-            Double std = ThreadLocalRandom.current().nextDouble(std_lb, std_hb);
-            NormalDistribution generator = new NormalDistribution(mean, std);
-            double temp = generator.sample();
-            while (temp < lb) temp = generator.sample();
-            while (temp > hb) temp = generator.sample();
-            reservFee.put(ods.get(i), temp);
+            int id = flows.add(ods.get(i));
+            double temp = sampleTruncatedNormal(
+                    FlowRandom.SELLER_RESERV_FEE, id, mean_hb, mean_lb, std_hb, std_lb, lb, hb);
+            table.set(RESERV_FEE, id, temp);
         }
     }
 
@@ -96,24 +117,16 @@ public class Seller {
     public void setCapacity(
             List<String> ods, double mean_hb, double mean_lb, double std_hb, double std_lb, double lb, double hb) {
         for (int i = 0; i < ods.size(); i++) {
-            Double mean = ThreadLocalRandom.current().nextDouble(mean_lb, mean_hb);
-            Double std = ThreadLocalRandom.current().nextDouble(std_lb, std_hb);
-            NormalDistribution generator = new NormalDistribution(mean, std);
-            double temp = generator.sample();
-            while (temp < lb) temp = generator.sample();
-            while (temp > hb) temp = generator.sample();
-            capacity.put(ods.get(i), temp);
+            int id = flows.add(ods.get(i));
+            double temp = sampleTruncatedNormal(
+                    FlowRandom.SELLER_CAPACITY, id, mean_hb, mean_lb, std_hb, std_lb, lb, hb);
+            table.set(CAPACITY, id, temp);
         }
     }
 
     /** Calculate the expected value given price distribution - G(a) */
-    private Double calculateG(List<Double> prices, Double a) {
-        double res = 0.0;
-        double prob = 1.0/prices.size();
-        for (double price : prices) {
-            res += Math.min(price, a) * prob;
-        }
-        return res;
+    private Double calculateG(GFunction prices, Double a) {
+        return prices.value(a);
     }
 
     /** Calculate derivative of willingness-to-pay value given demand */
@@ -122,11 +135,6 @@ public class Seller {
         return 100.0*Math.exp(-0.01*demand);
     }
 
-    /** Calculate sigma used to calculate Q'(s) */
-    private double calculateSigma(double P_u, double P_d) {
-        return (P_u - P_d)/(2*Math.sqrt(3));
-    }
-
     /** Calculate the derivative of Demand function */
     private double calculateDPrime(double x) {
         return -100.0/x;
@@ -137,15 +145,60 @@ public class Seller {
         return 100.0/Math.pow(x, 2);
     }
 
-    /** Calculate the partial derivative of Q w.r.t. s - gamma=0.01 */
-    private double calculateQPrime(double gamma, double P_u, double P_d, double g, double s) {
-        double sigma = calculateSigma(P_u, P_d);
+    /** Calculate the partial derivative of Q w.r.t. s */
+    private double calculateQPrime(double gamma, double P_u, double sigma, double g, double s) {
         return -2.0*Math.sqrt(3)*sigma/(gamma*Math.pow(Math.pow(P_u-g, 2)-4*Math.sqrt(3)*s*sigma, -3.0/2));
     }
 
     /** Calculate the buyer's elasticity */
-    private double calculateElasticity(double gamma, double s, double g, double Q, double P_u, double P_d) {
-        return s*calculateQPrime(gamma, P_u, P_d, g, s)/Q;
+    private double calculateElasticity(double gamma, double s, double g, double Q, double P_u, double sigma) {
+        return s*calculateQPrime(gamma, P_u, sigma, g, s)/Q;
+    }
+
+    /**
+     * This method optimizes the reservation fee of one flow
+     * @param prices price distribution of the flow
+     * @param gamma the scale of the Buyer's demand in its elasticity
+     * @param m the probability to enter market
+     * @param s the reservation fee
+     * @param g the execution fee
+     * @param Q the contract level
+     * @param K the capacity
+     * @param b the marginal cost
+     * @return the optimal reservation fee, taken from the cache if it holds the same inputs
+     */
+    double getOptimalReserFee(
+            PriceStats prices, double gamma, double m, double s, double g, double Q, double K, double b) {
+        DecisionCache cache = this.cache;
+        if (cache == null) return calculateReserFee(prices, gamma, m, s, g, Q, K, b);
+        double[] cached = cache.get(DecisionCache.Kind.RESERV_FEE, prices, gamma, m, s, g, Q, K, b);
+        if (cached != null) return cached[0];
+        double s_opt = calculateReserFee(prices, gamma, m, s, g, Q, K, b);
+        cache.put(DecisionCache.Kind.RESERV_FEE, prices, new double[]{gamma, m, s, g, Q, K, b}, s_opt);
+        return s_opt;
+    }
+
+    /** Calculate the optimal reservation fee of one flow, bypassing the cache */
+    private double calculateReserFee(
+            PriceStats prices, double gamma, double m, double s, double g, double Q, double K, double b) {
+        double s_opt;
+        double P_u = prices.max();
+        double mu = prices.mean();
+
+        if (Q*calculateDDoublePrime(Q) + 2*calculateDPrime(Q) <= 0) {
+            if (Q < K) {
+                double elasticity = calculateElasticity(gamma, s, g, Q, P_u, prices.sigma());
+                if (metrics != null && !Double.isFinite(elasticity)) {
+                    metrics.increment(Metrics.Counter.ELASTICITY_NOT_FINITE);
+                }
+                s_opt = m*(mu - calculateG(prices, b))/(1-1.0/elasticity);
+            } else {
+                s_opt = calculateG(prices, getUPrime(K)) - calculateG(prices, b);
+            }
+        } else {
+            s_opt = 0.0;
+        }
+        return s_opt;
     }
 
     /**
@@ -167,41 +220,89 @@ public class Seller {
             HashMap<String, Double> contractLevel,
             HashMap<String, Double> marginCost,
             double m_lb, double m_ub) {
-        HashMap<String, Double> reserv_opt = new HashMap<String, Double>();
+        double[] reserv_opt = new double[mktPrices.size()];
+        int[] ids = new int[mktPrices.size()];
+        int n = 0;
         for (Map.Entry<String, List<Double>> entry : mktPrices.entrySet()) {
-            double s_opt;
             String od = entry.getKey();
-            List<Double> prices = entry.getValue();
-            double P_u = Collections.max(prices);
-            double P_d = Collections.min(prices);
-            double mu = 1.0*prices.stream().mapToDouble(Double::doubleValue).sum()/prices.size();
-            double m = ThreadLocalRandom.current().nextDouble(m_lb, m_ub);
+            int id = flows.add(od);
+            PriceStats prices = PriceStats.of(priceStats, id, entry.getValue());
+            double m = getEntryProbability(id, m_lb, m_ub);
             double s = reservPrices.get(od);
             double g = execuPrices.get(od);
             double Q = contractLevel.get(od);
             double K = capacity.get(od);
             double b = marginCost.get(od);
 
-            if (Q*calculateDDoublePrime(Q) + 2*calculateDPrime(Q) <= 0) {
-                if (Q < K) {
-                    s_opt = m*(mu - calculateG(prices, b))/(1-1.0/calculateElasticity(0.01, s, g, Q, P_u, P_d));
-                } else {
-                    s_opt = calculateG(prices, getUPrime(K)) - calculateG(prices, b);
-                }
-            } else {
-                s_opt = 0.0;
-            }
-            reserv_opt.put(od, s_opt);
+            ids[n] = id;
+            reserv_opt[n++] = getOptimalReserFee(prices, gamma, m, s, g, Q, K, b);
+        }
+        table.clear(RESERV_FEE);
+        for (int i = 0; i < n; i++) {
+            table.set(RESERV_FEE, ids[i], reserv_opt[i]);
         }
-        this.reservFee = reserv_opt;
+    }
+
+    /**
+     * This method optimizes the reservation fee for the seller, by flow id
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     * @param buyer the Buyer's flow table holding the contract level Q
+     * @param m_lb the lower bound of probability to enter market
+     * @param m_ub the upper bound of probability to enter market
+     */
+    public void setOptimalReserFee(GFunction[] prices, FlowTable buyer, double m_lb, double m_ub) {
+        checkIndex(buyer);
+        table.clear(RESERV_FEE);
+        updateReserFee(prices, buyer, m_lb, m_ub, null);
+    }
+
+    /**
+     * This method re-optimizes the reservation fee of some flows only, the others are kept
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     * @param buyer the Buyer's flow table holding the contract level Q
+     * @param m_lb the lower bound of probability to enter market
+     * @param m_ub the upper bound of probability to enter market
+     * @param ids the flow ids to re-optimize
+     */
+    public void setOptimalReserFee(GFunction[] prices, FlowTable buyer, double m_lb, double m_ub, int[] ids) {
+        checkIndex(buyer);
+        updateReserFee(prices, buyer, m_lb, m_ub, ids);
+    }
+
+    private void updateReserFee(GFunction[] prices, FlowTable buyer, double m_lb, double m_ub, int[] ids) {
+        table.ensureCapacity(RESERV_FEE);
+        Metrics metrics = this.metrics;
+        long start = metrics == null ? 0L : metrics.start();
+        FlowTasks.forEach(pool, prices.length, ids, i -> {
+            if (prices[i] == null) return;
+
+            // every flow reads and writes its own slot only, so s is replaced in place
+            double m = getEntryProbability(i, m_lb, m_ub);
+            double s_opt = getOptimalReserFee(PriceStats.of(prices[i]), gamma, m,
+                    table.get(RESERV_FEE, i), table.get(EXECU_FEE, i),
+                    buyer.get(FlowTable.Column.CONTRACT_LEVEL, i),
+                    table.get(CAPACITY, i), table.get(MARGIN_COST, i));
+            if (metrics != null) metrics.check(s_opt);
+            table.set(RESERV_FEE, i, s_opt);
+        });
+        if (metrics != null) metrics.stop(Metrics.Phase.FEE, start, ids == null ? prices.length : ids.length);
+    }
+
+    /** Draw the probability to enter market of one flow, the same draw every time for a seed */
+    double getEntryProbability(int id, double m_lb, double m_ub) {
+        return FlowRandom.forFlow(seed, FlowRandom.SELLER_ENTRY, id).nextDouble(m_lb, m_ub);
     }
 
     /** Get Q with inputs s and g */
-    private double calculateQ(List<Double>prices, double s, double g){
-        double P_u = Collections.max(prices);
-        double P_d = Collections.min(prices);
-        double sigma = (P_u - P_d)/(2*Math.sqrt(3));
-        return 100 * Math.log(100.0/(P_u - Math.sqrt(Math.pow(P_u-g, 2)-4*Math.sqrt(3)*s*sigma)));
+    double calculateQ(PriceStats prices, double s, double g){
+        return calculateQ(prices.max(), prices.sigma(), s, g);
+    }
+
+    /** Get Q with inputs s and g, from the highest price P_u and sigma */
+    private double calculateQ(double P_u, double sigma, double s, double g){
+        double discriminant = Math.pow(P_u-g, 2)-4*Math.sqrt(3)*s*sigma;
+        if (metrics != null && discriminant < 0) metrics.increment(Metrics.Counter.NEGATIVE_DISCRIMINANT);
+        return 100 * Math.log(100.0/(P_u - Math.sqrt(discriminant)));
     }
 
     /**
@@ -216,31 +317,152 @@ public class Seller {
             HashMap<String, Double> execuFee) {
         for (Map.Entry<String, List<Double>> entry : mktPrices.entrySet()) {
             String od = entry.getKey();
-            List<Double> prices = entry.getValue();
+            int id = flows.add(od);
+            // only the extremes are needed, so the samples are not sorted into a G table
+            double P_u = Double.NEGATIVE_INFINITY;
+            double P_d = Double.POSITIVE_INFINITY;
+            PriceStats shared = priceStats != null && id < priceStats.length ? priceStats[id] : null;
+            if (shared != null) {
+                P_u = shared.max();
+                P_d = shared.min();
+            } else {
+                for (double price : entry.getValue()) {
+                    P_u = Math.max(P_u, price);
+                    P_d = Math.min(P_d, price);
+                }
+            }
             double s = reservFee.get(od);
             double g  = execuFee.get(od);
-            double K = calculateQ(prices, s, g);
-            this.capacity.put(od, K);
+            double K = calculateQ(P_u, PriceStats.sigma(P_u, P_d), s, g);
+            this.table.set(CAPACITY, id, K);
         }
     }
 
+    /**
+     * This method optimizes the capacity of the Seller with its own optimal s and g, by flow id
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     */
+    public void setOptimalCapacity(GFunction[] prices) {
+        setOptimalCapacity(prices, null);
+    }
+
+    /**
+     * This method re-optimizes the capacity of some flows only, the others are kept
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     * @param ids the flow ids to re-optimize, null re-optimizes every flow
+     */
+    public void setOptimalCapacity(GFunction[] prices, int[] ids) {
+        table.ensureCapacity(CAPACITY);
+        Metrics metrics = this.metrics;
+        long start = metrics == null ? 0L : metrics.start();
+        FlowTasks.forEach(pool, prices.length, ids, i -> {
+            if (prices[i] == null) return;
+
+            double K = calculateQ(PriceStats.of(prices[i]), table.get(RESERV_FEE, i), table.get(EXECU_FEE, i));
+            if (metrics != null) metrics.check(K);
+            this.table.set(CAPACITY, i, K);
+        });
+        if (metrics != null) metrics.stop(Metrics.Phase.CAPACITY, start, ids == null ? prices.length : ids.length);
+    }
+
+    /** Make sure another flow table shares the Seller's flow dictionary */
+    private void checkIndex(FlowTable other) {
+        if (other.getIndex() != flows) {
+            throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+        }
+    }
+
+    /**
+     * Set the pool the by-index optimizations run on
+     * @param pool the pool splitting the flows, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the metrics the by-index optimizations are timed and counted in
+     * @param metrics the metrics of the run, null records nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the scale of the Buyer's demand the reservation fee is optimized against
+     * @param gamma the scale in the Buyer's elasticity, 0.01 by default
+     */
+    public void setGamma(double gamma) {
+        this.gamma = gamma;
+    }
+
+    /** Get the scale of the Buyer's demand */
+    public double getGamma() {
+        return this.gamma;
+    }
+
+    /**
+     * Set the cache the reservation fee of flows with nearly the same prices and inputs is shared in
+     * @param cache the cache, may be shared with other Sellers, null optimizes every flow
+     */
+    public void setCache(DecisionCache cache) {
+        this.cache = cache;
+    }
+
+    /** Get the cache of reservation fees, null if there is none */
+    public DecisionCache getCache() {
+        return this.cache;
+    }
+
+    /**
+     * Share the price distributions of the Market with the methods taking price samples by flow name,
+     * so they are not rebuilt from the samples on every call
+     * @param priceStats price distributions indexed by flow id, e.g. Market.getPriceStats(), null builds them from the samples
+     */
+    public void setPriceStats(PriceStats[] priceStats) {
+        this.priceStats = priceStats;
+    }
+
+    /** Get the shared price distributions, null if there are none */
+    public PriceStats[] getPriceStats() {
+        return this.priceStats;
+    }
+
+    /**
+     * Set the seed of the per-flow random streams, the generated fees, capacity and the draw of m
+     * @param seed the seed of the run
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /** Get the seed of the per-flow random streams */
+    public long getSeed() {
+        return this.seed;
+    }
+
     /** Return the reservation fee s */
     public HashMap<String, Double> getReservFee() {
-        return this.reservFee;
+        return this.table.toMap(RESERV_FEE);
     }
 
     /* Return the execution fee g */
     public HashMap<String, Double> getExecuFee() {
-        return this.execuFee;
+        return this.table.toMap(EXECU_FEE);
     }
 
     /* Return the capacity K */
     public HashMap<String, Double> getCapacity() {
-        return this.capacity;
+        return this.table.toMap(CAPACITY);
     }
 
     /* Return the marginal cost b */
     public HashMap<String, Double> getMarginalCost() {
-        return this.marginCost;
+        return this.table.toMap(MARGIN_COST);
+    }
+
+    /** Get the Seller's fees, capacity and marginal cost by flow id */
+    public FlowTable getFlowTable() {
+        return this.table;
     }
 }
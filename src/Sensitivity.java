@@ -0,0 +1,199 @@
+/**
+ * The class measures how the Seller's optimal reservation fee s and capacity K
+ * respond to its parameters: the scale of the Buyer's demand gamma, the
+ * probability to enter market m and the marginal cost b. Every flow is perturbed
+ * up and down by a relative step in one pass over all flows, reusing the price
+ * statistics and G table of the flow across all perturbations, and the responses
+ * are central finite differences of
+ *
+ *   s(theta) = optimal reservation fee given the current Q, s, g, K
+ *   K(theta) = optimal capacity given s(theta) and g
+ */
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+
+public class Sensitivity {
+
+    /** Parameters the responses are taken with respect to */
+    public enum Parameter {
+        GAMMA,
+        M,
+        B
+    }
+
+    /** Average response of all flows with finite responses to one parameter */
+    public static class Summary {
+        public final Parameter parameter;
+        public final double reserFeeSlope;
+        public final double capacitySlope;
+        public final int flows;
+
+        Summary(Parameter parameter, double reserFeeSlope, double capacitySlope, int flows) {
+            this.parameter = parameter;
+            this.reserFeeSlope = reserFeeSlope;
+            this.capacitySlope = capacitySlope;
+            this.flows = flows;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("d/d%s: s %.6g, K %.6g (%d flows)",
+                    parameter.name().toLowerCase(Locale.ROOT), reserFeeSlope, capacitySlope, flows);
+        }
+    }
+
+    private final Seller seller;
+    private final FlowTable buyer;
+    private final FlowTable table;
+    private final GFunction[] prices;
+    private ForkJoinPool pool;
+    private double m_lb;
+    private double m_ub;
+    private double step;
+
+    private double[] reserFee;
+    private double[] capacity;
+    private double[][] reserFeeSlope;
+    private double[][] capacitySlope;
+
+    /**
+     * Create a sensitivity analysis of the Seller's current decisions
+     * @param seller the Seller holding s, g, K and b
+     * @param buyer the Buyer holding Q
+     * @param prices price distributions indexed by flow id, flows without one are skipped
+     */
+    public Sensitivity(Seller seller, Buyer buyer, GFunction[] prices) {
+        if (buyer.getFlowTable().getIndex() != seller.getFlowTable().getIndex()) {
+            throw new IllegalArgumentException("flow table is indexed by another flow dictionary");
+        }
+        this.seller = seller;
+        this.buyer = buyer.getFlowTable();
+        this.table = seller.getFlowTable();
+        this.prices = prices;
+        this.m_lb = 0.25;
+        this.m_ub = 0.65;
+        this.step = 1e-4;
+    }
+
+    /**
+     * Set the pool the flows are split on
+     * @param pool the pool splitting the flows, null runs them serially
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /** Set the bounds of probability to enter market m is drawn from, as in Seller.setOptimalReserFee */
+    public void setEntryBounds(double m_lb, double m_ub) {
+        this.m_lb = m_lb;
+        this.m_ub = m_ub;
+    }
+
+    /** Set the perturbation of a parameter as a fraction of its value */
+    public void setStep(double step) {
+        this.step = step;
+    }
+
+    /** The method computes the responses of every flow */
+    public void run() {
+        run(null);
+    }
+
+    /**
+     * The method computes the responses of some flows only, the others are left NaN
+     * @param ids the flow ids, null computes every flow
+     */
+    public void run(int[] ids) {
+        int n = prices.length;
+        int params = Parameter.values().length;
+        reserFee = nan(n);
+        capacity = nan(n);
+        reserFeeSlope = new double[params][];
+        capacitySlope = new double[params][];
+        for (int p = 0; p < params; p++) {
+            reserFeeSlope[p] = nan(n);
+            capacitySlope[p] = nan(n);
+        }
+
+        double gamma = seller.getGamma();
+        FlowTasks.forEach(pool, n, ids, i -> {
+            if (prices[i] == null) return;
+
+            // the statistics and G table of the flow are built once for all perturbations
+            PriceStats stats = PriceStats.of(prices[i]);
+            double m = seller.getEntryProbability(i, m_lb, m_ub);
+            double s = table.get(FlowTable.Column.RESERV_FEE, i);
+            double g = table.get(FlowTable.Column.EXECU_FEE, i);
+            double K = table.get(FlowTable.Column.CAPACITY, i);
+            double b = table.get(FlowTable.Column.MARGIN_COST, i);
+            double Q = buyer.get(FlowTable.Column.CONTRACT_LEVEL, i);
+
+            double s_opt = seller.getOptimalReserFee(stats, gamma, m, s, g, Q, K, b);
+            reserFee[i] = s_opt;
+            capacity[i] = seller.calculateQ(stats, s_opt, g);
+
+            for (Parameter parameter : Parameter.values()) {
+                double[] theta = {gamma, m, b};
+                double h = step * Math.max(Math.abs(theta[parameter.ordinal()]), 1.0);
+                theta[parameter.ordinal()] += h;
+                double s_up = seller.getOptimalReserFee(stats, theta[0], theta[1], s, g, Q, K, theta[2]);
+                theta[parameter.ordinal()] -= 2 * h;
+                double s_down = seller.getOptimalReserFee(stats, theta[0], theta[1], s, g, Q, K, theta[2]);
+
+                reserFeeSlope[parameter.ordinal()][i] = (s_up - s_down) / (2 * h);
+                capacitySlope[parameter.ordinal()][i] =
+                        (seller.calculateQ(stats, s_up, g) - seller.calculateQ(stats, s_down, g)) / (2 * h);
+            }
+        });
+    }
+
+    private static double[] nan(int n) {
+        double[] res = new double[n];
+        Arrays.fill(res, Double.NaN);
+        return res;
+    }
+
+    /** Get the optimal reservation fee of a flow at the current parameters */
+    public double getReserFee(int id) {
+        return reserFee[id];
+    }
+
+    /** Get the optimal capacity of a flow at the optimal reservation fee */
+    public double getCapacity(int id) {
+        return capacity[id];
+    }
+
+    /** Get the response of the optimal reservation fee of a flow to a parameter */
+    public double getReserFeeSlope(Parameter parameter, int id) {
+        return reserFeeSlope[parameter.ordinal()][id];
+    }
+
+    /** Get the response of the optimal capacity of a flow to a parameter */
+    public double getCapacitySlope(Parameter parameter, int id) {
+        return capacitySlope[parameter.ordinal()][id];
+    }
+
+    /** Get the average responses to every parameter over the flows whose responses are finite */
+    public List<Summary> summarize() {
+        List<Summary> res = new ArrayList<Summary>();
+        for (Parameter parameter : Parameter.values()) {
+            double[] ds = reserFeeSlope[parameter.ordinal()];
+            double[] dK = capacitySlope[parameter.ordinal()];
+            double sumS = 0.0;
+            double sumK = 0.0;
+            int count = 0;
+            for (int i = 0; i < ds.length; i++) {
+                if (Double.isFinite(ds[i]) && Double.isFinite(dK[i])) {
+                    sumS += ds[i];
+                    sumK += dK[i];
+                    count++;
+                }
+            }
+            res.add(new Summary(parameter, count > 0 ? sumS / count : Double.NaN,
+                    count > 0 ? sumK / count : Double.NaN, count));
+        }
+        return res;
+    }
+}
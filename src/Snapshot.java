@@ -0,0 +1,270 @@
+/**
+ * The class saves and restores the state of a run: the flow dictionary, the Market's
+ * flow records and price samples, and the decisions of the Buyer and the Seller.
+ * Long equilibrium runs can be checkpointed and resumed, and what-if analyses can
+ * start from a saved baseline instead of regenerating it.
+ *
+ * The file is little-endian and versioned. A 64 byte header (magic, version, number
+ * of flows and of flow records, the positions of the sections and the Seller's gamma)
+ * is followed by the flow dictionary, the price matrix and one section per agent
+ * holding its seed and every column it has set. Sections are read and written with
+ * bulk primitive transfers, and the price matrix is mapped in place on restore.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+
+public class Snapshot {
+    private static final long MAGIC = 0x31504E5353434F42L; // "OBCSSNP1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+
+    private final Market market;
+    private final Buyer buyer;
+    private final Seller seller;
+
+    private Snapshot(Market market, Buyer buyer, Seller seller) {
+        this.market = market;
+        this.buyer = buyer;
+        this.seller = seller;
+    }
+
+    /**
+     * The method saves a run, the Market, the Buyer and the Seller must share one flow dictionary
+     * @param file the snapshot file, replaced if it exists
+     * @param market the Market
+     * @param buyer the Buyer
+     * @param seller the Seller
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(String file, Market market, Buyer buyer, Seller seller) throws IOException {
+        FlowIndex flows = market.getFlowIndex();
+        if (buyer.getFlowTable().getIndex() != flows || seller.getFlowTable().getIndex() != flows) {
+            throw new IllegalArgumentException("Market, Buyer and Seller do not share one flow dictionary");
+        }
+        int n = flows.size();
+        List<String> ods = market.getOds();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            /** Flow dictionary: od lengths, od bytes, then the flow records by id */
+            byte[][] names = new byte[n][];
+            long size = 8L + 4L * n + 4L * ods.size();
+            for (int i = 0; i < n; i++) {
+                names[i] = flows.od(i).getBytes(StandardCharsets.UTF_8);
+                size += names[i].length;
+            }
+            ByteBuffer section = allocate(size);
+            section.putLong(market.getSeed());
+            for (byte[] name : names) {
+                section.putInt(name.length);
+            }
+            for (byte[] name : names) {
+                section.put(name);
+            }
+            for (String od : ods) {
+                section.putInt(flows.id(od));
+            }
+            section.flip();
+            long pos = write(channel, section, HEADER);
+
+            /** Price matrix, mapped in place on restore */
+            long matrixPos = 0;
+            PriceMatrix prices = market.getPriceMatrix();
+            if (prices != null) {
+                matrixPos = align(pos);
+                pos = prices.write(channel, matrixPos);
+            }
+
+            long buyerPos = align(pos);
+            pos = writeTable(channel, buyerPos, buyer.getSeed(), buyer.getFlowTable(), n);
+            long sellerPos = align(pos);
+            writeTable(channel, sellerPos, seller.getSeed(), seller.getFlowTable(), n);
+
+            ByteBuffer header = allocate(HEADER);
+            header.putLong(MAGIC).putInt(VERSION).putInt(n).putInt(ods.size()).putInt(0)
+                    .putLong(matrixPos).putLong(buyerPos).putLong(sellerPos).putDouble(seller.getGamma());
+            header.clear();
+            write(channel, header, 0);
+        }
+    }
+
+    /** Write the seed and the set columns of a flow table: ordinal, set flags as bytes, padding, values */
+    private static long writeTable(FileChannel channel, long pos, long seed, FlowTable table, int n)
+            throws IOException {
+        List<FlowTable.Column> columns = new ArrayList<FlowTable.Column>();
+        for (FlowTable.Column column : FlowTable.Column.values()) {
+            if (table.hasAny(column)) columns.add(column);
+        }
+        ByteBuffer head = allocate(16);
+        head.putLong(seed).putInt(columns.size()).putInt(0);
+        head.flip();
+        pos = write(channel, head, pos);
+
+        double[] values = new double[n];
+        boolean[] set = new boolean[n];
+        ByteBuffer section = allocate(8 + align(n) + 8L * n);
+        for (FlowTable.Column column : columns) {
+            table.getColumn(column, values, set);
+            section.clear();
+            section.putInt(column.ordinal()).putInt(0);
+            for (boolean b : set) {
+                section.put((byte) (b ? 1 : 0));
+            }
+            section.position(8 + (int) align(n));
+            section.asDoubleBuffer().put(values);
+            section.clear();
+            pos = write(channel, section, pos);
+        }
+        return pos;
+    }
+
+    /**
+     * The method restores a run saved by save
+     * @param file the snapshot file
+     * @return the restored Market, Buyer and Seller sharing one flow dictionary
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static Snapshot restore(String file) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, HEADER);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + " is not a snapshot file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported snapshot version " + version);
+            }
+            int n = header.getInt();
+            int odCount = header.getInt();
+            header.getInt();
+            long matrixPos = header.getLong();
+            long buyerPos = header.getLong();
+            long sellerPos = header.getLong();
+            double gamma = header.getDouble();
+
+            /** Flow dictionary and flow records */
+            ByteBuffer lengths = read(channel, HEADER, 8L + 4L * n);
+            long marketSeed = lengths.getLong();
+            int[] len = new int[n];
+            lengths.asIntBuffer().get(len);
+            long bytes = 0;
+            for (int l : len) {
+                bytes += l;
+            }
+            ByteBuffer names = read(channel, HEADER + 8L + 4L * n, bytes);
+            Market market = new Market();
+            market.setSeed(marketSeed);
+            FlowIndex flows = market.getFlowIndex();
+            byte[] name = new byte[0];
+            for (int i = 0; i < n; i++) {
+                if (name.length < len[i]) name = new byte[len[i]];
+                names.get(name, 0, len[i]);
+                if (flows.add(new String(name, 0, len[i], StandardCharsets.UTF_8)) != i) {
+                    throw new IOException(file + " holds a duplicated flow");
+                }
+            }
+            int[] ids = new int[odCount];
+            read(channel, HEADER + 8L + 4L * n + bytes, 4L * odCount).asIntBuffer().get(ids);
+            List<String> ods = new ArrayList<String>(odCount);
+            for (int id : ids) {
+                ods.add(flows.od(id));
+            }
+            if (matrixPos > 0) {
+                market.restoreOdPrice(ods, PriceMatrix.read(channel, matrixPos));
+            } else {
+                market.getOds().addAll(ods);
+            }
+
+            Buyer buyer = new Buyer(flows);
+            buyer.setSeed(readTable(channel, buyerPos, buyer.getFlowTable(), n));
+            Seller seller = new Seller(flows);
+            seller.setSeed(readTable(channel, sellerPos, seller.getFlowTable(), n));
+            seller.setGamma(gamma);
+            return new Snapshot(market, buyer, seller);
+        }
+    }
+
+    /** Read the columns of a flow table, return its seed */
+    private static long readTable(FileChannel channel, long pos, FlowTable table, int n) throws IOException {
+        ByteBuffer head = read(channel, pos, 16);
+        long seed = head.getLong();
+        int count = head.getInt();
+        pos += 16;
+
+        long size = 8 + align(n) + 8L * n;
+        double[] values = new double[n];
+        boolean[] set = new boolean[n];
+        byte[] flags = new byte[n];
+        FlowTable.Column[] columns = FlowTable.Column.values();
+        for (int c = 0; c < count; c++) {
+            ByteBuffer section = read(channel, pos, size);
+            int ordinal = section.getInt();
+            if (ordinal < 0 || ordinal >= columns.length) {
+                throw new IOException("unknown column " + ordinal + " at position " + pos);
+            }
+            section.getInt();
+            section.get(flags);
+            for (int i = 0; i < n; i++) {
+                set[i] = flags[i] != 0;
+            }
+            section.position(8 + (int) align(n));
+            section.asDoubleBuffer().get(values);
+            table.setColumn(columns[ordinal], values, set);
+            pos += size;
+        }
+        return seed;
+    }
+
+    private static ByteBuffer allocate(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("snapshot section of " + size + " bytes is too large");
+        }
+        return ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buffer = allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new IOException("snapshot is truncated at position " + (pos + buffer.position()));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        return pos;
+    }
+
+    /** Round up to a multiple of 8 bytes */
+    private static long align(long pos) {
+        return (pos + 7) & ~7L;
+    }
+
+    /** Get the restored Market, its price models are unknown */
+    public Market getMarket() {
+        return market;
+    }
+
+    /** Get the restored Buyer */
+    public Buyer getBuyer() {
+        return buyer;
+    }
+
+    /** Get the restored Seller */
+    public Seller getSeller() {
+        return seller;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * The class keeps the last solution of the U' equation of every flow together with
+ * the price distribution, reservation fee, execution fee, capacity and stop condition
+ * it was solved for. A later solve of the same flow with the same inputs reuses the
+ * last U' outright; a flow whose prices were replaced comes with another distribution
+ * and is solved again. A solve whose
+ * inputs moved within a tolerance, 0 by default, starts from a narrow bracket next
+ * to the last U' instead of the full bracket [U'(K), U'(0)]; such a solve may land
+ * elsewhere within the solver's stop condition than a cold one, so it is opt-in.
+ *
+ * A flow is only ever read and written by the task optimizing it, so distinct flows
+ * may be solved by several threads at once once the state covers every flow.
+ */
+
+import java.util.Arrays;
+
+
+public class SolverState {
+    private double[] uPrime;
+    private PriceStats[] lastPrices;
+    private double[] lastS;
+    private double[] lastG;
+    private double[] lastK;
+    private double[] lastThreshold;
+    private double tolerance;
+    private double width;
+
+    public SolverState() {
+        this.uPrime = new double[0];
+        this.lastPrices = new PriceStats[0];
+        this.lastS = new double[0];
+        this.lastG = new double[0];
+        this.lastK = new double[0];
+        this.lastThreshold = new double[0];
+        this.tolerance = 0.0;
+        this.width = 0.05;
+    }
+
+    /**
+     * Set when a flow is warm-started
+     * @param tolerance the largest relative change of s, g and K that still warm-starts, 0 for none
+     * @param width the half width of the warm bracket relative to the last U'
+     */
+    public void setWarmStart(double tolerance, double width) {
+        this.tolerance = tolerance;
+        this.width = width;
+    }
+
+    /** Get the half width of the warm bracket relative to the last U' */
+    public double getWidth() {
+        return width;
+    }
+
+    /** Grow the state to hold n flows, not thread-safe, call before solving in parallel */
+    public void ensureCapacity(int n) {
+        int old = uPrime.length;
+        if (n <= old) return;
+        uPrime = Arrays.copyOf(uPrime, n);
+        lastPrices = Arrays.copyOf(lastPrices, n);
+        lastS = Arrays.copyOf(lastS, n);
+        lastG = Arrays.copyOf(lastG, n);
+        lastK = Arrays.copyOf(lastK, n);
+        lastThreshold = Arrays.copyOf(lastThreshold, n);
+        Arrays.fill(uPrime, old, n, Double.NaN);
+    }
+
+    /**
+     * The method gets the U' a flow is warm-started from
+     * @param id the flow id
+     * @param s the reservation fee per unit
+     * @param g the execution fee per unit
+     * @param K the capacity of the Seller
+     * @return the last U' of the flow, NaN if it has none or its inputs moved too much
+     */
+    public double guess(int id, double s, double g, double K) {
+        if (id < 0 || id >= uPrime.length || Double.isNaN(uPrime[id])) return Double.NaN;
+        if (moved(lastS[id], s) || moved(lastG[id], g) || moved(lastK[id], K)) return Double.NaN;
+        return uPrime[id];
+    }
+
+    /**
+     * The method gets the U' of a flow solved for exactly the same inputs, which a cold solve would return too
+     * @param id the flow id
+     * @param prices the price distribution of the flow, compared by identity
+     * @param s the reservation fee per unit
+     * @param g the execution fee per unit
+     * @param K the capacity of the Seller
+     * @param threshold the stop condition
+     * @return the last U' of the flow, NaN if it has none or any input changed
+     */
+    public double last(int id, PriceStats prices, double s, double g, double K, double threshold) {
+        if (id < 0 || id >= uPrime.length || Double.isNaN(uPrime[id])) return Double.NaN;
+        if (lastPrices[id] != prices || lastThreshold[id] != threshold) return Double.NaN;
+        if (lastS[id] != s || lastG[id] != g || lastK[id] != K) return Double.NaN;
+        return uPrime[id];
+    }
+
+    private boolean moved(double last, double now) {
+        return !(Math.abs(now - last) <= tolerance * Math.max(Math.abs(last), 1.0));
+    }
+
+    /**
+     * The method records the solution of a flow
+     * @param id the flow id
+     * @param prices the price distribution of the flow
+     * @param s the reservation fee per unit
+     * @param g the execution fee per unit
+     * @param K the capacity of the Seller
+     * @param threshold the stop condition
+     * @param value the solved U', NaN forgets the flow
+     */
+    public void record(int id, PriceStats prices, double s, double g, double K, double threshold, double value) {
+        if (id < 0 || id >= uPrime.length) return;
+        uPrime[id] = value;
+        lastPrices[id] = prices;
+        lastS[id] = s;
+        lastG[id] = g;
+        lastK[id] = K;
+        lastThreshold[id] = threshold;
+    }
+
+    /** Forget one flow, e.g. after its price samples were replaced */
+    public void forget(int id) {
+        if (id < 0 || id >= uPrime.length) return;
+        uPrime[id] = Double.NaN;
+        lastPrices[id] = null;
+    }
+
+    /** Forget every flow, e.g. after the price samples were replaced */
+    public void clear() {
+        Arrays.fill(uPrime, Double.NaN);
+        Arrays.fill(lastPrices, null);
+    }
+}
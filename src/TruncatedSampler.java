@@ -0,0 +1,133 @@
+/**
+ * The class draws truncated Uniform and Normal samples from a SplittableRandom.
+ * A sample is accepted only if it lies within both bounds at once, and bulk
+ * draws fill primitive arrays without allocating anything per sample.
+ */
+
+import org.apache.commons.math3.special.Erf;
+
+import java.util.SplittableRandom;
+
+
+public class TruncatedSampler {
+    private static final double SQRT2 = Math.sqrt(2.0);
+    /** Below this probability mass of [lb, ub] rejection is replaced by inversion */
+    private static final double MIN_ACCEPT = 0.25;
+
+    private TruncatedSampler() {
+    }
+
+    /** Draw a standard Normal value with the polar method, the second value is discarded */
+    public static double gaussian(SplittableRandom rnd) {
+        double u, v, s;
+        do {
+            u = 2.0 * rnd.nextDouble() - 1.0;
+            v = 2.0 * rnd.nextDouble() - 1.0;
+            s = u * u + v * v;
+        } while (s >= 1.0 || s == 0.0);
+        return u * Math.sqrt(-2.0 * Math.log(s) / s);
+    }
+
+    /**
+     * The method draws one Uniform(lower, upper) value truncated to [lb, ub]
+     * @param rnd random stream of the flow
+     * @param lower lower bound of this distribution (inclusive)
+     * @param upper upper bound of this distribution (exclusive)
+     * @param lb lower bound of the sample
+     * @param ub upper bound of the sample
+     * @return the sample
+     */
+    public static double uniform(SplittableRandom rnd, double lower, double upper, double lb, double ub) {
+        double lo = Math.max(lower, lb);
+        double hi = Math.min(upper, ub);
+        checkWindow(lo, hi);
+        // a uniform draw conditioned on a sub-interval is uniform on that sub-interval
+        return lo == hi ? lo : rnd.nextDouble(lo, hi);
+    }
+
+    /**
+     * The method fills an array with Uniform(lower, upper) values truncated to [lb, ub]
+     * @param rnd random stream of the flow
+     * @param out the array to fill
+     * @param lower lower bound of this distribution (inclusive)
+     * @param upper upper bound of this distribution (exclusive)
+     * @param lb lower bound of the sample
+     * @param ub upper bound of the sample
+     */
+    public static void fillUniform(
+            SplittableRandom rnd, double[] out, double lower, double upper, double lb, double ub) {
+        double lo = Math.max(lower, lb);
+        double hi = Math.min(upper, ub);
+        checkWindow(lo, hi);
+        for (int i = 0; i < out.length; i++) {
+            out[i] = lo == hi ? lo : rnd.nextDouble(lo, hi);
+        }
+    }
+
+    /**
+     * The method draws one Normal(mean, std) value truncated to [lb, ub]
+     * @param rnd random stream of the flow
+     * @param mean mean for Normal distribution
+     * @param std standard deviation for Normal distribution
+     * @param lb lower bound of the sample
+     * @param ub upper bound of the sample
+     * @return the sample
+     */
+    public static double normal(SplittableRandom rnd, double mean, double std, double lb, double ub) {
+        checkWindow(lb, ub);
+        double alpha = cdf((lb - mean) / std);
+        double beta = cdf((ub - mean) / std);
+        return beta - alpha < MIN_ACCEPT
+                ? invert(rnd, mean, std, alpha, beta, lb, ub)
+                : reject(rnd, mean, std, lb, ub);
+    }
+
+    /**
+     * The method fills an array with Normal(mean, std) values truncated to [lb, ub]
+     * @param rnd random stream of the flow
+     * @param out the array to fill
+     * @param mean mean for Normal distribution
+     * @param std standard deviation for Normal distribution
+     * @param lb lower bound of the sample
+     * @param ub upper bound of the sample
+     */
+    public static void fillNormal(
+            SplittableRandom rnd, double[] out, double mean, double std, double lb, double ub) {
+        checkWindow(lb, ub);
+        double alpha = cdf((lb - mean) / std);
+        double beta = cdf((ub - mean) / std);
+        if (beta - alpha < MIN_ACCEPT) {
+            for (int i = 0; i < out.length; i++) out[i] = invert(rnd, mean, std, alpha, beta, lb, ub);
+        } else {
+            for (int i = 0; i < out.length; i++) out[i] = reject(rnd, mean, std, lb, ub);
+        }
+    }
+
+    /** Redraw until the value lies within both bounds */
+    private static double reject(SplittableRandom rnd, double mean, double std, double lb, double ub) {
+        double sample;
+        do {
+            sample = mean + std * gaussian(rnd);
+        } while (sample < lb || sample > ub);
+        return sample;
+    }
+
+    /** Map a uniform draw of [alpha, beta] through the inverse Normal cdf, used for narrow windows */
+    private static double invert(
+            SplittableRandom rnd, double mean, double std, double alpha, double beta, double lb, double ub) {
+        double p = alpha + (beta - alpha) * rnd.nextDouble();
+        double sample = mean + std * SQRT2 * Erf.erfInv(2.0 * p - 1.0);
+        return Math.min(Math.max(sample, lb), ub);
+    }
+
+    /** Standard Normal cdf */
+    static double cdf(double x) {
+        return 0.5 * Erf.erfc(-x / SQRT2);
+    }
+
+    private static void checkWindow(double lb, double ub) {
+        if (!(lb <= ub)) {
+            throw new IllegalArgumentException("empty sample window [" + lb + ", " + ub + "]");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * The class solves G(U') = s + G(g) for the optimal derivative of WTP - U'.
+ * Empirical G tables are inverted exactly segment by segment, any other price
+ * distribution falls back to an iterative bracketing solver, which may be
+ * warm-started from a narrow bracket next to the last solution of the flow.
+ */
+
+import org.apache.commons.math3.analysis.solvers.BrentSolver;
+import org.apache.commons.math3.analysis.solvers.UnivariateSolver;
+
+
+public class UPrimeSolver {
+    private static final int MAX_EVAL = 100;
+    private static final double ABSOLUTE_ACCURACY = 1e-9;
+
+    private UPrimeSolver() {
+    }
+
+    /**
+     * The method calculates the optimal derivative of WTP within [lb, ub]
+     * @param prices price distribution of one od flow
+     * @param right the right result of the equation to get optimal Q
+     * @param lb lower bound of U_prime, the derivative of WTP at the capacity
+     * @param ub upper bound of U_prime, the derivative of WTP at zero demand
+     * @param threshold the stop condition on G for the iterative solver
+     * @return the optimal U_prime, lb when the capacity binds, -1.0 when no contract is worth buying
+     */
+    public static double solve(GFunction prices, double right, double lb, double ub, double threshold) {
+        return solve(prices, right, lb, ub, threshold, null);
+    }
+
+    /**
+     * The method calculates the optimal derivative of WTP within [lb, ub] and counts the work of the solver
+     * @param prices price distribution of one od flow
+     * @param right the right result of the equation to get optimal Q
+     * @param lb lower bound of U_prime, the derivative of WTP at the capacity
+     * @param ub upper bound of U_prime, the derivative of WTP at zero demand
+     * @param threshold the stop condition on G for the iterative solver
+     * @param metrics the metrics counting solver calls and iterations, null counts nothing
+     * @return the optimal U_prime, lb when the capacity binds, -1.0 when no contract is worth buying
+     */
+    public static double solve(
+            GFunction prices, double right, double lb, double ub, double threshold, Metrics metrics) {
+        return solve(prices, right, lb, ub, threshold, metrics, Double.NaN, 0.0);
+    }
+
+    /**
+     * The method calculates the optimal derivative of WTP within [lb, ub] starting from a guess: a narrow
+     * bracket next to it is widened until it holds the root, which is then searched within that bracket only
+     * @param prices price distribution of one od flow
+     * @param right the right result of the equation to get optimal Q
+     * @param lb lower bound of U_prime, the derivative of WTP at the capacity
+     * @param ub upper bound of U_prime, the derivative of WTP at zero demand
+     * @param threshold the stop condition on G for the iterative solver
+     * @param metrics the metrics counting solver calls and iterations, null counts nothing
+     * @param guess the U_prime to start from, e.g. the last solution of the flow, NaN for none
+     * @param width the width of the narrow bracket relative to the guess, positive
+     * @return the optimal U_prime, lb when the capacity binds, -1.0 when no contract is worth buying
+     */
+    public static double solve(GFunction prices, double right, double lb, double ub, double threshold,
+                               Metrics metrics, double guess, double width) {
+        double left_lb = prices.value(lb);
+        double left_ub = prices.value(ub);
+
+        if (right > left_ub) return -1.0;
+        if (right <= left_lb) return lb;
+        // an undefined bracket, e.g. from a NaN capacity, has no root to search for
+        if (Double.isNaN(left_lb) || Double.isNaN(right)) return Double.NaN;
+
+        if (metrics != null) metrics.increment(Metrics.Counter.SOLVER_CALLS);
+        GFunction g = prices instanceof PriceStats ? ((PriceStats) prices).prices() : prices;
+        if (g instanceof GTable) {
+            if (metrics != null) metrics.increment(Metrics.Counter.SOLVER_EXACT);
+            double uPrime = ((GTable) g).inverse(right);
+            return Math.min(Math.max(uPrime, lb), ub);
+        }
+        UnivariateSolver solver = new BrentSolver(ABSOLUTE_ACCURACY, ABSOLUTE_ACCURACY, threshold);
+        if (guess > lb && guess < ub && width > 0) {
+            if (metrics != null) metrics.increment(Metrics.Counter.SOLVER_WARM_STARTS);
+            // the guess is never kept on the stop condition alone, which would tie the result to the history
+            // of the flow, it only narrows the bracket
+            double f_guess = prices.value(guess) - right;
+            int evaluations = 1;
+            // G is non-decreasing, so widen a bracket from the guess towards the root until G - right changes
+            // sign over it, at worst up to the full bracket which is known to hold the root
+            double lo = guess;
+            double hi = guess;
+            double f = f_guess;
+            double w = width;
+            if (f < 0) {
+                while (f < 0 && hi < ub) {
+                    lo = hi;
+                    hi = Math.min(ub, guess * (1 + w));
+                    f = prices.value(hi) - right;
+                    w *= 4;
+                    evaluations++;
+                }
+            } else {
+                while (f > 0 && lo > lb) {
+                    hi = lo;
+                    lo = Math.max(lb, guess * (1 - w));
+                    f = prices.value(lo) - right;
+                    w *= 4;
+                    evaluations++;
+                }
+            }
+            if (metrics != null) {
+                if (evaluations > 2) metrics.increment(Metrics.Counter.SOLVER_EXPANSIONS);
+                metrics.add(Metrics.Counter.SOLVER_ITERATIONS, evaluations);
+            }
+            if (lo < hi) {
+                double uPrime = solver.solve(MAX_EVAL, a -> prices.value(a) - right, lo, hi);
+                if (metrics != null) metrics.add(Metrics.Counter.SOLVER_ITERATIONS, solver.getEvaluations());
+                return uPrime;
+            }
+        }
+        double uPrime = solver.solve(MAX_EVAL, a -> prices.value(a) - right, lb, ub);
+        if (metrics != null) metrics.add(Metrics.Counter.SOLVER_ITERATIONS, solver.getEvaluations());
+        return uPrime;
+    }
+}
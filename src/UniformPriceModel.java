@@ -0,0 +1,84 @@
+/**
+ * The class models the market price of a flow with a Uniform distribution
+ * truncated to [lb, ub], which is Uniform on the intersection of both windows.
+ */
+
+import java.util.SplittableRandom;
+
+
+public class UniformPriceModel implements PriceModel, GFunction {
+    private final double lower;
+    private final double upper;
+    private final double lb;
+    private final double ub;
+
+    /**
+     * @param lower Lower bound of this distribution (inclusive)
+     * @param upper Upper bound of this distribution (exclusive)
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     */
+    public UniformPriceModel(double lower, double upper, double lb, double ub) {
+        this.lower = lower;
+        this.upper = upper;
+        this.lb = lb;
+        this.ub = ub;
+        if (!(min() <= max())) {
+            throw new IllegalArgumentException("empty price window [" + min() + ", " + max() + "]");
+        }
+    }
+
+    /**
+     * The method creates models whose bounds are drawn uniformly for each flow
+     * @param upper_ub upper bound of upper
+     * @param upper_lb lower bound of upper
+     * @param lower_ub upper bound of lower
+     * @param lower_lb lower bound of lower
+     * @param lb lower bound of sample price
+     * @param ub upper bound of sample price
+     * @return the factory of the models
+     */
+    public static PriceModel.Factory factory(
+            double upper_ub, double upper_lb, double lower_ub, double lower_lb, double lb, double ub) {
+        return (od, rnd) -> {
+            double upper = rnd.nextDouble(upper_lb, upper_ub);
+            double lower = rnd.nextDouble(lower_lb, lower_ub);
+            return new UniformPriceModel(lower, upper, lb, ub);
+        };
+    }
+
+    @Override
+    public void fill(SplittableRandom rnd, double[] out) {
+        TruncatedSampler.fillUniform(rnd, out, lower, upper, lb, ub);
+    }
+
+    @Override
+    public GFunction expectedValue() {
+        return this;
+    }
+
+    /** Calculate G(a) = E[min(P, a)] of the Uniform distribution on [P_d, P_u] */
+    @Override
+    public double value(double a) {
+        double lo = min();
+        double hi = max();
+        if (a <= lo) return a;
+        if (a >= hi) return mean();
+        return ((a * a - lo * lo) / 2.0 + a * (hi - a)) / (hi - lo);
+    }
+
+    @Override
+    public double max() {
+        return Math.min(upper, ub);
+    }
+
+    @Override
+    public double min() {
+        return Math.max(lower, lb);
+    }
+
+    @Override
+    public double mean() {
+        return (min() + max()) / 2.0;
+    }
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class ColumnarResultSinkTest {
+
+    @TempDir
+    Path dir;
+
+    /** Keeps every row it receives */
+    static class Rows implements ResultSink {
+        final List<String> ods = new ArrayList<String>();
+        final List<double[]> values = new ArrayList<double[]>();
+        int batches;
+
+        @Override
+        public void accept(ResultBatch batch) {
+            batches++;
+            for (int i = 0; i < batch.size(); i++) {
+                ods.add(batch.od(i));
+                double[] row = new double[ResultBatch.NAMES.length];
+                for (int c = 0; c < row.length; c++) {
+                    row[c] = batch.get(c, i);
+                }
+                values.add(row);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    void rowsComeBackAsWritten() throws IOException {
+        // flow records of every length modulo 8 and with multi-byte characters exercise the padding
+        String[] ods = {"1-2", "10-20", "100-200", "Zürich-東京", "a-b", "origin-destination", "é-è", "x-y"};
+        double[][] rows = {
+                {1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0},
+                {Double.NaN, 0.0, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -1e300},
+                {137.74603719327422, 7.924132677181815, Math.PI, Math.E, 1e-12, 25.0, 0.5},
+        };
+        Rows expected = new Rows();
+        String file = dir.resolve("results.bin").toString();
+        try (ResultSink sink = new ColumnarResultSink(file)) {
+            for (int size : new int[]{5, 1, 8}) {
+                ResultBatch batch = new ResultBatch(size);
+                for (int i = 0; i < size; i++) {
+                    batch.add(ods[(i + size) % ods.length], rows[i % rows.length]);
+                }
+                expected.accept(batch);
+                sink.accept(batch);
+            }
+            // an empty batch writes no block
+            sink.accept(new ResultBatch(4));
+        }
+
+        Rows actual = new Rows();
+        assertEquals(14, ColumnarResultSink.read(file, actual));
+        assertEquals(3, actual.batches);
+        assertEquals(expected.ods, actual.ods);
+        for (int i = 0; i < expected.values.size(); i++) {
+            assertArrayEquals(expected.values.get(i), actual.values.get(i), "row " + i);
+        }
+    }
+
+    @Test
+    void runResultsComeBackThroughTheBackgroundWriter() throws IOException {
+        List<String> ods = new ArrayList<String>();
+        for (int i = 0; i < 2 * ResultSink.BATCH_SIZE + 3; i++) {
+            ods.add(i / 100 + "-" + i % 100);
+        }
+        FlowIndex flows = new FlowIndex(ods);
+        Buyer buyer = new Buyer(flows);
+        buyer.setSeed(1L);
+        buyer.initializeContractLevel(ods);
+        Seller seller = new Seller(flows);
+        seller.setSeed(2L);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+
+        String file = dir.resolve("run.bin").toString();
+        try (ResultSink sink = ResultSink.open(file)) {
+            sink.write(ods, buyer, seller);
+        }
+
+        Rows actual = new Rows();
+        assertEquals(ods.size(), ColumnarResultSink.read(file, actual));
+        assertEquals(3, actual.batches);
+        assertEquals(ods, actual.ods);
+        FlowTable b = buyer.getFlowTable();
+        FlowTable s = seller.getFlowTable();
+        for (int i = 0; i < ods.size(); i++) {
+            int id = flows.id(ods.get(i));
+            double[] row = actual.values.get(i);
+            assertEquals(b.get(FlowTable.Column.CONTRACT_LEVEL, id), row[0]);
+            // q and x and the reservation fee were never set
+            assertTrue(Double.isNaN(row[1]) && Double.isNaN(row[2]) && Double.isNaN(row[3]));
+            assertEquals(s.get(FlowTable.Column.EXECU_FEE, id), row[4]);
+            assertEquals(s.get(FlowTable.Column.CAPACITY, id), row[5]);
+            assertEquals(s.get(FlowTable.Column.MARGIN_COST, id), row[6]);
+        }
+    }
+
+    @Test
+    void otherFilesAreRefused() throws IOException {
+        Path file = dir.resolve("results.csv");
+        Files.write(file, "od,Q,q,x,s,g,K,b\n1-2,1,2,3,4,5,6,7\n".getBytes("UTF-8"));
+        assertThrows(IOException.class, () -> ColumnarResultSink.read(file.toString(), new Rows()));
+    }
+}
@@ -0,0 +1,143 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class DemandKernelTest {
+    private static final double[] PRICES = {5.0, 10.0, 20.0, 24.5, 25.0, 30.0, 45.0, 60.0, 99.0, 100.0, 120.0};
+    private static final double[] FEES = {Double.NaN, 5.0, 10.0, 25.0, 30.0, 60.0};
+    private static final double[] LEVELS = {0.0, 10.0, 50.0, 69.3, 200.0, 500.0};
+
+    /** q of the Buyer's setDemandFromSeller before the kernel, NaN for a flow the Seller has no fee for */
+    static double baselineFromSeller(double price, double execCost, double contrAmt) {
+        double demandContr = 0.0;
+        if (!Double.isNaN(execCost)) {
+            if (price > execCost) {
+                demandContr = contrAmt;
+            }
+        }
+        return demandContr;
+    }
+
+    /** x of the Buyer's setDemandFromMkt before the kernel, NaN for a flow the Seller has no fee for */
+    static double baselineFromMkt(double price, double execCost, double contrAmt) {
+        double demandMkt = 0.0;
+        if (!Double.isNaN(execCost)) {
+            double wtfPrime = 100.0 * Math.exp(-0.01 * contrAmt);
+            double demand = (-100) * Math.log(price / 100.0);
+            if (price < execCost) {
+                demandMkt = demand;
+            } else if (execCost <= price && price < wtfPrime) {
+                demandMkt = demand - contrAmt;
+            } else if (price >= wtfPrime) {
+                demandMkt = 0.0;
+            }
+        }
+        return demandMkt;
+    }
+
+    @Test
+    void matchesTheBaselineBranches() {
+        List<double[]> cases = new ArrayList<double[]>();
+        for (double p : PRICES) {
+            for (double g : FEES) {
+                for (double Q : LEVELS) {
+                    cases.add(new double[]{p, g, Q});
+                }
+            }
+        }
+        // the price on the boundary of every branch: the fee itself and U'(Q)
+        for (double Q : LEVELS) {
+            double w = DemandKernel.wtpPrime(Q);
+            cases.add(new double[]{w, 10.0, Q});
+            cases.add(new double[]{Math.nextDown(w), 10.0, Q});
+            cases.add(new double[]{w, w, Q});
+        }
+
+        int n = cases.size();
+        double[] price = new double[n];
+        double[] execuFee = new double[n];
+        double[] contractLevel = new double[n];
+        for (int i = 0; i < n; i++) {
+            price[i] = cases.get(i)[0];
+            execuFee[i] = cases.get(i)[1];
+            contractLevel[i] = cases.get(i)[2];
+        }
+        double[] fromSeller = new double[n];
+        double[] fromMkt = new double[n];
+        DemandKernel.demand(price, execuFee, contractLevel, fromSeller, fromMkt, 0, n);
+        for (int i = 0; i < n; i++) {
+            String label = "p=" + price[i] + " g=" + execuFee[i] + " Q=" + contractLevel[i];
+            assertEquals(baselineFromSeller(price[i], execuFee[i], contractLevel[i]), fromSeller[i], label);
+            assertEquals(baselineFromMkt(price[i], execuFee[i], contractLevel[i]), fromMkt[i], label);
+        }
+    }
+
+    @Test
+    void onlyTheRangeIsWritten() {
+        double[] price = {30.0, 30.0, 30.0};
+        double[] execuFee = {25.0, 25.0, 25.0};
+        double[] contractLevel = {50.0, 50.0, 50.0};
+        double[] fromSeller = {-1.0, -1.0, -1.0};
+        double[] fromMkt = {-1.0, -1.0, -1.0};
+        DemandKernel.demand(price, execuFee, contractLevel, fromSeller, fromMkt, 1, 2);
+        assertArrayEquals(new double[]{-1.0, 50.0, -1.0}, fromSeller);
+        assertEquals(-1.0, fromMkt[0]);
+        assertEquals(-1.0, fromMkt[2]);
+    }
+
+    @Test
+    void buyerTablesMatchTheBaseline() {
+        FlowIndex flows = new FlowIndex();
+        FlowTable seller = new FlowTable(flows);
+        FlowTable market = new FlowTable(flows);
+        Buyer buyer = new Buyer(flows);
+        HashMap<String, Double> contractLevel = new HashMap<String, Double>();
+        HashMap<String, Double> execuFee = new HashMap<String, Double>();
+        HashMap<String, Double> mktPrice = new HashMap<String, Double>();
+        int k = 0;
+        for (double p : PRICES) {
+            for (double g : FEES) {
+                for (double Q : LEVELS) {
+                    String od = "o" + k + "-d" + k++;
+                    int id = flows.add(od);
+                    market.set(FlowTable.Column.RECENT_PRICE, id, p);
+                    mktPrice.put(od, p);
+                    // a flow the Seller does not serve has no fee at all
+                    if (!Double.isNaN(g)) {
+                        seller.set(FlowTable.Column.EXECU_FEE, id, g);
+                        execuFee.put(od, g);
+                    }
+                    buyer.getFlowTable().set(FlowTable.Column.CONTRACT_LEVEL, id, Q);
+                    contractLevel.put(od, Q);
+                }
+            }
+        }
+
+        buyer.setDemand(seller, market);
+        FlowTable batch = buyer.getFlowTable();
+        double[] q = new double[flows.size()];
+        double[] x = new double[flows.size()];
+        for (int id = 0; id < flows.size(); id++) {
+            q[id] = batch.get(FlowTable.Column.DEMAND_FROM_SELLER, id);
+            x[id] = batch.get(FlowTable.Column.DEMAND_FROM_MKT, id);
+        }
+        buyer.setDemandFromSeller(contractLevel, execuFee, mktPrice);
+        buyer.setDemandFromMkt(contractLevel, execuFee, mktPrice);
+
+        for (int id = 0; id < flows.size(); id++) {
+            String od = flows.od(id);
+            double p = mktPrice.get(od);
+            double g = execuFee.containsKey(od) ? execuFee.get(od) : Double.NaN;
+            double Q = contractLevel.get(od);
+            assertEquals(baselineFromSeller(p, g, Q), q[id], od);
+            assertEquals(baselineFromMkt(p, g, Q), x[id], od);
+            assertEquals(q[id], batch.get(FlowTable.Column.DEMAND_FROM_SELLER, id), od);
+            assertEquals(x[id], batch.get(FlowTable.Column.DEMAND_FROM_MKT, id), od);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+
+class EvaluatorTest {
+    private static final long SEED = 20190122L;
+
+    private Market market;
+    private Buyer buyer;
+    private Seller seller;
+
+    @BeforeEach
+    void setUp() {
+        // enough flows for several blocks on every pool
+        List<String> records = new ArrayList<String>();
+        for (int i = 0; i < 6000; i++) {
+            records.add(i / 100 + "-" + i % 100);
+        }
+        market = new Market();
+        market.setSeed(SEED);
+        market.setOdPrice(30, records, UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        List<String> ods = market.getOds();
+        seller = new Seller(market.getFlowIndex());
+        seller.setSeed(SEED + 1);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+        buyer = new Buyer(market.getFlowIndex());
+        buyer.setOptimalContractLevel(market.getPriceStats(), seller.getFlowTable(), 4.0);
+    }
+
+    private List<Evaluator.Estimate> run(ForkJoinPool pool) {
+        Evaluator evaluator = new Evaluator(market, buyer, seller);
+        evaluator.setSeed(SEED);
+        evaluator.setPool(pool);
+        evaluator.setStopping(0.95, 0.0, 1024);
+        return evaluator.run();
+    }
+
+    @Test
+    void estimatesDoNotDependOnThePool() {
+        List<Evaluator.Estimate> serial = run(null);
+        for (int parallelism : new int[]{2, 3, 8}) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                for (int repeat = 0; repeat < 3; repeat++) {
+                    List<Evaluator.Estimate> parallel = run(pool);
+                    for (int k = 0; k < serial.size(); k++) {
+                        assertEquals(serial.get(k).mean, parallel.get(k).mean, serial.get(k).name);
+                        assertEquals(serial.get(k).halfWidth, parallel.get(k).halfWidth, serial.get(k).name);
+                    }
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    @Test
+    void fewContractsStillStopEarly() {
+        // a handful of contracts executes a share of the capacity near 0
+        FlowTable table = buyer.getFlowTable();
+        int contracts = 0;
+        for (int id = 0; id < market.getFlowIndex().size(); id++) {
+            if (contracts < 5 && table.get(FlowTable.Column.CONTRACT_LEVEL, id) > 0.0) {
+                contracts++;
+            } else {
+                table.set(FlowTable.Column.CONTRACT_LEVEL, id, 0.0);
+            }
+        }
+        assertEquals(5, contracts);
+        Evaluator evaluator = new Evaluator(market, buyer, seller);
+        evaluator.setSeed(SEED);
+        evaluator.setStopping(0.95, 0.001, 100000);
+        List<Evaluator.Estimate> res = evaluator.run();
+        assertTrue(res.get(3).mean > 0.0);
+        assertTrue(res.get(0).realizations <= 2048, "kept running: " + res);
+    }
+}
@@ -0,0 +1,68 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class FlowLoaderTest {
+
+    @TempDir
+    Path dir;
+
+    private String write(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, content.getBytes("UTF-8"));
+        return file.toString();
+    }
+
+    @Test
+    void anyTokenIsAFlowWithoutEndpoints() throws IOException {
+        String file = write("ods.csv", "od\n1-2\nabc\nA-B-C\nx-\n1-2\n");
+        FlowIndex flows = new FlowIndex();
+        FlowLoader loader = new FlowLoader(flows);
+        assertEquals(Arrays.asList(0, 1, 2, 3), loader.load(file));
+        assertEquals(Arrays.asList("1-2", "abc", "A-B-C", "x-"), Arrays.asList(
+                flows.od(0), flows.od(1), flows.od(2), flows.od(3)));
+        assertEquals(0, loader.getMalformedCount());
+        assertEquals(1, loader.getDuplicateCount());
+    }
+
+    @Test
+    void splitFlowsMustHaveBothEndpoints() throws IOException {
+        String file = write("ods.csv", "od\n1-2\nabc\nA-B-C\nx-\n");
+        FlowIndex flows = new FlowIndex();
+        FlowEndpoints endpoints = new FlowEndpoints();
+        FlowLoader loader = new FlowLoader(flows);
+        loader.setEndpoints(endpoints);
+        List<Integer> ids = loader.load(file);
+        assertEquals(2, ids.size());
+        assertEquals(2, loader.getMalformedCount());
+
+        // a record is split at its first separator
+        int id = flows.id("A-B-C");
+        assertEquals("A", endpoints.name(endpoints.origin(id)));
+        assertEquals("B-C", endpoints.name(endpoints.destination(id)));
+    }
+
+    @Test
+    void originColumnMayHoldTheSeparatorOnlyWithoutEndpoints() throws IOException {
+        String file = write("ods.csv", "origin,destination\na-b,c\nd,e-f\n");
+        FlowIndex flows = new FlowIndex();
+        FlowLoader loader = new FlowLoader(flows);
+        assertEquals(2, loader.load(file).size());
+        assertTrue(flows.id("a-b-c") >= 0);
+
+        FlowEndpoints endpoints = new FlowEndpoints();
+        loader = new FlowLoader(new FlowIndex());
+        loader.setEndpoints(endpoints);
+        assertEquals(1, loader.load(file).size());
+        assertEquals(1, loader.getMalformedCount());
+        assertEquals("e-f", endpoints.name(endpoints.destination(0)));
+    }
+}
@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+
+class GTableTest {
+    private static final double EPS = 1e-9;
+
+    /** E[min(P, a)] over the samples, the way the Buyer computed it before the G table */
+    static double bruteForce(double[] prices, double a) {
+        double res = 0.0;
+        for (double price : prices) {
+            res += Math.min(price, a);
+        }
+        return res / prices.length;
+    }
+
+    static double[] samples(long seed, int n) {
+        SplittableRandom rnd = new SplittableRandom(seed);
+        double[] res = new double[n];
+        for (int i = 0; i < n; i++) {
+            // rounded so that some samples are repeated
+            res[i] = Math.round(rnd.nextDouble(10, 40) * 4) / 4.0;
+        }
+        return res;
+    }
+
+    @Test
+    void valueMatchesBruteForce() {
+        for (int n : new int[]{1, 2, 30, 1000}) {
+            double[] prices = samples(n, n);
+            GTable table = new GTable(prices);
+            for (double a = 0.0; a <= 50.0; a += 0.125) {
+                assertEquals(bruteForce(prices, a), table.value(a), EPS, "n=" + n + " a=" + a);
+            }
+            for (double price : prices) {
+                assertEquals(bruteForce(prices, price), table.value(price), EPS);
+            }
+        }
+    }
+
+    @Test
+    void statisticsMatchTheSamples() {
+        double[] prices = samples(7, 30);
+        GTable table = new GTable(prices);
+        assertEquals(Arrays.stream(prices).max().getAsDouble(), table.max());
+        assertEquals(Arrays.stream(prices).min().getAsDouble(), table.min());
+        assertEquals(Arrays.stream(prices).average().getAsDouble(), table.mean(), EPS);
+        assertEquals(prices.length, table.size());
+    }
+
+    @Test
+    void boxedSamplesGiveTheSameTable() {
+        double[] prices = samples(11, 30);
+        double[] copy = prices.clone();
+        List<Double> boxed = new ArrayList<Double>();
+        for (double price : prices) {
+            boxed.add(price);
+        }
+        GTable fromArray = new GTable(prices);
+        GTable fromList = new GTable(boxed);
+        assertArrayEquals(copy, prices, "the input samples must be left untouched");
+        for (double a = 5.0; a <= 45.0; a += 0.5) {
+            assertEquals(fromArray.value(a), fromList.value(a));
+        }
+    }
+
+    @Test
+    void inverseFindsTheSmallestRoot() {
+        for (int n : new int[]{1, 2, 30, 1000}) {
+            double[] prices = samples(3 * n, n);
+            GTable table = new GTable(prices);
+            double lo = table.min() - 5.0;
+            for (int k = 0; k <= 400; k++) {
+                double y = lo + (table.mean() - lo) * k / 400.0;
+                double a = table.inverse(y);
+                assertEquals(y, bruteForce(prices, a), 1e-7, "n=" + n + " y=" + y);
+                // G is flat above P_u only, so any smaller a gives a smaller G
+                if (a > lo) assertTrue(bruteForce(prices, a - 1e-6) < y, "n=" + n + " y=" + y);
+            }
+        }
+    }
+
+    @Test
+    void inverseOfTheTails() {
+        double[] prices = samples(5, 30);
+        GTable table = new GTable(prices);
+        assertEquals(table.min() - 1.0, table.inverse(table.min() - 1.0));
+        assertEquals(table.max(), table.inverse(table.mean()));
+        assertTrue(Double.isNaN(table.inverse(table.mean() + 1e-9)));
+    }
+
+    @Test
+    void emptySamplesAreRefused() {
+        assertThrows(IllegalArgumentException.class, () -> new GTable(new double[0]));
+    }
+}
@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+
+class NetworkRollupTest {
+    private static final int ENDPOINTS = 20;
+
+    /** Total of a column over the flows of an endpoint, in flow id order as the rollup sums it */
+    static double bruteForce(FlowTable table, FlowEndpoints endpoints, NetworkRollup.Level level, int code) {
+        double res = 0.0;
+        for (int id = 0; id < table.getIndex().size(); id++) {
+            int o = endpoints.origin(id);
+            int d = endpoints.destination(id);
+            boolean member = level == NetworkRollup.Level.ORIGIN ? o == code
+                    : level == NetworkRollup.Level.DESTINATION ? d == code : o == code || d == code;
+            if (member) res += table.get(FlowTable.Column.CONTRACT_LEVEL, id);
+        }
+        return res;
+    }
+
+    @Test
+    void totalsFollowWritesDuringReads() throws InterruptedException {
+        FlowIndex flows = new FlowIndex();
+        FlowEndpoints endpoints = new FlowEndpoints();
+        for (int o = 0; o < ENDPOINTS; o++) {
+            for (int d = 0; d < ENDPOINTS; d++) {
+                String od = o + "-" + d;
+                endpoints.put(flows.add(od), od);
+            }
+        }
+        FlowTable table = new FlowTable(flows);
+        // every flow is set once up front, so the writers below never grow the table
+        for (int id = 0; id < flows.size(); id++) {
+            table.set(FlowTable.Column.CONTRACT_LEVEL, id, 0.0);
+        }
+        NetworkRollup rollup = new NetworkRollup(flows, endpoints);
+        rollup.watch(table, FlowTable.Column.CONTRACT_LEVEL);
+
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                for (NetworkRollup.Level level : NetworkRollup.Level.values()) {
+                    rollup.totals(level, FlowTable.Column.CONTRACT_LEVEL);
+                }
+            }
+        });
+        reader.start();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int first = t;
+            writers[t] = new Thread(() -> {
+                SplittableRandom rnd = new SplittableRandom(first);
+                for (int round = 0; round < 200; round++) {
+                    // every writer owns the flows with ids equal to it modulo the number of writers
+                    for (int id = first; id < flows.size(); id += writers.length) {
+                        table.set(FlowTable.Column.CONTRACT_LEVEL, id, rnd.nextDouble(0, 500));
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        writing.set(false);
+        reader.join();
+
+        for (NetworkRollup.Level level : NetworkRollup.Level.values()) {
+            double[] totals = rollup.totals(level, FlowTable.Column.CONTRACT_LEVEL);
+            for (int code = 0; code < ENDPOINTS; code++) {
+                assertEquals(bruteForce(table, endpoints, level, code), totals[code], level + " " + code);
+                assertEquals(totals[code], rollup.total(level, code, FlowTable.Column.CONTRACT_LEVEL));
+            }
+        }
+    }
+
+    @Test
+    void flowsWithoutEndpointsAreLeftOut() {
+        FlowIndex flows = new FlowIndex();
+        FlowEndpoints endpoints = new FlowEndpoints();
+        FlowTable table = new FlowTable(flows);
+        NetworkRollup rollup = new NetworkRollup(flows, endpoints);
+        rollup.watch(table, FlowTable.Column.CONTRACT_LEVEL);
+        endpoints.put(flows.add("a-b"), "a-b");
+        flows.add("unsplit");
+        endpoints.put(flows.add("b-a"), "b-a");
+        table.set(FlowTable.Column.CONTRACT_LEVEL, 0, 10.0);
+        table.set(FlowTable.Column.CONTRACT_LEVEL, 1, 100.0);
+        table.set(FlowTable.Column.CONTRACT_LEVEL, 2, Double.NaN);
+
+        assertEquals(10.0, rollup.total(NetworkRollup.Level.ORIGIN, "a", FlowTable.Column.CONTRACT_LEVEL));
+        assertEquals(10.0, rollup.total(NetworkRollup.Level.HUB, "b", FlowTable.Column.CONTRACT_LEVEL));
+        assertEquals(0.0, rollup.total(NetworkRollup.Level.ORIGIN, "b", FlowTable.Column.CONTRACT_LEVEL));
+        assertEquals(0.0, rollup.total(NetworkRollup.Level.ORIGIN, "c", FlowTable.Column.CONTRACT_LEVEL));
+        table.set(FlowTable.Column.CONTRACT_LEVEL, 2, 5.0);
+        assertEquals(15.0, rollup.total(NetworkRollup.Level.HUB, "a", FlowTable.Column.CONTRACT_LEVEL));
+    }
+}
@@ -0,0 +1,63 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+
+class PriceStreamTest {
+    private static final long SEED = 20190120L;
+    private static final double THRESHOLD = 4.0;
+
+    @Test
+    void tickMovesTheContractLevel() {
+        List<String> records = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            records.add(i / 5 + "-" + i % 5);
+        }
+        Market market = new Market();
+        market.setSeed(SEED);
+        market.setOdPrice(30, records, UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        List<String> ods = market.getOds();
+        Seller seller = new Seller(market.getFlowIndex());
+        seller.setSeed(SEED + 1);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+        Buyer buyer = new Buyer(market.getFlowIndex());
+        buyer.setOptimalContractLevel(market.getPriceStats(), seller.getFlowTable(), THRESHOLD);
+
+        FlowTable buyerTable = buyer.getFlowTable();
+        FlowTable sellerTable = seller.getFlowTable();
+        int id = -1;
+        for (int i = 0; i < market.getFlowIndex().size() && id < 0; i++) {
+            if (buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, i) > 0.0) id = i;
+        }
+        assertTrue(id >= 0, "no flow buys a contract");
+        double before = buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, id);
+        double s = sellerTable.get(FlowTable.Column.RESERV_FEE, id);
+        double g = sellerTable.get(FlowTable.Column.EXECU_FEE, id);
+        double K = sellerTable.get(FlowTable.Column.CAPACITY, id);
+
+        PriceStream stream = new PriceStream(market, buyer, seller);
+        stream.setThreshold(THRESHOLD);
+        Map<Integer, Double> published = new HashMap<Integer, Double>();
+        stream.setListener((flow, Q, s1, g1, K1) -> published.put(flow, Q));
+        // a whole window of higher prices, the fees and the capacity stay until the drain
+        double[] samples = market.getPriceMatrix().getRow(market.getPriceRow(id));
+        for (double price : samples) {
+            stream.tick(id, price + 15.0);
+        }
+        assertEquals(1, stream.drain());
+
+        double Q = published.get(id);
+        assertNotEquals(before, Q);
+        Buyer cold = new Buyer(market.getFlowIndex());
+        cold.setWarmStart(false);
+        assertEquals(cold.getOptimalContractLevel(market.getPriceStats()[id], s, g, K, THRESHOLD, -1), Q);
+        assertEquals(Q, buyerTable.get(FlowTable.Column.CONTRACT_LEVEL, id));
+    }
+}
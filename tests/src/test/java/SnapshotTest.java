@@ -0,0 +1,117 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+class SnapshotTest {
+    private static final long SEED = 20190115L;
+
+    @TempDir
+    Path dir;
+
+    private Market market;
+    private Buyer buyer;
+    private Seller seller;
+
+    @BeforeEach
+    void setUp() {
+        List<String> records = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            records.add(i / 7 + "-" + i % 7);
+        }
+        // a repeated record is kept once in the flow dictionary but twice in the flow records
+        records.add("0-0");
+        market = new Market();
+        market.setSeed(SEED);
+        market.setOdPrice(30, records, UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        List<String> ods = market.getOds();
+
+        buyer = new Buyer(market.getFlowIndex());
+        buyer.setSeed(SEED + 1);
+        buyer.initializeContractLevel(ods);
+        seller = new Seller(market.getFlowIndex());
+        seller.setSeed(SEED + 2);
+        seller.setGamma(0.02);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+        buyer.setDemand(seller.getFlowTable(), market.getFlowTable());
+    }
+
+    @Test
+    void restoresWhatWasSaved() throws IOException {
+        String file = dir.resolve("run.snp").toString();
+        Snapshot.save(file, market, buyer, seller);
+        Snapshot snapshot = Snapshot.restore(file);
+
+        Market restored = snapshot.getMarket();
+        FlowIndex flows = market.getFlowIndex();
+        assertEquals(flows.size(), restored.getFlowIndex().size());
+        for (int id = 0; id < flows.size(); id++) {
+            assertEquals(flows.od(id), restored.getFlowIndex().od(id));
+        }
+        assertEquals(market.getOds(), restored.getOds());
+        assertEquals(market.getSeed(), restored.getSeed());
+        for (int id = 0; id < flows.size(); id++) {
+            assertArrayEquals(market.getPriceMatrix().getRow(market.getPriceRow(id)),
+                    restored.getPriceMatrix().getRow(restored.getPriceRow(id)));
+        }
+
+        assertEquals(buyer.getSeed(), snapshot.getBuyer().getSeed());
+        assertEquals(seller.getSeed(), snapshot.getSeller().getSeed());
+        assertEquals(0.02, snapshot.getSeller().getGamma());
+        assertTablesEqual(buyer.getFlowTable(), snapshot.getBuyer().getFlowTable());
+        assertTablesEqual(seller.getFlowTable(), snapshot.getSeller().getFlowTable());
+    }
+
+    @Test
+    void unknownVersionIsRefused() throws IOException {
+        Path file = dir.resolve("other.snp");
+        for (int version : new int[]{0, 2, 9}) {
+            Snapshot.save(file.toString(), market, buyer, seller);
+            patchVersion(file, version);
+            assertThrows(IOException.class, () -> Snapshot.restore(file.toString()), "version " + version);
+        }
+    }
+
+    @Test
+    void otherFilesAreRefused() throws IOException {
+        Path file = dir.resolve("prices.bin");
+        market.saveOdPrice(file.toString());
+        assertThrows(IOException.class, () -> Snapshot.restore(file.toString()));
+    }
+
+    private static void patchVersion(Path file, int version) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(version);
+            buffer.flip();
+            channel.write(buffer, 8);
+        }
+    }
+
+    private static void assertTablesEqual(FlowTable expected, FlowTable actual) {
+        int n = expected.getIndex().size();
+        for (FlowTable.Column column : FlowTable.Column.values()) {
+            double[] e = new double[n];
+            double[] a = new double[n];
+            boolean[] eSet = new boolean[n];
+            boolean[] aSet = new boolean[n];
+            expected.getColumn(column, e, eSet);
+            actual.getColumn(column, a, aSet);
+            assertArrayEquals(eSet, aSet, column.name());
+            assertArrayEquals(e, a, column.name() + " " + Arrays.toString(a));
+        }
+    }
+}
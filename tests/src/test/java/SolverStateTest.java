@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+
+class SolverStateTest {
+    private static final long SEED = 20190118L;
+    private static final double THRESHOLD = 0.001;
+
+    @Test
+    void lastNeedsTheSameInputs() {
+        PriceStats prices = new PriceStats(new GTable(new double[]{20.0, 30.0, 40.0}));
+        SolverState state = new SolverState();
+        state.ensureCapacity(1);
+        state.record(0, prices, 3.0, 25.0, 300.0, THRESHOLD, 35.0);
+        assertEquals(35.0, state.last(0, prices, 3.0, 25.0, 300.0, THRESHOLD));
+        // the same samples in another distribution are not known to be the same
+        assertTrue(Double.isNaN(state.last(0, new PriceStats(prices.prices()), 3.0, 25.0, 300.0, THRESHOLD)));
+        assertTrue(Double.isNaN(state.last(0, prices, 3.0, 25.0, 300.0, THRESHOLD / 10)));
+        assertTrue(Double.isNaN(state.last(0, prices, 3.0, 25.0, 301.0, THRESHOLD)));
+        state.clear();
+        assertTrue(Double.isNaN(state.last(0, prices, 3.0, 25.0, 300.0, THRESHOLD)));
+    }
+
+    @Test
+    void replacedPricesMoveTheContractLevel() {
+        List<String> records = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            records.add(i / 5 + "-" + i % 5);
+        }
+        Market market = new Market();
+        market.setSeed(SEED);
+        market.setOdPrice(30, records, UniformPriceModel.factory(40, 30, 20, 10, 10, 40));
+        List<String> ods = market.getOds();
+        Seller seller = new Seller(market.getFlowIndex());
+        seller.setSeed(SEED + 1);
+        seller.setExecuFee(ods, 25, 10, 3, 1, 5, 30);
+        seller.setReservFee(ods, 3, 2, 2, 1, 1, 5);
+        seller.setCapacity(ods, 300, 150, 10, 5, 100, 500);
+        Buyer buyer = new Buyer(market.getFlowIndex());
+        assertNotNull(buyer.getSolverState());
+
+        buyer.setOptimalContractLevel(market.getPriceStats(), seller.getFlowTable(), THRESHOLD);
+        FlowTable table = buyer.getFlowTable();
+        int n = market.getFlowIndex().size();
+        double[] before = new double[n];
+        for (int id = 0; id < n; id++) {
+            before[id] = table.get(FlowTable.Column.CONTRACT_LEVEL, id);
+        }
+
+        // only the prices of the flows change, their fees and capacity stay
+        for (int id = 0; id < n; id++) {
+            double[] samples = market.getPriceMatrix().getRow(market.getPriceRow(id));
+            for (int k = 0; k < samples.length; k++) {
+                samples[k] += 15.0;
+            }
+            market.updatePrices(id, samples);
+        }
+        buyer.setOptimalContractLevel(market.getPriceStats(), seller.getFlowTable(), THRESHOLD);
+
+        Buyer cold = new Buyer(market.getFlowIndex());
+        cold.setWarmStart(false);
+        cold.setOptimalContractLevel(market.getPriceStats(), seller.getFlowTable(), THRESHOLD);
+        int moved = 0;
+        for (int id = 0; id < n; id++) {
+            double Q = table.get(FlowTable.Column.CONTRACT_LEVEL, id);
+            assertEquals(cold.getFlowTable().get(FlowTable.Column.CONTRACT_LEVEL, id), Q, "flow " + id);
+            if (Q != before[id]) moved++;
+        }
+        assertTrue(moved > 0, "no contract level moved with the prices");
+    }
+}